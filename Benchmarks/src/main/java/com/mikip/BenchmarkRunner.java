@@ -0,0 +1,30 @@
+package com.mikip;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line, e.g. "Perceptron -p scale=1,10" to run only the perceptron on
+ * the smaller corpora, and always with the GC profiler, so every benchmark reports the bytes it allocates per
+ * operation (gc.alloc.rate.norm) next to its operations per second.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
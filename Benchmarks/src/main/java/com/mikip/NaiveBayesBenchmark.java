@@ -0,0 +1,43 @@
+package com.mikip;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores the bundled reviews with naive bayes trained on the whole corpus, one review per operation. Scoring costs
+ * the same whatever the corpus size; a larger corpus only has larger tables to look the words up in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class NaiveBayesBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    @Param({"false", "true"})
+    public boolean useTfIdf;
+
+    private NaiveBayes naiveBayes;
+    private List<MovieReview> reviews;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        BenchmarkCorpus corpus = new BenchmarkCorpus(scale);
+        naiveBayes = corpus.getParser().createNaiveBayes(corpus.getReviews(), useTfIdf);
+        reviews = corpus.getBundledReviews();
+    }
+
+    @Benchmark
+    public Prediction predict() {
+        MovieReview review = reviews.get(next);
+        next = (next + 1 == reviews.size()) ? 0 : next + 1;
+        return naiveBayes.predict(review);
+    }
+}
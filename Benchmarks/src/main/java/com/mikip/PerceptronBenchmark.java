@@ -0,0 +1,38 @@
+package com.mikip;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trains a perceptron on the whole corpus, one pass over every review per operation. The weights carry over from one
+ * operation to the next, which costs the same as starting from zero: every review is scored, and updated if wrong.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PerceptronBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    @Param({"false", "true"})
+    public boolean useTfIdf;
+
+    private Perceptron perceptron;
+
+    @Setup
+    public void setUp() {
+        BenchmarkCorpus corpus = new BenchmarkCorpus(scale);
+        perceptron = corpus.getParser().createPerceptron(corpus.getReviews(), useTfIdf, false, 0.15);
+    }
+
+    @Benchmark
+    public Perceptron trainAll() {
+        perceptron.trainAll();
+        return perceptron;
+    }
+}
@@ -0,0 +1,32 @@
+package com.mikip;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recalculates every idf and the tf-idfs of every review of the corpus, one full recalculation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TfIdfBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    private ReviewDBParser parser;
+
+    @Setup
+    public void setUp() {
+        parser = new BenchmarkCorpus(scale).getParser();
+    }
+
+    @Benchmark
+    public void recalculateTfIdf() {
+        parser.recalculateTfIdf();
+    }
+}
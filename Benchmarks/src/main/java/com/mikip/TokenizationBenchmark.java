@@ -0,0 +1,71 @@
+package com.mikip;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizes the bundled review files one file per operation, from bytes already in memory so the disk is not
+ * measured: into a bag of words, and into a MovieReview with term ids, as the parser does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizationBenchmark {
+
+    @Param({"false", "true"})
+    public boolean ignorePunctuation;
+
+    private List<byte[]> files;
+    private List<Boolean> sentiments;
+    private TermDictionary dictionary;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        files = new ArrayList<>();
+        sentiments = new ArrayList<>();
+        for (String posOrNeg : new String[]{"pos", "neg"}) {
+            File[] reviewFiles = new File(BenchmarkCorpus.getCorpusDir(), posOrNeg).listFiles();
+            if (reviewFiles == null) {
+                throw new IOException("No " + posOrNeg + " folder in " + BenchmarkCorpus.getCorpusDir());
+            }
+            for (File file : reviewFiles) {
+                files.add(Files.readAllBytes(file.toPath()));
+                sentiments.add(posOrNeg.equals("pos"));
+            }
+        }
+        dictionary = new TermDictionary();
+    }
+
+    private int nextFile() {
+        int file = next;
+        next = (next + 1 == files.size()) ? 0 : next + 1;
+        return file;
+    }
+
+    @Benchmark
+    public HashMap<String, Integer> tokenize() {
+        return MovieReview.tokenize(ByteBuffer.wrap(files.get(nextFile())), ignorePunctuation);
+    }
+
+    /**
+     * Also looks every word up in the dictionary. The dictionary holds every word after the first pass over the files,
+     * like the dictionary of a loaded corpus.
+     */
+    @Benchmark
+    public MovieReview createReview() {
+        int file = nextFile();
+        return new MovieReview(ByteBuffer.wrap(files.get(file)), sentiments.get(file), ignorePunctuation, dictionary);
+    }
+}
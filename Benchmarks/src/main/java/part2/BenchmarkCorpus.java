@@ -0,0 +1,104 @@
+package part2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The corpus the benchmarks run on: the bundled reviews, scaled up with synthetic reviews to measure how the costs
+ * grow with the corpus.
+ * <p>
+ * Copy c of the corpus holds every bundled review again, with about one word in 8 of the vocabulary swapped for its
+ * own variant, word#c, in every review of that copy. So each copy adds reviews with the same length and sentiment as
+ * the bundled ones and grows the vocabulary the way new reviews do, rather than repeating the bundled reviews exactly.
+ * The synthetic reviews are built straight from term ids, so a 100x corpus needs memory, not 100 times the review
+ * files.
+ */
+public class BenchmarkCorpus {
+
+    private final ReviewDBParser parser;
+    private final List<MovieReview> bundledReviews;
+
+    /**
+     * Loads the bundled corpus and adds synthetic reviews to it.
+     *
+     * @param scale How many times the size of the bundled corpus the corpus should be. 1 for the bundled corpus.
+     */
+    public BenchmarkCorpus(int scale) {
+        parser = new ReviewDBParser(getCorpusDir(), false);
+        bundledReviews = new ArrayList<>(parser.getMovieReviews());
+        TermDictionary dictionary = parser.getDictionary();
+        int bundledTermCount = dictionary.size();
+        for (int copy = 1; copy < scale; copy++) {
+            Random random = new Random(copy);
+            int[] copyTermIds = new int[bundledTermCount];
+            for (int termId = 0; termId < bundledTermCount; termId++) {
+                copyTermIds[termId] = (random.nextInt(8) == 0)
+                        ? dictionary.getOrAddId(dictionary.getTerm(termId) + "#" + copy) : termId;
+            }
+            for (MovieReview review : bundledReviews) {
+                parser.addReview(copyReview(review, copyTermIds, dictionary));
+            }
+        }
+        parser.refreshTfIdf();
+    }
+
+    private static MovieReview copyReview(MovieReview review, int[] copyTermIds, TermDictionary dictionary) {
+        int[] termIds = review.getTermIds();
+        int[] termCounts = review.getTermCounts();
+        // Pack (id, count) pairs into longs so a single primitive sort orders both arrays by id.
+        long[] packed = new long[termIds.length];
+        for (int i = 0; i < termIds.length; i++) {
+            packed[i] = ((long) copyTermIds[termIds[i]] << 32) | termCounts[i];
+        }
+        Arrays.sort(packed);
+        int[] copyIds = new int[packed.length];
+        int[] copyCounts = new int[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            copyIds[i] = (int) (packed[i] >>> 32);
+            copyCounts[i] = (int) packed[i];
+        }
+        return new MovieReview(copyIds, copyCounts, review.getSentiment(), dictionary);
+    }
+
+    /**
+     * @return The txt_sentoken folder of Part-2, from the corpus.dir system property if it is set, otherwise found
+     * next to the Benchmarks folder.
+     */
+    public static File getCorpusDir() {
+        String corpusDir = System.getProperty("corpus.dir");
+        if (corpusDir != null) {
+            return new File(corpusDir);
+        }
+        for (String candidate : new String[]{"../Part-2/txt_sentoken", "Part-2/txt_sentoken"}) {
+            if (new File(candidate).isDirectory()) {
+                return new File(candidate);
+            }
+        }
+        throw new IllegalStateException("Cannot find the corpus, run from the Benchmarks folder or pass "
+                + "-Dcorpus.dir=path/to/txt_sentoken");
+    }
+
+    /**
+     * @return The parser holding every review, with their tf-idfs up to date.
+     */
+    public ReviewDBParser getParser() {
+        return parser;
+    }
+
+    /**
+     * @return Every review, bundled and synthetic.
+     */
+    public List<MovieReview> getReviews() {
+        return parser.getMovieReviews();
+    }
+
+    /**
+     * @return The bundled reviews only, e.g. to classify against a scaled corpus.
+     */
+    public List<MovieReview> getBundledReviews() {
+        return bundledReviews;
+    }
+}
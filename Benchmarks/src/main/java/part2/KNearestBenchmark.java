@@ -0,0 +1,43 @@
+package part2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifies the bundled reviews against a K-NN of the whole corpus, one review per operation, with the default
+ * K of 34.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class KNearestBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    @Param({KNearestClassifier.EUCLIDEAN, KNearestClassifier.MANHATTAN})
+    public String distanceMetric;
+
+    private KNearestClassifier kNearest;
+    private List<MovieReview> reviews;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        BenchmarkCorpus corpus = new BenchmarkCorpus(scale);
+        kNearest = new KNearestClassifier(34, corpus.getReviews(), false, distanceMetric);
+        reviews = corpus.getBundledReviews();
+    }
+
+    @Benchmark
+    public boolean classifyReview() {
+        MovieReview review = reviews.get(next);
+        next = (next + 1 == reviews.size()) ? 0 : next + 1;
+        return kNearest.classifyReview(review);
+    }
+}
@@ -0,0 +1,50 @@
+package part2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trains Rocchio on the whole corpus, one full training per operation, and classifies the bundled reviews against
+ * the trained centroids, one review per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RocchioBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    @Param({RocchioClassifier.EUCLIDEAN, RocchioClassifier.MANHATTAN})
+    public String distanceMetric;
+
+    private RocchioClassifier rocchio;
+    private List<MovieReview> reviews;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        BenchmarkCorpus corpus = new BenchmarkCorpus(scale);
+        rocchio = new RocchioClassifier(corpus.getReviews(), false, distanceMetric);
+        rocchio.train();
+        reviews = corpus.getBundledReviews();
+    }
+
+    @Benchmark
+    public RocchioClassifier train() {
+        rocchio.train();
+        return rocchio;
+    }
+
+    @Benchmark
+    public boolean classifyReview() {
+        MovieReview review = reviews.get(next);
+        next = (next + 1 == reviews.size()) ? 0 : next + 1;
+        return rocchio.classifyReview(review);
+    }
+}
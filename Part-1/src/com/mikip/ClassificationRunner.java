@@ -0,0 +1,320 @@
+package com.mikip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Loads the corpus and cross validates the perceptron and naive bayes classifiers with the specified options.
+ * Both the GUI and HeadlessRunner run classification through this class, so they report the same results.
+ * Nothing here touches Swing, so a run can be started from any thread.
+ */
+public class ClassificationRunner {
+
+    public static final String PERCEPTRON = "Perceptron";
+    public static final String NAIVE_BAYES = "Naive Bayes";
+
+    /**
+     * Notified as the folds of each classifier finish.
+     */
+    public interface ProgressListener {
+        /**
+         * Called from the thread that ran the fold, one call at a time.
+         *
+         * @param classifierName PERCEPTRON or NAIVE_BAYES.
+         * @param foldsFinished  How many folds of the classifier have finished, including this one.
+         * @param foldCount      How many folds the classifier is tested on.
+         * @param foldStats      The stats of the fold that finished.
+         */
+        void foldFinished(String classifierName, int foldsFinished, int foldCount, FoldStats foldStats);
+    }
+
+    private ClassifierOptions options;
+    private ReviewDBParser dbParser;
+
+    /**
+     * @param options The options of the run.
+     * @throws IllegalArgumentException If an option is out of range.
+     */
+    public ClassificationRunner(ClassifierOptions options) {
+        options.validate();
+        this.options = options;
+        PipelineMetrics.get().registerMBeans();
+    }
+
+    /**
+     * Loads the corpus, then cross validates the perceptron and naive bayes classifiers.
+     *
+     * @param listener Notified as folds finish. May be null.
+     * @return The results of the perceptron and naive bayes, in that order, formatted for display.
+     */
+    public String[] run(ProgressListener listener) {
+        dbParser = new ReviewDBParser(options.getDataDir(), options.shouldIgnorePunctuation(), true, true,
+                new Random(options.getSeed()));
+        CrossValidator crossValidator = new CrossValidator(options.getThreads(), options.isParallelTesting());
+        int foldCount = dbParser.getTrainingToTestingMap().size();
+
+        List<FoldStats> perceptronFoldStats = crossValidator.run(dbParser.getTrainingToTestingMap(),
+                dbParser.getPerceptronTrainer(options.getPerceptronUseTfIdf(), options.shouldInitRandomWeights(),
+                        options.getLearningRate(), options.getEpochs(), options.isAveraged(),
+                        options.getPerceptronThreads(), options.getSeed()),
+                getFoldListener(PERCEPTRON, foldCount, listener));
+        List<FoldStats> naiveBayesFoldStats = crossValidator.run(dbParser.getTrainingToTestingMap(),
+                dbParser.getNaiveBayesTrainer(options.getNaiveBayesUseTfIdf()),
+                getFoldListener(NAIVE_BAYES, foldCount, listener));
+
+        int reviewCount = dbParser.getMovieReviews().size();
+        String perceptronResults = formatResults(PERCEPTRON, perceptronFoldStats, reviewCount);
+        if (options.shouldReportPerceptronScaling()) {
+            perceptronResults += measurePerceptronScaling();
+        }
+        String naiveBayesResults = formatResults(NAIVE_BAYES, naiveBayesFoldStats, reviewCount);
+        if (options.getModelDir() != null) {
+            perceptronResults += saveModel(PERCEPTRON);
+            naiveBayesResults += saveModel(NAIVE_BAYES);
+        }
+        return new String[]{perceptronResults, naiveBayesResults};
+    }
+
+    /**
+     * Trains a classifier on every review of the corpus and saves it, with the dictionary and idfs, in the model
+     * folder.
+     *
+     * @param classifierName PERCEPTRON or NAIVE_BAYES.
+     * @return Where the model was saved, or why it could not be, as lines to append to the results of the classifier.
+     */
+    private String saveModel(String classifierName) {
+        List<MovieReview> movieReviews = new ArrayList<>(dbParser.getMovieReviews());
+        ModelSnapshot model;
+        if (classifierName.equals(PERCEPTRON)) {
+            Perceptron perceptron = trainPerceptron(movieReviews, options.getPerceptronThreads());
+            model = new ModelSnapshot(dbParser.getDictionary(), dbParser.getIdfs(), dbParser.shouldIgnorePunctuation(),
+                    perceptron);
+        } else {
+            NaiveBayes naiveBayes = dbParser.createNaiveBayes(movieReviews, options.getNaiveBayesUseTfIdf());
+            model = new ModelSnapshot(dbParser.getDictionary(), dbParser.getIdfs(), dbParser.shouldIgnorePunctuation(),
+                    naiveBayes);
+        }
+        File modelFile = ModelSnapshot.getModelFile(options.getModelDir(), classifierName);
+        String report = ("-------------------------") + "\n";
+        try {
+            if (!options.getModelDir().isDirectory() && !options.getModelDir().mkdirs()) {
+                throw new IOException("Could not create " + options.getModelDir());
+            }
+            model.write(modelFile);
+            report += (classifierName + " model (trained on all " + movieReviews.size() + " reviews) saved to "
+                    + modelFile) + "\n";
+        } catch (IOException e) {
+            e.printStackTrace();
+            report += (classifierName + " model could not be saved: " + e.getMessage()) + "\n";
+        }
+        return report;
+    }
+
+    /**
+     * Trains perceptrons on the first fold with 1 thread, 2 threads and so on up to the perceptron thread count, or
+     * up to the processor count if that is 1, and reports the training throughput and accuracy of each.
+     *
+     * @return The report, as lines to append to the perceptron results.
+     */
+    private String measurePerceptronScaling() {
+        Map.Entry<List<MovieReview>, List<MovieReview>> fold = dbParser.getTrainingToTestingMap().entrySet().iterator().next();
+        int maxThreads = options.getPerceptronThreads();
+        if (maxThreads == 1) {
+            maxThreads = Runtime.getRuntime().availableProcessors();
+        }
+        String report = ("-------------------------") + "\n";
+        double singleThreadThroughput = 0;
+        trainPerceptron(fold.getKey(), 1); // Warm up
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            // Train repeatedly, so short runs are not dominated by timer and thread start up noise
+            long reviewsTrained = 0;
+            long start = System.nanoTime();
+            Perceptron perceptron;
+            do {
+                perceptron = trainPerceptron(fold.getKey(), threads);
+                reviewsTrained += (long) fold.getKey().size() * options.getEpochs();
+            } while (System.nanoTime() - start < 200000000L);
+            double throughput = reviewsTrained / ((System.nanoTime() - start) / 1e9);
+            if (threads == 1) {
+                singleThreadThroughput = throughput;
+            }
+            FoldStats foldStats = CrossValidator.evaluate(perceptron, fold.getValue());
+            report += String.format("%s training on %d thread%s: %.0f reviews/sec (%.2fx), %s accuracy (fold 1)%n",
+                    PERCEPTRON, threads, (threads == 1) ? "" : "s", throughput, throughput / singleThreadThroughput,
+                    round(foldStats.getAccuracy(), 2));
+        }
+        return report;
+    }
+
+    private Perceptron trainPerceptron(List<MovieReview> trainingList, int threads) {
+        Random random = new Random(options.getSeed());
+        Perceptron perceptron = dbParser.createPerceptron(trainingList, options.getPerceptronUseTfIdf(),
+                options.shouldInitRandomWeights(), options.getLearningRate(), random);
+        perceptron.setEpochs(options.getEpochs(), (options.getEpochs() > 1) ? random : null);
+        perceptron.useAveraging(options.isAveraged());
+        perceptron.setThreads(threads);
+        perceptron.trainAll();
+        return perceptron;
+    }
+
+    private CrossValidator.FoldListener getFoldListener(final String classifierName, final int foldCount,
+                                                        final ProgressListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new CrossValidator.FoldListener() {
+            private int foldsFinished;
+
+            @Override
+            public synchronized void foldFinished(FoldStats foldStats) {
+                foldsFinished++;
+                listener.foldFinished(classifierName, foldsFinished, foldCount, foldStats);
+            }
+        };
+    }
+
+    /**
+     * @return The parser of the last run, or null if nothing has been run yet.
+     */
+    public ReviewDBParser getParser() {
+        return dbParser;
+    }
+
+    public ClassifierOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return A one line summary of a finished fold, e.g. "Perceptron fold 2 / 5: 0.83 accuracy".
+     */
+    public static String formatFoldProgress(String classifierName, int foldsFinished, int foldCount, FoldStats foldStats) {
+        return classifierName + " fold " + foldsFinished + " / " + foldCount + ": "
+                + round(foldStats.getAccuracy(), 2) + " accuracy";
+    }
+
+    /**
+     * Formats the total, average, minimum and maximum stats of a classifier over every fold.
+     *
+     * @param classifierName The name of the classifier.
+     * @param foldStatsList  The stats of each fold.
+     * @param reviewCount    How many reviews there are in total.
+     * @return The results, one stat per line.
+     */
+    public static String formatResults(String classifierName, List<FoldStats> foldStatsList, int reviewCount) {
+        int reviewsCorrect = CrossValidator.getTotalTrue(foldStatsList);
+
+        double[] maxStats = getMaxStats(foldStatsList);
+        double maxPrecision = round(maxStats[0], 2);
+        double maxRecall = round(maxStats[1], 2);
+        double maxAccuracy = round(maxStats[2], 2);
+
+        double[] minStats = getMinStats(foldStatsList);
+        double minPrecision = round(minStats[0], 2);
+        double minRecall = round(minStats[1], 2);
+        double minAccuracy = round(minStats[2], 2);
+
+        double[] meanStats = getMeanStats(foldStatsList);
+        double meanPrecision = round(meanStats[0], 2);
+        double meanRecall = round(meanStats[1], 2);
+        double meanAccuracy = round(meanStats[2], 2);
+
+        String results = "";
+        results += (classifierName + ": " + reviewsCorrect + " / " + reviewCount + " correct.") + "\n";
+        results += ("-------------------------") + "\n";
+        results += ("Average " + classifierName + " stats: ") + "\n";
+        results += "\n";
+        results += ("Average " + classifierName + " precision: " + meanPrecision) + "\n";
+        results += ("Average " + classifierName + " recall: " + meanRecall) + "\n";
+        results += ("Average " + classifierName + " accuracy: " + meanAccuracy) + "\n";
+        results += ("-------------------------") + "\n";
+        results += ("Minimum " + classifierName + " stats: ") + "\n";
+        results += "\n";
+        results += ("Minimum " + classifierName + " precision: " + minPrecision) + "\n";
+        results += ("Minimum " + classifierName + " recall: " + minRecall) + "\n";
+        results += ("Minimum " + classifierName + " accuracy: " + minAccuracy) + "\n";
+        results += ("-------------------------") + "\n";
+        results += ("Maximum " + classifierName + " stats: ") + "\n";
+        results += "\n";
+        results += ("Maximum " + classifierName + " precision: " + maxPrecision) + "\n";
+        results += ("Maximum " + classifierName + " recall: " + maxRecall) + "\n";
+        results += ("Maximum " + classifierName + " accuracy: " + maxAccuracy) + "\n";
+        return results;
+    }
+
+    /**
+     * Given list of FoldStats, return the an array of doubles containing the average precision, recall, and accuracy,
+     * in that order.
+     *
+     * @param foldStatsList List of fold statistics.
+     * @return An array of doubles containing the average precision, recall, and accuracy,
+     * in that order.
+     */
+    private static double[] getMeanStats(List<FoldStats> foldStatsList) {
+        double meanAccuracy = 0;
+        double meanRecall = 0;
+        double meanPrecision = 0;
+        for (FoldStats foldStat : foldStatsList) {
+            double foldAccuracy = foldStat.getAccuracy();
+            double foldRecall = foldStat.getRecall();
+            double foldPrecision = foldStat.getPrecision();
+            meanAccuracy += foldAccuracy;
+            meanRecall += foldRecall;
+            meanPrecision += foldPrecision;
+        }
+        meanAccuracy /= foldStatsList.size();
+        meanRecall /= foldStatsList.size();
+        meanPrecision /= foldStatsList.size();
+        return new double[]{meanPrecision, meanRecall, meanAccuracy};
+    }
+
+    private static double[] getMaxStats(List<FoldStats> foldStatsList) {
+        double maxAccuracy = -1;
+        double maxRecall = -1;
+        double maxPrecision = -1;
+        for (FoldStats foldStat : foldStatsList) {
+            double foldAccuracy = foldStat.getAccuracy();
+            double foldRecall = foldStat.getRecall();
+            double foldPrecision = foldStat.getPrecision();
+            if (foldAccuracy > maxAccuracy) {
+                maxAccuracy = foldAccuracy;
+            }
+            if (foldRecall > maxRecall) {
+                maxRecall = foldRecall;
+            }
+            if (foldPrecision > maxPrecision) {
+                maxPrecision = foldPrecision;
+            }
+        }
+        return new double[]{maxPrecision, maxRecall, maxAccuracy};
+    }
+
+    private static double[] getMinStats(List<FoldStats> foldStatsList) {
+        double minAccuracy = Double.MAX_VALUE;
+        double minRecall = Double.MAX_VALUE;
+        double minPrecision = Double.MAX_VALUE;
+        for (FoldStats foldStat : foldStatsList) {
+            double foldAccuracy = foldStat.getAccuracy();
+            double foldRecall = foldStat.getRecall();
+            double foldPrecision = foldStat.getPrecision();
+            if (foldAccuracy < minAccuracy) {
+                minAccuracy = foldAccuracy;
+            }
+            if (foldRecall < minRecall) {
+                minRecall = foldRecall;
+            }
+            if (foldPrecision < minPrecision) {
+                minPrecision = foldPrecision;
+            }
+        }
+        return new double[]{minPrecision, minRecall, minAccuracy};
+    }
+
+    private static double round(double value, int places) {
+        double placesNum = Math.pow(10, places);
+        return (double)Math.round(value * placesNum) / placesNum;
+    }
+}
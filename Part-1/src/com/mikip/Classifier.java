@@ -0,0 +1,42 @@
+package com.mikip;
+
+import java.util.List;
+
+/**
+ * A sentiment classifier: trained on labelled reviews, then asked to predict the sentiment of others. Every classifier
+ * of the project implements this, so cross validation, model files and anything else that only trains and predicts
+ * work the same way for all of them.
+ */
+public interface Classifier {
+
+    /**
+     * Trains on the specified reviews, discarding whatever the classifier learnt before.
+     *
+     * @param trainingReviews Labelled reviews. The classifier may keep the list, so it must not change afterwards.
+     */
+    void train(List<MovieReview> trainingReviews);
+
+    /**
+     * Predicts the sentiment of a single review. Safe to call from several threads at once once training is done.
+     *
+     * @param review The review to classify.
+     * @return The predicted label and how strongly the classifier leans towards it.
+     */
+    Prediction predict(MovieReview review);
+
+    /**
+     * Predicts the sentiment of a batch of reviews, e.g. a whole testing fold. Returns the same predictions as
+     * calling predict on each review; classifiers that can score a batch faster than one review at a time override
+     * this.
+     *
+     * @param reviews The reviews to classify.
+     * @return The prediction of each review, in the order of reviews.
+     */
+    default Prediction[] predictBatch(List<MovieReview> reviews) {
+        Prediction[] predictions = new Prediction[reviews.size()];
+        for (int i = 0; i < predictions.length; i++) {
+            predictions[i] = predict(reviews.get(i));
+        }
+        return predictions;
+    }
+}
@@ -0,0 +1,398 @@
+package com.mikip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The options of a classification run, set from the GUI panels or from command line arguments and a config file.
+ * <p>
+ * Arguments are written as --option=value, or just --option for a boolean that should be true. A config file,
+ * given with --config=path, is a properties file that uses the same option names without the dashes. Arguments
+ * override the values in the config file.
+ */
+public class ClassifierOptions {
+
+    public static final String CONFIG = "config";
+    public static final String DATA_DIR = "data-dir";
+    public static final String IGNORE_PUNCTUATION = "ignore-punctuation";
+    public static final String THREADS = "threads";
+    public static final String PARALLEL_TESTING = "parallel-testing";
+    public static final String LEARNING_RATE = "learning-rate";
+    public static final String RANDOM_WEIGHTS = "random-weights";
+    public static final String EPOCHS = "epochs";
+    public static final String AVERAGED = "averaged";
+    public static final String PERCEPTRON_THREADS = "perceptron-threads";
+    public static final String PERCEPTRON_SCALING = "perceptron-scaling";
+    public static final String SEED = "seed";
+    public static final String TF_IDF = "tfidf";
+    public static final String PERCEPTRON_TF_IDF = "perceptron-tfidf";
+    public static final String NAIVE_BAYES_TF_IDF = "naive-bayes-tfidf";
+    public static final String SAVE_MODELS = "save-models";
+    public static final String METRICS_REPORT = "metrics-report";
+
+    /**
+     * Folder containing the pos and neg review directories.
+     */
+    private File dataDir;
+    private boolean ignorePunctuation;
+    /**
+     * How many threads the folds are cross validated on.
+     */
+    private int threads;
+    private boolean parallelTesting;
+    private double learningRate;
+    private boolean initRandomWeights;
+    /**
+     * How many times the perceptron goes over the training reviews, and whether it classifies with its averaged
+     * weights.
+     */
+    private int epochs;
+    private boolean averaged;
+    /**
+     * How many threads each perceptron trains on, and whether to report how training throughput scales with threads.
+     */
+    private int perceptronThreads;
+    private boolean reportPerceptronScaling;
+    /**
+     * Seeds the folds and the random weights and shuffles of the perceptron, so a run on a single perceptron thread
+     * can be repeated exactly.
+     */
+    private long seed;
+    private boolean perceptronUseTfIdf;
+    private boolean naiveBayesUseTfIdf;
+    /**
+     * Folder to save a ModelSnapshot of each classifier, trained on the whole corpus, in, or null to save none.
+     */
+    private File modelDir;
+    /**
+     * Whether a headless run ends with the PipelineMetrics report.
+     */
+    private boolean reportMetrics;
+
+    /**
+     * Creates the default options: the txt_sentoken folder next to the working directory, a learning rate of 0.15,
+     * a single perceptron epoch, random seed 0, unary weighting and one thread per available processor.
+     */
+    public ClassifierOptions() {
+        dataDir = getDefaultDataDir();
+        threads = Runtime.getRuntime().availableProcessors();
+        learningRate = 0.15;
+        epochs = 1;
+        perceptronThreads = 1;
+    }
+
+    /**
+     * @return The txt_sentoken folder, found the same way whether the program is run from the project or src folder.
+     */
+    public static File getDefaultDataDir() {
+        String currentDir = System.getProperty("user.dir");
+        if (currentDir.contains("src")) {
+            return new File("../txt_sentoken");
+        } else {
+            return new File("./txt_sentoken");
+        }
+    }
+
+    /**
+     * Reads the options from command line arguments, and from the config file if one is specified.
+     *
+     * @param args The command line arguments.
+     * @return The options.
+     * @throws IOException If the config file could not be read.
+     */
+    public static ClassifierOptions fromArgs(String[] args) throws IOException {
+        Map<String, String> argOptions = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equalsIndex = arg.indexOf('=');
+            if (equalsIndex < 0) {
+                argOptions.put(arg.substring(2), "true");
+            } else {
+                argOptions.put(arg.substring(2, equalsIndex), arg.substring(equalsIndex + 1));
+            }
+        }
+        ClassifierOptions options = new ClassifierOptions();
+        String configPath = argOptions.remove(CONFIG);
+        if (configPath != null) {
+            Properties config = new Properties();
+            try (InputStream in = new FileInputStream(configPath)) {
+                config.load(in);
+            }
+            for (String key : config.stringPropertyNames()) {
+                options.setOption(key, config.getProperty(key));
+            }
+        }
+        for (Map.Entry<String, String> argOption : argOptions.entrySet()) {
+            options.setOption(argOption.getKey(), argOption.getValue());
+        }
+        return options;
+    }
+
+    /**
+     * Sets a single option by name.
+     *
+     * @param name  The name of the option, e.g. learning-rate.
+     * @param value The value of the option, as it was written.
+     */
+    public void setOption(String name, String value) {
+        value = value.trim();
+        switch (name) {
+            case DATA_DIR:
+                dataDir = new File(value);
+                break;
+            case IGNORE_PUNCTUATION:
+                ignorePunctuation = parseBoolean(name, value);
+                break;
+            case THREADS:
+                threads = parseInt(name, value);
+                break;
+            case PARALLEL_TESTING:
+                parallelTesting = parseBoolean(name, value);
+                break;
+            case LEARNING_RATE:
+                learningRate = parseDouble(name, value);
+                break;
+            case RANDOM_WEIGHTS:
+                initRandomWeights = parseBoolean(name, value);
+                break;
+            case EPOCHS:
+                epochs = parseInt(name, value);
+                break;
+            case AVERAGED:
+                averaged = parseBoolean(name, value);
+                break;
+            case PERCEPTRON_THREADS:
+                perceptronThreads = parseInt(name, value);
+                break;
+            case PERCEPTRON_SCALING:
+                reportPerceptronScaling = parseBoolean(name, value);
+                break;
+            case SEED:
+                seed = parseLong(name, value);
+                break;
+            case TF_IDF:
+                perceptronUseTfIdf = parseBoolean(name, value);
+                naiveBayesUseTfIdf = perceptronUseTfIdf;
+                break;
+            case PERCEPTRON_TF_IDF:
+                perceptronUseTfIdf = parseBoolean(name, value);
+                break;
+            case NAIVE_BAYES_TF_IDF:
+                naiveBayesUseTfIdf = parseBoolean(name, value);
+                break;
+            case SAVE_MODELS:
+                modelDir = new File(value);
+                break;
+            case METRICS_REPORT:
+                reportMetrics = parseBoolean(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException(name + " must be true or false, not " + value);
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer, not " + value);
+        }
+    }
+
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer, not " + value);
+        }
+    }
+
+    private static double parseDouble(String name, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number, not " + value);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If an option is out of range. The message is meant to be shown to the user.
+     */
+    public void validate() {
+        if (learningRate <= 0 || learningRate >= 1) {
+            throw new IllegalArgumentException("Perceptron learning is invalid. Make sure it is a number " +
+                    "greater than 0 and less than 1.");
+        }
+        if (epochs < 1) {
+            throw new IllegalArgumentException("Perceptron epochs invalid. Make sure it is an integer " +
+                    "greater than or equal to 1.");
+        }
+        if (threads < 1 || perceptronThreads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+    }
+
+    /**
+     * @return A description of every option, for the command line.
+     */
+    public static String getUsage() {
+        String[][] options = {
+                {DATA_DIR + "=path", "Folder with the pos and neg review folders"},
+                {IGNORE_PUNCTUATION, "Ignore single punctuation characters"},
+                {THREADS + "=n", "Threads to cross validate on"},
+                {PARALLEL_TESTING, "Also classify each testing fold in parallel"},
+                {LEARNING_RATE + "=rate", "Perceptron learning rate, between 0 and 1"},
+                {RANDOM_WEIGHTS, "Initialize perceptron weights randomly"},
+                {EPOCHS + "=n", "Perceptron passes over the training reviews, shuffled if more than 1"},
+                {AVERAGED, "Classify with the perceptron's averaged weights"},
+                {PERCEPTRON_THREADS + "=n", "Threads each perceptron trains on, lock-free (1 = deterministic)"},
+                {PERCEPTRON_SCALING, "Report perceptron training throughput on 1 to n threads"},
+                {SEED + "=n", "Seed of the folds and the perceptron's random weights and shuffles"},
+                {TF_IDF, "Use tf-idf for both classifiers"},
+                {PERCEPTRON_TF_IDF, "Use tf-idf for the perceptron"},
+                {NAIVE_BAYES_TF_IDF, "Use tf-idf for naive bayes"},
+                {SAVE_MODELS + "=path", "Folder to save both classifiers, trained on every review, in"},
+                {METRICS_REPORT, "End with the time spent in each stage and the pipeline counters"}};
+        StringBuilder usage = new StringBuilder("Options (--option=value, or in a properties file passed with --config=path):");
+        for (String[] option : options) {
+            usage.append(String.format("%n  --%-26s %s", option[0], option[1]));
+        }
+        return usage.toString();
+    }
+
+    public File getDataDir() {
+        return dataDir;
+    }
+
+    public void setDataDir(File dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public boolean shouldIgnorePunctuation() {
+        return ignorePunctuation;
+    }
+
+    public void setIgnorePunctuation(boolean ignorePunctuation) {
+        this.ignorePunctuation = ignorePunctuation;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public boolean isParallelTesting() {
+        return parallelTesting;
+    }
+
+    public void setParallelTesting(boolean parallelTesting) {
+        this.parallelTesting = parallelTesting;
+    }
+
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public int getEpochs() {
+        return epochs;
+    }
+
+    public void setEpochs(int epochs) {
+        this.epochs = epochs;
+    }
+
+    public boolean isAveraged() {
+        return averaged;
+    }
+
+    public void setAveraged(boolean averaged) {
+        this.averaged = averaged;
+    }
+
+    public int getPerceptronThreads() {
+        return perceptronThreads;
+    }
+
+    public void setPerceptronThreads(int perceptronThreads) {
+        this.perceptronThreads = perceptronThreads;
+    }
+
+    public boolean shouldReportPerceptronScaling() {
+        return reportPerceptronScaling;
+    }
+
+    public void setReportPerceptronScaling(boolean reportPerceptronScaling) {
+        this.reportPerceptronScaling = reportPerceptronScaling;
+    }
+
+    public boolean shouldInitRandomWeights() {
+        return initRandomWeights;
+    }
+
+    public void setInitRandomWeights(boolean initRandomWeights) {
+        this.initRandomWeights = initRandomWeights;
+    }
+
+    public boolean getPerceptronUseTfIdf() {
+        return perceptronUseTfIdf;
+    }
+
+    public void setPerceptronUseTfIdf(boolean perceptronUseTfIdf) {
+        this.perceptronUseTfIdf = perceptronUseTfIdf;
+    }
+
+    public boolean getNaiveBayesUseTfIdf() {
+        return naiveBayesUseTfIdf;
+    }
+
+    public void setNaiveBayesUseTfIdf(boolean naiveBayesUseTfIdf) {
+        this.naiveBayesUseTfIdf = naiveBayesUseTfIdf;
+    }
+
+    public File getModelDir() {
+        return modelDir;
+    }
+
+    public void setModelDir(File modelDir) {
+        this.modelDir = modelDir;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public boolean shouldReportMetrics() {
+        return reportMetrics;
+    }
+
+    public void setReportMetrics(boolean reportMetrics) {
+        this.reportMetrics = reportMetrics;
+    }
+}
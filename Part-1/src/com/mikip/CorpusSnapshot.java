@@ -0,0 +1,231 @@
+package com.mikip;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed corpus saved in a versioned binary file, so later runs can memory map it instead of re-reading and
+ * re-tokenizing every review file. A snapshot holds the term dictionary, every review's sparse term vector and
+ * label (in file order), and the document frequency and idf tables.
+ * <p>
+ * Each snapshot records a fingerprint of the review files it was built from and whether punctuation was
+ * ignored. read() returns null when either no longer matches, so a stale snapshot is simply rebuilt.
+ * <p>
+ * Layout, all values big-endian:
+ * <pre>
+ * int magic, int version, long fingerprint, byte ignorePunctuation
+ * int termCount, then termCount x (int byteLength, UTF-8 bytes)
+ * int reviewCount, then reviewCount x (byte label, int uniqueTerms, int[] termIds, int[] termCounts)
+ * int[termCount] termInCorpusFreqs, int[termCount] termInReviewFreqs
+ * double[termCount] idfs, double[termCount] smoothIdfs
+ * </pre>
+ */
+public class CorpusSnapshot {
+
+    private static final int MAGIC = 0x4D525653; // "MRVS"
+    /**
+     * Bump whenever the layout or the way reviews are tokenized changes, so older snapshots are rebuilt.
+     */
+    public static final int VERSION = 1;
+
+    private TermDictionary dictionary;
+    /**
+     * The reviews, in the order their files were read.
+     */
+    private List<MovieReview> movieReviews;
+    private int[] termInCorpusFreqs;
+    private int[] termInReviewFreqs;
+    private double[] idfs;
+    private double[] smoothIdfs;
+
+    public CorpusSnapshot(TermDictionary dictionary, List<MovieReview> movieReviews, int[] termInCorpusFreqs,
+                          int[] termInReviewFreqs, double[] idfs, double[] smoothIdfs) {
+        this.dictionary = dictionary;
+        this.movieReviews = movieReviews;
+        this.termInCorpusFreqs = termInCorpusFreqs;
+        this.termInReviewFreqs = termInReviewFreqs;
+        this.idfs = idfs;
+        this.smoothIdfs = smoothIdfs;
+    }
+
+    /**
+     * @param parentFolder      Folder containing the pos and neg review directories.
+     * @param ignorePunctuation Whether the snapshot ignores punctuation. Each setting gets its own file.
+     * @return Where the snapshot of the specified corpus is stored.
+     */
+    public static File getSnapshotFile(File parentFolder, boolean ignorePunctuation) {
+        return new File(parentFolder, ignorePunctuation ? "corpus-nopunct.snapshot" : "corpus.snapshot");
+    }
+
+    /**
+     * Hashes the name, size and modification time of every review file, so adding, removing or editing a file
+     * changes the fingerprint.
+     *
+     * @param reviewDirs The sorted review files of each review directory.
+     * @return A 64 bit fingerprint of the files.
+     */
+    public static long fingerprint(File[]... reviewDirs) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a offset basis
+        for (File[] reviewFiles : reviewDirs) {
+            hash = mix(hash, reviewFiles.length);
+            for (File file : reviewFiles) {
+                hash = mix(hash, file.getName().hashCode());
+                hash = mix(hash, file.length());
+                hash = mix(hash, file.lastModified());
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L; // FNV-1a prime
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and then moves it into place, so a reader never sees a partially
+     * written snapshot.
+     *
+     * @param snapshotFile      Where to write the snapshot.
+     * @param fingerprint       Fingerprint of the review files the snapshot was built from.
+     * @param ignorePunctuation Whether punctuation was ignored when the reviews were tokenized.
+     */
+    public void write(File snapshotFile, long fingerprint, boolean ignorePunctuation) throws IOException {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeByte(ignorePunctuation ? 1 : 0);
+            out.writeInt(dictionary.size());
+            for (int termId = 0; termId < dictionary.size(); termId++) {
+                byte[] termBytes = dictionary.getTerm(termId).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(termBytes.length);
+                out.write(termBytes);
+            }
+            out.writeInt(movieReviews.size());
+            for (MovieReview review : movieReviews) {
+                out.writeByte(review.getSentiment() ? 1 : 0);
+                out.writeInt(review.getUniqueTermCount());
+                writeInts(out, review.getTermIds());
+                writeInts(out, review.getTermCounts());
+            }
+            writeInts(out, termInCorpusFreqs);
+            writeInts(out, termInReviewFreqs);
+            writeDoubles(out, idfs);
+            writeDoubles(out, smoothIdfs);
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Memory maps a snapshot and rebuilds the corpus from it.
+     *
+     * @param snapshotFile      The snapshot to read.
+     * @param fingerprint       Fingerprint of the review files as they are now.
+     * @param ignorePunctuation Whether punctuation should be ignored.
+     * @return The snapshot, or null if there is no snapshot, it has another version, or it was built from
+     * different files or with a different punctuation setting.
+     */
+    public static CorpusSnapshot read(File snapshotFile, long fingerprint, boolean ignorePunctuation) throws IOException {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 17 || in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getLong() != fingerprint || (in.get() == 1) != ignorePunctuation) {
+                return null;
+            }
+            TermDictionary dictionary = new TermDictionary();
+            int termCount = in.getInt();
+            byte[] termBytes = new byte[64];
+            for (int termId = 0; termId < termCount; termId++) {
+                int length = in.getInt();
+                if (length > termBytes.length) {
+                    termBytes = new byte[Math.max(length, termBytes.length * 2)];
+                }
+                in.get(termBytes, 0, length);
+                dictionary.getOrAddId(new String(termBytes, 0, length, StandardCharsets.UTF_8));
+            }
+            int reviewCount = in.getInt();
+            List<MovieReview> movieReviews = new ArrayList<>(reviewCount);
+            for (int i = 0; i < reviewCount; i++) {
+                boolean label = in.get() == 1;
+                int uniqueTerms = in.getInt();
+                int[] termIds = readInts(in, uniqueTerms);
+                int[] termCounts = readInts(in, uniqueTerms);
+                movieReviews.add(new MovieReview(termIds, termCounts, label, dictionary));
+            }
+            int[] termInCorpusFreqs = readInts(in, termCount);
+            int[] termInReviewFreqs = readInts(in, termCount);
+            double[] idfs = readDoubles(in, termCount);
+            double[] smoothIdfs = readDoubles(in, termCount);
+            return new CorpusSnapshot(dictionary, movieReviews, termInCorpusFreqs, termInReviewFreqs, idfs, smoothIdfs);
+        } catch (RuntimeException e) {
+            // A truncated or corrupt snapshot (e.g. BufferUnderflowException) is treated like a stale one.
+            return null;
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in, int length) {
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + length * 4);
+        return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer in, int length) {
+        double[] values = new double[length];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + length * 8);
+        return values;
+    }
+
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public List<MovieReview> getMovieReviews() {
+        return movieReviews;
+    }
+
+    public int[] getTermInCorpusFreqs() {
+        return termInCorpusFreqs;
+    }
+
+    public int[] getTermInReviewFreqs() {
+        return termInReviewFreqs;
+    }
+
+    public double[] getIdfs() {
+        return idfs;
+    }
+
+    public double[] getSmoothIdfs() {
+        return smoothIdfs;
+    }
+}
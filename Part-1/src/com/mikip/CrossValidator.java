@@ -0,0 +1,223 @@
+package com.mikip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs k-fold cross validation, training and testing the folds concurrently on a fork/join pool. Optionally the
+ * testing fold of each training fold is split into chunks that are classified in parallel as well; since the
+ * pool steals work, a fold waiting on its chunks lends its thread to them instead of blocking it.
+ * <p>
+ * Each fold gets its own classifier and its own FoldStats, and the stats are returned in the iteration order of the
+ * fold map, so as long as a classifier is deterministic the results are identical to testing the folds one at a
+ * time. With a parallelism of 1 the folds are run serially on the calling thread.
+ */
+public class CrossValidator {
+
+    /**
+     * Trains a classifier on a single training fold.
+     */
+    public interface FoldTrainer {
+        /**
+         * @param trainingList The reviews of the training fold.
+         * @return A classifier trained on the fold. Must be safe to call from several threads if testing is
+         * parallel, and must not share mutable state with the classifiers of other folds.
+         */
+        Classifier train(List<MovieReview> trainingList);
+    }
+
+    /**
+     * Notified as each fold finishes, e.g. to show progress while the other folds are still running.
+     */
+    public interface FoldListener {
+        /**
+         * Called on the thread that ran the fold, so it may be called by several threads at once.
+         *
+         * @param foldStats The stats of the fold that finished.
+         */
+        void foldFinished(FoldStats foldStats);
+    }
+
+    /**
+     * Testing folds are not split into chunks smaller than this.
+     */
+    private static final int MIN_CHUNK_SIZE = 16;
+    private int parallelism;
+    private boolean parallelTesting;
+
+    /**
+     * Creates a validator that runs the folds on one thread per available processor, classifying each testing fold
+     * on a single thread.
+     */
+    public CrossValidator() {
+        this(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * @param parallelism     How many threads to run folds on. 1 runs the folds serially on the calling thread.
+     * @param parallelTesting True if the testing fold of each fold should also be classified in parallel.
+     */
+    public CrossValidator(int parallelism, boolean parallelTesting) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        this.parallelTesting = parallelTesting;
+    }
+
+    /**
+     * Trains and tests every fold of the specified map.
+     *
+     * @param trainingToTestingMap Maps each training fold to its testing fold.
+     * @param trainer              Trains the classifier of each fold.
+     * @return The stats of each fold, in the iteration order of the map.
+     */
+    public List<FoldStats> run(Map<List<MovieReview>, List<MovieReview>> trainingToTestingMap, FoldTrainer trainer) {
+        return run(trainingToTestingMap, trainer, null);
+    }
+
+    /**
+     * Trains and tests every fold of the specified map, notifying the listener as each fold finishes.
+     *
+     * @param trainingToTestingMap Maps each training fold to its testing fold.
+     * @param trainer              Trains the classifier of each fold.
+     * @param listener             Notified as folds finish, in whatever order they finish. May be null.
+     * @return The stats of each fold, in the iteration order of the map.
+     */
+    public List<FoldStats> run(Map<List<MovieReview>, List<MovieReview>> trainingToTestingMap, FoldTrainer trainer,
+                               FoldListener listener) {
+        List<FoldTask> foldTasks = new ArrayList<>();
+        for (Map.Entry<List<MovieReview>, List<MovieReview>> fold : trainingToTestingMap.entrySet()) {
+            foldTasks.add(new FoldTask(fold.getKey(), fold.getValue(), trainer, listener));
+        }
+        List<FoldStats> foldStats = new ArrayList<>(foldTasks.size());
+        if (parallelism == 1) {
+            for (FoldTask foldTask : foldTasks) {
+                foldStats.add(foldTask.compute());
+            }
+            return foldStats;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (FoldTask foldTask : foldTasks) {
+                pool.execute(foldTask);
+            }
+            for (FoldTask foldTask : foldTasks) {
+                foldStats.add(foldTask.join());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return foldStats;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isParallelTesting() {
+        return parallelTesting;
+    }
+
+    /**
+     * Predicts the sentiment of every test review in a single batch and counts the predictions against the labels.
+     * Every classifier is tested through this, in cross validation or otherwise.
+     *
+     * @param classifier  A trained classifier.
+     * @param testReviews Labelled reviews the classifier was not trained on.
+     * @return The stats of the predictions.
+     */
+    public static FoldStats evaluate(Classifier classifier, List<MovieReview> testReviews) {
+        Prediction[] predictions = classifier.predictBatch(testReviews);
+        FoldStats foldStats = new FoldStats();
+        for (int i = 0; i < predictions.length; i++) {
+            foldStats.addClassification(predictions[i].isPositive(), testReviews.get(i).getSentiment());
+        }
+        return foldStats;
+    }
+
+    /**
+     * Adds up the reviews that were classified correctly over every fold.
+     *
+     * @param foldStatsList The stats of each fold.
+     * @return How many reviews were classified correctly.
+     */
+    public static int getTotalTrue(List<FoldStats> foldStatsList) {
+        int totalTrue = 0;
+        for (FoldStats foldStats : foldStatsList) {
+            totalTrue += foldStats.getTotalTrue();
+        }
+        return totalTrue;
+    }
+
+    /**
+     * Trains the classifier of a single fold and classifies its testing fold.
+     */
+    private class FoldTask extends RecursiveTask<FoldStats> {
+        private List<MovieReview> trainingList;
+        private List<MovieReview> testingList;
+        private FoldTrainer trainer;
+        private FoldListener listener;
+
+        FoldTask(List<MovieReview> trainingList, List<MovieReview> testingList, FoldTrainer trainer,
+                 FoldListener listener) {
+            this.trainingList = trainingList;
+            this.testingList = testingList;
+            this.trainer = trainer;
+            this.listener = listener;
+        }
+
+        @Override
+        protected FoldStats compute() {
+            long start = System.nanoTime();
+            Classifier classifier = trainer.train(trainingList);
+            PipelineMetrics.get().getStage(PipelineMetrics.TRAIN).recordSince(start);
+            start = System.nanoTime();
+            FoldStats foldStats;
+            if (parallelTesting && parallelism > 1) {
+                foldStats = new TestTask(classifier, testingList, 0, testingList.size()).compute();
+            } else {
+                foldStats = evaluate(classifier, testingList);
+            }
+            PipelineMetrics.get().getStage(PipelineMetrics.TEST).recordSince(start);
+            if (listener != null) {
+                listener.foldFinished(foldStats);
+            }
+            return foldStats;
+        }
+    }
+
+    /**
+     * Classifies a range of a testing fold, splitting it in half until the chunks are small enough, and each chunk as
+     * a batch. FoldStats only count, so adding up the stats of the chunks gives the same stats as a serial pass.
+     */
+    private static class TestTask extends RecursiveTask<FoldStats> {
+        private Classifier classifier;
+        private List<MovieReview> testingList;
+        private int lower;
+        private int upper;
+
+        TestTask(Classifier classifier, List<MovieReview> testingList, int lower, int upper) {
+            this.classifier = classifier;
+            this.testingList = testingList;
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        protected FoldStats compute() {
+            if (upper - lower <= MIN_CHUNK_SIZE * 2) {
+                return evaluate(classifier, testingList.subList(lower, upper));
+            }
+            int middle = (lower + upper) >>> 1;
+            TestTask upperHalf = new TestTask(classifier, testingList, middle, upper);
+            upperHalf.fork();
+            FoldStats foldStats = new TestTask(classifier, testingList, lower, middle).compute();
+            foldStats.add(upperHalf.join());
+            return foldStats;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.mikip;
+
+import java.io.IOException;
+
+/**
+ * Runs classification from the command line, without a display, e.g. as a scheduled job on a server.
+ * Takes the same options as the GUI, see ClassifierOptions.getUsage(). Prints the stats of every fold as it
+ * finishes, then the same results the GUI shows, and with --metrics-report the time spent in each stage.
+ */
+public class HeadlessRunner {
+
+    public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals("--help")) {
+            System.out.println(ClassifierOptions.getUsage());
+            return;
+        }
+        ClassifierOptions options;
+        try {
+            options = ClassifierOptions.fromArgs(args);
+            options.validate();
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ClassifierOptions.getUsage());
+            System.exit(1);
+            return;
+        }
+        ClassificationRunner runner = new ClassificationRunner(options);
+        String[] results = runner.run(new ClassificationRunner.ProgressListener() {
+            @Override
+            public void foldFinished(String classifierName, int foldsFinished, int foldCount, FoldStats foldStats) {
+                System.out.println(ClassificationRunner.formatFoldProgress(classifierName, foldsFinished, foldCount, foldStats));
+            }
+        });
+        System.out.println(runner.getParser().getLoadReport());
+        for (String result : results) {
+            System.out.println();
+            System.out.print(result);
+        }
+        if (options.shouldReportMetrics()) {
+            System.out.println();
+            System.out.print(PipelineMetrics.get().getReport());
+        }
+    }
+}
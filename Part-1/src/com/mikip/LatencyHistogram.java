@@ -0,0 +1,108 @@
+package com.mikip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets a quarter of a power of two wide, from a microsecond up to about an hour, so a
+ * percentile is accurate to within about 19% while recording costs a few atomic updates and the histogram never
+ * grows. Safe to record into and read from any number of threads at once.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Durations below 4 microseconds get a bucket per microsecond. Above, each power of two is split into 4 buckets;
+     * the bucket of a duration is 4 times its exponent plus the 2 bits below its leading bit.
+     */
+    private static final int BUCKET_COUNT = 4 * 32;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos A duration, e.g. the difference of two System.nanoTime() calls.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(getBucket(micros));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    private static int getBucket(long micros) {
+        if (micros < 4) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int bucket = exponent * 4 + (int) ((micros >>> (exponent - 2)) & 3);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return The largest duration, in microseconds, that falls in the bucket.
+     */
+    private static long getBucketUpperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4;
+        return ((long) (4 + bucket % 4 + 1) << (exponent - 2)) - 1;
+    }
+
+    /**
+     * @param percentile From 0 to 100, e.g. 99 for the 99th percentile.
+     * @return The duration, in milliseconds, that the specified share of the recorded durations do not exceed, rounded
+     * up to the bucket it falls in. 0 if nothing was recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            snapshot[bucket] = counts.get(bucket);
+            total += snapshot[bucket];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += snapshot[bucket];
+            if (seen >= rank) {
+                // Never report more than the longest duration actually recorded
+                return Math.min(getBucketUpperBound(bucket) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long count = this.count.get();
+        return (count == 0) ? 0 : totalNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Forgets everything recorded so far. Durations recorded while resetting may be partly forgotten.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
@@ -0,0 +1,249 @@
+package com.mikip;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A trained classifier saved in a versioned binary file, together with the term dictionary and idfs it was trained
+ * with, so a scoring process can memory map it and classify new reviews without reading the training corpus.
+ * <p>
+ * Each classifier writes and reads its own section: a perceptron the weights and bias it classifies with (the
+ * averaged ones, if it was trained with averaging), naive bayes its compiled log probability tables, so neither
+ * has anything left to compute when the model is read. Layout, all values big-endian:
+ * <pre>
+ * int magic, int version, byte classifierType, byte ignorePunctuation
+ * int termCount, then termCount x (int byteLength, UTF-8 bytes), double[termCount] idfs
+ * Perceptron:  byte useTfIdf, double bias, int weightCount, double[weightCount] weights
+ * Naive bayes: byte useTfIdf, int vocabSize, double unseenLogProb, double posLogDenominator,
+ *              double negLogDenominator, int termCount, int[termCount] posTermFreqs, int[termCount] negTermFreqs,
+ *              double[termCount] posLogProbs, double[termCount] negLogProbs, double[termCount] commonTfIdfs,
+ *              double[termCount] posCommonLogProbs, double[termCount] negCommonLogProbs
+ * </pre>
+ */
+public class ModelSnapshot {
+
+    private static final int MAGIC = 0x4D524D44; // "MRMD"
+    /**
+     * Bump whenever the layout or the meaning of a saved classifier changes. Older models are rejected, since unlike a
+     * corpus snapshot a model cannot be rebuilt without the training corpus.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The classifier types. Part 2 uses its own types for its classifiers, so its models are rejected here.
+     */
+    public static final byte PERCEPTRON = 3;
+    public static final byte NAIVE_BAYES = 4;
+
+    private TermDictionary dictionary;
+    private double[] idfs;
+    private boolean ignorePunctuation;
+    private Perceptron perceptron;
+    private NaiveBayes naiveBayes;
+
+    /**
+     * @param dictionary        The dictionary the classifier was trained with.
+     * @param idfs              The idf of every word of the dictionary, indexed by term id.
+     * @param ignorePunctuation Whether punctuation was ignored when the training reviews were tokenized.
+     */
+    public ModelSnapshot(TermDictionary dictionary, double[] idfs, boolean ignorePunctuation, Perceptron perceptron) {
+        this(dictionary, idfs, ignorePunctuation);
+        this.perceptron = perceptron;
+    }
+
+    /**
+     * @param naiveBayes A naive bayes classifier.
+     * @see #ModelSnapshot(TermDictionary, double[], boolean, Perceptron)
+     */
+    public ModelSnapshot(TermDictionary dictionary, double[] idfs, boolean ignorePunctuation, NaiveBayes naiveBayes) {
+        this(dictionary, idfs, ignorePunctuation);
+        this.naiveBayes = naiveBayes;
+    }
+
+    private ModelSnapshot(TermDictionary dictionary, double[] idfs, boolean ignorePunctuation) {
+        this.dictionary = dictionary;
+        this.idfs = idfs;
+        this.ignorePunctuation = ignorePunctuation;
+    }
+
+    /**
+     * @param modelDir       Folder to keep models in.
+     * @param classifierName ClassificationRunner.PERCEPTRON or NAIVE_BAYES.
+     * @return Where the model of the specified classifier is stored, e.g. perceptron.model.
+     */
+    public static File getModelFile(File modelDir, String classifierName) {
+        return new File(modelDir, classifierName.toLowerCase().replace(' ', '-') + ".model");
+    }
+
+    /**
+     * Writes the model to a temporary file and then moves it into place, so a reader never sees a partially written
+     * model.
+     *
+     * @param modelFile Where to write the model.
+     */
+    public void write(File modelFile) throws IOException {
+        File tempFile = new File(modelFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte((perceptron != null) ? PERCEPTRON : NAIVE_BAYES);
+            out.writeByte(ignorePunctuation ? 1 : 0);
+            out.writeInt(dictionary.size());
+            for (int termId = 0; termId < dictionary.size(); termId++) {
+                byte[] termBytes = dictionary.getTerm(termId).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(termBytes.length);
+                out.write(termBytes);
+            }
+            writeDoubles(out, Arrays.copyOf(idfs, dictionary.size()));
+            if (perceptron != null) {
+                perceptron.writeModel(out);
+            } else {
+                naiveBayes.writeModel(out);
+            }
+        }
+        Files.move(tempFile.toPath(), modelFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Memory maps a model and rebuilds the classifier from it.
+     *
+     * @param modelFile The model to read.
+     * @return The model.
+     * @throws IOException If the file cannot be read, is not a model of this part, has another version or is corrupt.
+     */
+    public static ModelSnapshot read(File modelFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(modelFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 10 || in.getInt() != MAGIC) {
+                throw new IOException(modelFile + " is not a model file");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException(modelFile + " has model version " + version + ", expected " + VERSION);
+            }
+            byte classifierType = in.get();
+            if (classifierType != PERCEPTRON && classifierType != NAIVE_BAYES) {
+                throw new IOException(modelFile + " holds an unknown classifier type " + classifierType);
+            }
+            boolean ignorePunctuation = in.get() == 1;
+            TermDictionary dictionary = new TermDictionary();
+            int termCount = in.getInt();
+            byte[] termBytes = new byte[64];
+            for (int termId = 0; termId < termCount; termId++) {
+                int length = in.getInt();
+                if (length > termBytes.length) {
+                    termBytes = new byte[Math.max(length, termBytes.length * 2)];
+                }
+                in.get(termBytes, 0, length);
+                dictionary.getOrAddId(new String(termBytes, 0, length, StandardCharsets.UTF_8));
+            }
+            ModelSnapshot model = new ModelSnapshot(dictionary, readDoubles(in, termCount), ignorePunctuation);
+            if (classifierType == PERCEPTRON) {
+                model.perceptron = Perceptron.readModel(in);
+            } else {
+                model.naiveBayes = NaiveBayes.readModel(in);
+            }
+            return model;
+        } catch (RuntimeException e) {
+            // A truncated or corrupt model, e.g. BufferUnderflowException
+            throw new IOException(modelFile + " is corrupt", e);
+        }
+    }
+
+    /**
+     * Tokenizes a new review the way the training reviews were tokenized, and weights it with the saved idfs. Words
+     * the dictionary does not have are left out, since no classifier has a weight for them, and the dictionary is not
+     * changed, so reviews can be created from several threads at once.
+     *
+     * @param contents The text of the review.
+     * @return The review, labelled negative since its sentiment is unknown.
+     */
+    public MovieReview createReview(ByteBuffer contents) {
+        HashMap<String, Integer> bagOfWords = MovieReview.tokenize(contents, ignorePunctuation);
+        // Pack (id, count) pairs into longs so a single primitive sort orders both arrays by id.
+        long[] packed = new long[bagOfWords.size()];
+        int termCount = 0;
+        for (String word : bagOfWords.keySet()) {
+            int termId = dictionary.getId(word);
+            if (termId >= 0) {
+                packed[termCount++] = ((long) termId << 32) | bagOfWords.get(word);
+            }
+        }
+        Arrays.sort(packed, 0, termCount);
+        int[] termIds = new int[termCount];
+        int[] termCounts = new int[termCount];
+        for (int i = 0; i < termCount; i++) {
+            termIds[i] = (int) (packed[i] >>> 32);
+            termCounts[i] = (int) packed[i];
+        }
+        MovieReview review = new MovieReview(termIds, termCounts, false, dictionary);
+        double[] tfLogNorms = review.getTfLogNorms();
+        for (int i = 0; i < termCount; i++) {
+            review.setTfIdfAt(i, tfLogNorms[i] * idfs[termIds[i]]);
+        }
+        return review;
+    }
+
+    /**
+     * @return The saved classifier. Give it reviews created by createReview, or any reviews that use the dictionary
+     * of this model.
+     */
+    public Classifier getClassifier() {
+        return (perceptron != null) ? perceptron : naiveBayes;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static int[] readInts(ByteBuffer in, int length) {
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + length * 4);
+        return values;
+    }
+
+    static double[] readDoubles(ByteBuffer in, int length) {
+        double[] values = new double[length];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + length * 8);
+        return values;
+    }
+
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public boolean shouldIgnorePunctuation() {
+        return ignorePunctuation;
+    }
+
+    /**
+     * @return The saved perceptron, or null if the model holds another classifier.
+     */
+    public Perceptron getPerceptron() {
+        return perceptron;
+    }
+
+    /**
+     * @return The saved naive bayes classifier, or null if the model holds another classifier.
+     */
+    public NaiveBayes getNaiveBayes() {
+        return naiveBayes;
+    }
+}
@@ -1,91 +1,277 @@
 package com.mikip;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+/**
+ * A single movie review, stored as a sparse vector over the ids of a corpus-wide TermDictionary.
+ * The term ids are sorted in ascending order, and the counts, log normalized tfs and tf-idfs are parallel
+ * arrays, so the i-th entry of each belongs to the i-th term id.
+ */
 public class MovieReview {
     /**
-     * Maps a word to how many times it appears in this review (tf)
+     * Dictionary the term ids of this review belong to.
      */
-    private HashMap<String, Integer> bagOfWords;
+    private TermDictionary dictionary;
+    /**
+     * Ids of the words that appear in this review, in ascending order.
+     */
+    private int[] termIds;
+    /**
+     * How many times each word appears in this review (tf)
+     */
+    private int[] termCounts;
 
-    private HashMap<String, Double> tfLogNormMap;
+    private double[] tfLogNorms;
     /**
-     * Maps a word to its term frequency-inverse document frequency (tfidf)
+     * The term frequency-inverse document frequency (tfidf) of each word. All 0 until calculated by the parser.
      */
-    private HashMap<String, Double> tfIdfMap;
+    private double[] tfIdfs;
     /**
      * Indicates whether this was a positive or negative review. True is positive. False is negative.
      */
     private boolean sentimentLabel;
+    /**
+     * The idf generation the tf-idfs were last calculated in. See ReviewDBParser.refreshTfIdf().
+     */
+    private int tfIdfGeneration;
 
-    public MovieReview(File file, boolean label, boolean noPunctuation) {
+    public MovieReview(File file, boolean label, boolean noPunctuation, TermDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.sentimentLabel = label; // Set sentimentLabel
         try {
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            bagOfWords = new HashMap<>();
-            tfIdfMap = new HashMap<>();
-            tfLogNormMap = new HashMap<>();
-            String nextLine = br.readLine();
-            while (nextLine != null) {
-                // Get words in line
-                String[] words = nextLine.split(" ");
-                // Updating frequency word map
-                Pattern p = null;
-                if (noPunctuation) {
-                    p = Pattern.compile("\\p{Punct}");
-                }
-                for (int i = 0; i < words.length; i++) {
-                    if (p != null) {
-                        if (!p.matcher(words[i]).matches()) {
-                            if (bagOfWords.get(words[i]) == null) {
-                                bagOfWords.put(words[i], 1);
-                            } else {
-                                bagOfWords.put(words[i], bagOfWords.get(words[i]) + 1);
-                            }
-                        }
-                    } else {
-                        if (bagOfWords.get(words[i]) == null) { // store all words
-                            bagOfWords.put(words[i], 1);
-                        } else {
-                            bagOfWords.put(words[i], bagOfWords.get(words[i]) + 1);
-                        }
-                    }
-                }
-                for (String word : bagOfWords.keySet()) {
-                    int tf = bagOfWords.get(word);
-                    double tfWeighted = tf > 0 ? Math.log(tf) + 1 : 0;
-                    tfLogNormMap.put(word, tfWeighted);
-                }
-                nextLine = br.readLine();
-            }
-            this.sentimentLabel = label; // Set sentimentLabel
-            br.close();
+            initTerms(tokenize(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), noPunctuation));
+            PipelineMetrics.get().addFilesRead(1);
         } catch (IOException e) {
             e.printStackTrace(); // For now
+            initTerms(new HashMap<String, Integer>());
         }
     }
 
+    /**
+     * Creates a review from the raw contents of a review file, e.g. a memory-mapped file buffer. The resulting
+     * review is identical to the one built from the file itself.
+     *
+     * @param contents      The contents of the review file. Read from its position to its limit.
+     * @param label         True if the review is positive, false if negative.
+     * @param noPunctuation True if tokens made of a single punctuation character should be ignored.
+     * @param dictionary    Dictionary to look up and add the words of the review in.
+     */
+    public MovieReview(ByteBuffer contents, boolean label, boolean noPunctuation, TermDictionary dictionary) {
+        this(tokenize(contents, noPunctuation), label, dictionary);
+    }
+
+    /**
+     * Creates a review from words that have already been counted, e.g. by a ReviewTokenizer on another thread.
+     *
+     * @param bagOfWords Maps a word to how many times it appears in the review.
+     * @param label      True if the review is positive, false if negative.
+     * @param dictionary Dictionary to look up and add the words of the review in.
+     */
+    public MovieReview(HashMap<String, Integer> bagOfWords, boolean label, TermDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.sentimentLabel = label;
+        initTerms(bagOfWords);
+    }
+
+    /**
+     * Creates a review from a sparse term vector, e.g. one read back from a CorpusSnapshot.
+     *
+     * @param termIds    Ids of the words in the review, in ascending order.
+     * @param termCounts How many times each word appears, parallel to termIds.
+     * @param label      True if the review is positive, false if negative.
+     * @param dictionary Dictionary the term ids belong to.
+     */
+    public MovieReview(int[] termIds, int[] termCounts, boolean label, TermDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.sentimentLabel = label;
+        this.termIds = termIds;
+        this.termCounts = termCounts;
+        initWeights();
+    }
+
+    /**
+     * Counts the words of a review in a single pass over its text.
+     *
+     * @param contents      The review text.
+     * @param noPunctuation True if tokens made of a single punctuation character should be ignored.
+     * @return Maps a word to how many times it appears in the review.
+     */
+    public static HashMap<String, Integer> tokenize(ByteBuffer contents, boolean noPunctuation) {
+        HashMap<String, Integer> bagOfWords = new HashMap<>();
+        PipelineMetrics.get().addTokensProduced(new ReviewTokenizer(noPunctuation).tokenize(contents, bagOfWords));
+        return bagOfWords;
+    }
+
+    /**
+     * Turns the counted words into sorted id and count arrays, then computes the log normalized tf of every
+     * word once the whole review has been read.
+     */
+    private void initTerms(HashMap<String, Integer> bagOfWords) {
+        // Pack (id, count) pairs into longs so a single primitive sort orders both arrays by id.
+        long[] packed = new long[bagOfWords.size()];
+        int i = 0;
+        for (String word : bagOfWords.keySet()) {
+            packed[i++] = ((long) dictionary.getOrAddId(word) << 32) | bagOfWords.get(word);
+        }
+        Arrays.sort(packed);
+        termIds = new int[packed.length];
+        termCounts = new int[packed.length];
+        for (i = 0; i < packed.length; i++) {
+            termIds[i] = (int) (packed[i] >>> 32);
+            termCounts[i] = (int) packed[i];
+        }
+        initWeights();
+    }
+
+    private void initWeights() {
+        tfLogNorms = new double[termIds.length];
+        tfIdfs = new double[termIds.length];
+        for (int i = 0; i < termIds.length; i++) {
+            int tf = termCounts[i];
+            tfLogNorms[i] = tf > 0 ? Math.log(tf) + 1 : 0;
+        }
+    }
+
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return How many unique words are in this review. The length of every term array.
+     */
+    public int getUniqueTermCount() {
+        return termIds.length;
+    }
+
+    /**
+     * @return Ids of the words in this review, in ascending order. Must not be modified.
+     */
+    public int[] getTermIds() {
+        return termIds;
+    }
+
+    /**
+     * @return How many times each word appears, parallel to getTermIds(). Must not be modified.
+     */
+    public int[] getTermCounts() {
+        return termCounts;
+    }
+
+    /**
+     * @return The log normalized tf of each word, parallel to getTermIds(). Must not be modified.
+     */
+    public double[] getTfLogNorms() {
+        return tfLogNorms;
+    }
+
+    /**
+     * @return The tf-idf of each word, parallel to getTermIds(). Must not be modified.
+     */
+    public double[] getTfIdfs() {
+        return tfIdfs;
+    }
+
+    /**
+     * @param index Index into the term arrays.
+     * @param tfIdf The new tf-idf of the word at that index.
+     */
+    public void setTfIdfAt(int index, double tfIdf) {
+        tfIdfs[index] = tfIdf;
+    }
+
+    public int getTfIdfGeneration() {
+        return tfIdfGeneration;
+    }
+
+    public void setTfIdfGeneration(int tfIdfGeneration) {
+        this.tfIdfGeneration = tfIdfGeneration;
+    }
+
+    /**
+     * @param termId Id of a word.
+     * @return Index of the word in the term arrays, or a negative number if the word is not in this review.
+     */
+    public int indexOf(int termId) {
+        return Arrays.binarySearch(termIds, termId);
+    }
+
+    private int indexOf(String term) {
+        int termId = dictionary.getId(term);
+        return termId < 0 ? -1 : indexOf(termId);
+    }
+
+    /*
+     * String based adapters over the term arrays. Each call looks the word up in the dictionary, and the map
+     * getters build a new map on every call, so classifiers should use the arrays directly.
+     */
+
+    public Iterator<String> getBagOfWordsIterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < termIds.length;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return dictionary.getTerm(termIds[next++]);
+            }
+        };
+    }
+
+    public int getTermFreq(String term) {
+        int index = indexOf(term);
+        return index < 0 ? 0 : termCounts[index];
+    }
+
+    public double getTfIdf(String term) {
+        int index = indexOf(term);
+        return index < 0 ? 0 : tfIdfs[index];
+    }
+
     public HashMap<String, Integer> getBagOfWords() {
+        HashMap<String, Integer> bagOfWords = new HashMap<>();
+        for (int i = 0; i < termIds.length; i++) {
+            bagOfWords.put(dictionary.getTerm(termIds[i]), termCounts[i]);
+        }
         return bagOfWords;
     }
 
     public HashMap<String, Double> getTfLogNormMap() {
-        return tfLogNormMap;
+        return toMap(tfLogNorms);
     }
 
     public void setTfIdf(String word, double tfIdf) {
-        if (bagOfWords.get(word) == null) {
+        int index = indexOf(word);
+        if (index < 0) {
             System.out.println("Word not in review");
         } else {
-            tfIdfMap.put(word, tfIdf);
+            tfIdfs[index] = tfIdf;
         }
     }
 
 
     public HashMap<String, Double> getTfIdfMap() {
-        return tfIdfMap;
+        return toMap(tfIdfs);
+    }
+
+    private HashMap<String, Double> toMap(double[] values) {
+        HashMap<String, Double> map = new HashMap<>();
+        for (int i = 0; i < termIds.length; i++) {
+            map.put(dictionary.getTerm(termIds[i]), values[i]);
+        }
+        return map;
     }
 
     public boolean getSentiment() {
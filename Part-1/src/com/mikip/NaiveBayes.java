@@ -1,21 +1,23 @@
 package com.mikip;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
  * Created by mpokr on 3/16/2017.
  */
-public class NaiveBayes {
+public class NaiveBayes implements Classifier {
     /**
-     * Maps word to how many times it occurs in negative reviews
+     * How many times each word occurs in negative reviews, indexed by term id.
      */
-    private HashMap<String, Integer> negTermFreqMap;
+    private int[] negTermFreqs;
     /**
-     * Maps word to how many times it occurs in positive reviews.
+     * How many times each word occurs in positive reviews, indexed by term id.
      */
-    private HashMap<String, Integer> posTermFreqMap;
+    private int[] posTermFreqs;
     /**
      * List of MovieReviews with a negative sentiment.
      */
@@ -32,14 +34,6 @@ public class NaiveBayes {
      * Count of total words in positive reviews
      */
     private int posTotalTerms;
-    /**
-     * Count of total unique words in negative reviews
-     */
-    private int negUniqueTerms;
-    /**
-     * Count of total unique words in positive reviews
-     */
-    private int posUniqueTerms;
     /**
      * Sum of the tf-idfs of all words in negative reviews
      */
@@ -56,83 +50,73 @@ public class NaiveBayes {
      * Count of how many unique words there are in positive and negative reviews.
      */
     private int vocabSize;
+
+    private boolean useTfIdf;
     /**
-     * Maps a word to its average tf-idf across all reviews that have the word.
-     * Not currently used**
+     * The log probability of each word in the positive and negative class, indexed by term id, compiled from the
+     * counts for scoring by term counts. Words that do not occur in a class have the unseen word log probability.
      */
-    private HashMap<String, Double> meanTfIdfMap;
+    private double[] posLogProbs;
+    private double[] negLogProbs;
+    private double unseenLogProb;
     /**
-     * Maps a word to how many reviews it has appeared in.
+     * The logs of the denominators of the positive and negative probabilities, for scoring by tf-idf.
      */
-    private HashMap<String, Integer> termInReviewFreqMap;
-
-    private boolean useTfIdf;
+    private double posLogDenominator;
+    private double negLogDenominator;
+    /**
+     * For scoring by tf-idf: the tf-idf a word has in the training reviews that contain it once, indexed by term id,
+     * or NaN, and the log probabilities of the word in each class at that tf-idf. A word that occurs once in a review
+     * has this tf-idf, which covers most words of most reviews.
+     */
+    private double[] commonTfIdfs;
+    private double[] posCommonLogProbs;
+    private double[] negCommonLogProbs;
 
     /**
-     * Initializes fields of the NaiveBayes object, and populates necessary fields for later training calculations.
+     * Initializes fields of the NaiveBayes object, and counts the reviews the way train does. The vocabulary is every
+     * word of the reviews.
      * @param movieReviews A list of movie reviews
-     * @param vocabSize The size of the vocabulary (unique word count)
-     * @param termsInReviewFreqMap HashMap that maps a word to how many reviews it appears in.
      */
-    public NaiveBayes(List<MovieReview> movieReviews, int vocabSize, HashMap<String, Integer> termsInReviewFreqMap, boolean useTfIdf) {
-        negTermFreqMap = new HashMap<>();
-        posTermFreqMap = new HashMap<>();
+    public NaiveBayes(List<MovieReview> movieReviews, boolean useTfIdf) {
+        this(useTfIdf);
+        train(movieReviews);
+    }
+
+    /**
+     * Builds the classifier straight from counts, e.g. the counts of a training fold derived by subtracting the
+     * counts of its testing fold from the counts of the corpus, in time proportional to the vocabulary. The vocabulary
+     * is every word the counts have. Keeps no reviews, so trainAll() does nothing.
+     * @param counts The counts of the training reviews. Not copied, so they must not change afterwards.
+     */
+    public NaiveBayes(NaiveBayesCounts counts, boolean useTfIdf) {
+        this(useTfIdf);
+        initCounts(counts);
+        vocabSize = counts.getVocabularySize();
+        compileLogProbs();
+    }
+
+    /**
+     * Creates a classifier with no reviews and no counts, for the other constructors and readModel to fill in.
+     */
+    private NaiveBayes(boolean useTfIdf) {
         negReviews = new ArrayList<>();
         posReviews = new ArrayList<>();
-        meanTfIdfMap = new HashMap<>();
         this.useTfIdf = useTfIdf;
-        this.termInReviewFreqMap = termsInReviewFreqMap;
-        initReviewTermFreqMaps(movieReviews);
-        for (MovieReview movieReview : negReviews) {
-            for (String wordInBag : movieReview.getBagOfWords().keySet()) {
-                negTfIdfSum += movieReview.getTfIdfMap().get(wordInBag);
-            }
-        }
-        for (MovieReview movieReview : posReviews) {
-            for (String wordInBag : movieReview.getBagOfWords().keySet()) {
-                posTfIdfSum += movieReview.getTfIdfMap().get(wordInBag);
-            }
-        }
-        this.vocabSize = vocabSize;
-        calculateMeanTfIdfs();
-        int k = 1;
     }
 
-
     /**
-     * Fills up the negative and positive review frequency maps. Only used in the constructor.
-     * @param movieReviews The list of movie reviews.
+     * Takes the term frequencies and totals from the counts. Only used in the constructors.
+     * @param counts The counts of the training reviews.
      */
-    private void initReviewTermFreqMaps(List<MovieReview> movieReviews) {
-        for (MovieReview review : movieReviews) {
-            if (review.getSentiment()) {
-                posReviews.add(review);  // Add  positive review to list of reviews
-            } else {
-                negReviews.add(review); // Add negative review to list of reviews.
-            }
-            for (String word : review.getBagOfWords().keySet()) {
-                int freq = review.getBagOfWords().get(word); // Freq of this word in this review
-                if (review.getSentiment()) {
-                    // Put into positive frequency map, since review is positive.
-                    if (posTermFreqMap.get(word) == null) {
-                        posTermFreqMap.put(word, freq);
-                        posUniqueTerms++; // Word never encountered before. Add to unique word count.
-                    } else {
-                        posTermFreqMap.put(word, posTermFreqMap.get(word) + freq);
-                    }
-                    posTotalTerms++; // Add to total word count.
-                } else {
-                    // Put into negative frequency map, since review is negative.
-                    if (negTermFreqMap.get(word) == null) {
-                        negTermFreqMap.put(word, freq);
-                        negUniqueTerms++; // Word never encountered before. Add to unique word count.
-                    } else {
-                        negTermFreqMap.put(word, negTermFreqMap.get(word) + freq);
-                    }
-                    negTotalTerms++; // Add to total word count.
-                }
-            }
-        }
+    private void initCounts(NaiveBayesCounts counts) {
+        posTermFreqs = counts.getPosTermFreqs();
+        negTermFreqs = counts.getNegTermFreqs();
+        commonTfIdfs = counts.getCommonTfIdfs();
+        posTotalTerms = counts.getPosTotalTerms();
+        negTotalTerms = counts.getNegTotalTerms();
+        posTfIdfSum = counts.getPosTfIdfSum();
+        negTfIdfSum = counts.getNegTfIdfSum();
     }
 
 
@@ -144,6 +128,81 @@ public class NaiveBayes {
             trainReview(posReview);
         }
     }
+    /**
+     * Compiles the counts into the log probabilities classify() sums, so scoring needs no lookups, allocation or, when
+     * scoring by term counts, logs. Scoring by tf-idf still takes a log per word and class, since the probability
+     * depends on the tf-idf of the word in the review being scored.
+     */
+    private void compileLogProbs() {
+        unseenLogProb = Math.log(M * (1 / (double) vocabSize));
+        posLogProbs = new double[posTermFreqs.length];
+        negLogProbs = new double[negTermFreqs.length];
+        for (int termId = 0; termId < posTermFreqs.length; termId++) {
+            posLogProbs[termId] = (posTermFreqs[termId] == 0) ? unseenLogProb
+                    : Math.log((posTermFreqs[termId] + 1) / (double) (posTotalTerms + vocabSize));
+            negLogProbs[termId] = (negTermFreqs[termId] == 0) ? unseenLogProb
+                    : Math.log((negTermFreqs[termId] + 1) / (double) (negTotalTerms + vocabSize));
+        }
+        posLogDenominator = Math.log(posTfIdfSum + vocabSize);
+        negLogDenominator = Math.log(negTfIdfSum + vocabSize);
+        posCommonLogProbs = new double[commonTfIdfs.length];
+        negCommonLogProbs = new double[commonTfIdfs.length];
+        for (int termId = 0; termId < commonTfIdfs.length; termId++) {
+            if (!Double.isNaN(commonTfIdfs[termId])) {
+                posCommonLogProbs[termId] = getTfIdfLogProb(posTermFreqs[termId], commonTfIdfs[termId], posLogDenominator);
+                negCommonLogProbs[termId] = getTfIdfLogProb(negTermFreqs[termId], commonTfIdfs[termId], negLogDenominator);
+            }
+        }
+    }
+
+    /**
+     * Writes the compiled log probability tables and the term frequencies tf-idf scoring still needs, for a
+     * ModelSnapshot.
+     */
+    void writeModel(DataOutputStream out) throws IOException {
+        out.writeByte(useTfIdf ? 1 : 0);
+        out.writeInt(vocabSize);
+        out.writeDouble(unseenLogProb);
+        out.writeDouble(posLogDenominator);
+        out.writeDouble(negLogDenominator);
+        out.writeInt(posTermFreqs.length);
+        ModelSnapshot.writeInts(out, posTermFreqs);
+        ModelSnapshot.writeInts(out, negTermFreqs);
+        ModelSnapshot.writeDoubles(out, posLogProbs);
+        ModelSnapshot.writeDoubles(out, negLogProbs);
+        ModelSnapshot.writeDoubles(out, commonTfIdfs);
+        ModelSnapshot.writeDoubles(out, posCommonLogProbs);
+        ModelSnapshot.writeDoubles(out, negCommonLogProbs);
+    }
+
+    /**
+     * Reads a classifier written by writeModel. It has no training reviews, so trainAll() does nothing.
+     */
+    static NaiveBayes readModel(ByteBuffer in) {
+        NaiveBayes naiveBayes = new NaiveBayes(in.get() == 1);
+        naiveBayes.vocabSize = in.getInt();
+        naiveBayes.unseenLogProb = in.getDouble();
+        naiveBayes.posLogDenominator = in.getDouble();
+        naiveBayes.negLogDenominator = in.getDouble();
+        int termCount = in.getInt();
+        naiveBayes.posTermFreqs = ModelSnapshot.readInts(in, termCount);
+        naiveBayes.negTermFreqs = ModelSnapshot.readInts(in, termCount);
+        naiveBayes.posLogProbs = ModelSnapshot.readDoubles(in, termCount);
+        naiveBayes.negLogProbs = ModelSnapshot.readDoubles(in, termCount);
+        naiveBayes.commonTfIdfs = ModelSnapshot.readDoubles(in, termCount);
+        naiveBayes.posCommonLogProbs = ModelSnapshot.readDoubles(in, termCount);
+        naiveBayes.negCommonLogProbs = ModelSnapshot.readDoubles(in, termCount);
+        return naiveBayes;
+    }
+
+    /**
+     * @return log((freq * tfIdf + 1) / denominator) for a word of a class, the unseen word log probability for a
+     * word the class does not have.
+     */
+    private double getTfIdfLogProb(int freq, double tfIdf, double logDenominator) {
+        return (freq == 0) ? unseenLogProb : Math.log1p(freq * tfIdf) - logDenominator;
+    }
+
     /**
      * Trains on a single review, and returns the predicted sentiment
      *
@@ -151,101 +210,89 @@ public class NaiveBayes {
      * @return True if positive sentiment, false if negative.
      */
     public boolean trainReview(MovieReview review) {
-        double posProb = 1;
-        double negProb = 1;
-        for (String word : review.getBagOfWords().keySet()) {
-            double[] trainedProb;
-            if (useTfIdf) {
-                trainedProb = trainWordTfIdf(review, word);
-            } else {
-                trainedProb = trainWord(review, word);
-            }
-
-            posProb += trainedProb[0];
-            negProb += trainedProb[1];
-        }
-        return posProb >= negProb;
+        return classify(review);
     }
 
     /**
-     * Trains on a single word from a single review, using relative frequencies, and returns an array containing the probability of the word being
-     * in the positive class, and the probability of the word being in the negative class.
+     * Sums the log probabilities of the words of the review in each class and picks the more likely class. Words
+     * the classifier has never seen have the unseen word log probability in both classes. Does not allocate, and is
+     * safe to call from several threads.
      *
-     * @param review The review to train on.
-     * @param word   The word from the specified review to train on.
-     * @return An array with two doubles. The first value is the probability that the word belongs to the positive class, the
-     * second double is the probability that the word belongs the negative class.
-     */
-    private double[] trainWord(MovieReview review, String word) {
-        double posFreq = posTermFreqMap.get(word) == null ? 0 : (double) posTermFreqMap.get(word);
-        double negFreq = negTermFreqMap.get(word) == null ? 0 : (double) negTermFreqMap.get(word);
-        double testPos = (posFreq + 1) / (posTotalTerms + vocabSize);
-        double testNeg = (negFreq + 1) / (negTotalTerms + vocabSize);
-        if (posFreq == 0) {
-            testPos = M * (1 / (double) vocabSize);
-        }
-        if (negFreq == 0) {
-            testNeg = M * (1 / (double) vocabSize);
-        }
-        return new double[]{Math.log(testPos), Math.log(testNeg)};
+     * @param review The review to classify.
+     * @return True if positive sentiment, false if negative.
+     */
+    public boolean classify(MovieReview review) {
+        return getLogOdds(review) >= 0;
     }
 
     /**
-     * Trains on a single word from a single review, using tf-idfs, and returns an array containing the probability of the word being
-     * in the positive class, and the probability of the word being in the negative class.
+     * Classifies a review the same way as classify.
      *
-     * @param review The review to train on.
-     * @param word   The word from the specified review to train on.
-     * @return An array with two doubles. The first value is the probability that the word belongs to the positive class, the
-     * second double is the probability that the word belongs the negative class.
-     */
-    private double[] trainWordTfIdf(MovieReview review, String word) {
-        double posFreq = posTermFreqMap.get(word) == null ? 0 : (double) posTermFreqMap.get(word);
-        double negFreq = negTermFreqMap.get(word) == null ? 0 : (double) negTermFreqMap.get(word);
-        double tfIdf = review.getTfIdfMap().get(word);
-        //double meanTfIdfSum = meanTfIdfMap.get(word) * vocabSize;
-        double testPos = (posFreq * tfIdf + 1) / (posTfIdfSum + vocabSize);//((posFreq * tfIdf) + 1) / (posTfIdfSum + meanTfIdfSum);
-        double testNeg = (negFreq * tfIdf + 1) / (negTfIdfSum + vocabSize);//((negFreq * tfIdf) + 1) / (negTfIdfSum + meanTfIdfSum);
-        if (posFreq == 0) {
-            testPos =  (M * (1/ (double) vocabSize));
-        }
-        if (negFreq == 0) {
-            testNeg = (M * (1 / (double) vocabSize));
+     * @return The prediction, scored as the log probability of the positive class minus that of the negative class.
+     */
+    @Override
+    public Prediction predict(MovieReview review) {
+        double logOdds = getLogOdds(review);
+        return new Prediction(logOdds, logOdds >= 0);
+    }
+
+    /**
+     * Counts and scores the reviews anew, discarding the reviews and counts the classifier was built from. The
+     * vocabulary is every word of the training reviews.
+     */
+    @Override
+    public void train(List<MovieReview> trainingReviews) {
+        negReviews = new ArrayList<>();
+        posReviews = new ArrayList<>();
+        for (MovieReview review : trainingReviews) {
+            if (review.getSentiment()) {
+                posReviews.add(review);
+            } else {
+                negReviews.add(review);
+            }
         }
-        return new double[]{Math.log(testPos), Math.log(testNeg)};
+        NaiveBayesCounts counts = NaiveBayesCounts.count(trainingReviews);
+        initCounts(counts);
+        vocabSize = counts.getVocabularySize();
+        compileLogProbs();
     }
 
     /**
-     * Calculates the mean tdf-idf for each word in the vocabulary, and populates the meanTfIdfMap with these values.
-     * Only used in the constructor.
+     * @return The sum of the log probabilities of the words of the review in the positive class minus the sum in
+     * the negative class. At least 0 if the positive class is at least as likely.
      */
-    private void calculateMeanTfIdfs() {
-        for (MovieReview review : negReviews) {
-            // Get the sum of the tfidfs for all words in negative reviews
-            for (String word : review.getBagOfWords().keySet()) {
-                if (meanTfIdfMap.get(word) == null) {
-                    meanTfIdfMap.put(word, review.getTfIdfMap().get(word));
+    private double getLogOdds(MovieReview review) {
+        double posProb = 1;
+        double negProb = 1;
+        int[] termIds = review.getTermIds();
+        if (useTfIdf) {
+            double[] tfIdfs = review.getTfIdfs();
+            for (int i = 0; i < termIds.length; i++) {
+                int termId = termIds[i];
+                if (termId >= commonTfIdfs.length) {
+                    posProb += unseenLogProb;
+                    negProb += unseenLogProb;
+                } else if (tfIdfs[i] == commonTfIdfs[termId]) {
+                    posProb += posCommonLogProbs[termId];
+                    negProb += negCommonLogProbs[termId];
                 } else {
-                    meanTfIdfMap.put(word, meanTfIdfMap.get(word) + review.getTfIdfMap().get(word));
+                    posProb += getTfIdfLogProb(posTermFreqs[termId], tfIdfs[i], posLogDenominator);
+                    negProb += getTfIdfLogProb(negTermFreqs[termId], tfIdfs[i], negLogDenominator);
                 }
             }
-        }
-        for (MovieReview review : posReviews) {
-            // Get the sum of the tfidfs for all words in positive reviews
-            for (String word : review.getBagOfWords().keySet()) {
-                if (meanTfIdfMap.get(word) == null) {
-                    meanTfIdfMap.put(word, review.getTfIdfMap().get(word));
+        } else {
+            for (int i = 0; i < termIds.length; i++) {
+                int termId = termIds[i];
+                if (termId < posLogProbs.length) {
+                    posProb += posLogProbs[termId];
+                    negProb += negLogProbs[termId];
                 } else {
-                    meanTfIdfMap.put(word, meanTfIdfMap.get(word) + review.getTfIdfMap().get(word));
+                    posProb += unseenLogProb;
+                    negProb += unseenLogProb;
                 }
             }
         }
-        // Find and put mean by dividing tfidf sum of each word by the amount of reviews it has appeared in.
-        for (String word : meanTfIdfMap.keySet()) {
-            double meanTfIdf = meanTfIdfMap.get(word) / termInReviewFreqMap.get(word);
-            meanTfIdfMap.put(word, meanTfIdf);
-        }
+        return posProb - negProb;
     }
 
-
 }
@@ -0,0 +1,184 @@
+package com.mikip;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The counts a NaiveBayes classifier is built from, for a set of reviews: how often each word occurs in the positive
+ * and negative reviews, how many reviews contain it, and the word and tf-idf totals of each class.
+ * <p>
+ * Counts add up, so the counts of a set of reviews can be merged from the counts of its parts, and the counts of a
+ * training fold are the counts of the whole corpus minus the counts of its testing fold. Building a model from counts
+ * then takes time proportional to the vocabulary instead of to the training reviews.
+ */
+public class NaiveBayesCounts {
+
+    /**
+     * How many times each word occurs in positive and in negative reviews, indexed by term id.
+     */
+    private int[] posTermFreqs;
+    private int[] negTermFreqs;
+    /**
+     * How many reviews each word appears in, indexed by term id.
+     */
+    private int[] termInReviewFreqs;
+    /**
+     * How many (review, word) pairs the positive and negative reviews have.
+     */
+    private int posTotalTerms;
+    private int negTotalTerms;
+    /**
+     * Sums of the tf-idfs of all words in positive and in negative reviews.
+     */
+    private double posTfIdfSum;
+    private double negTfIdfSum;
+    /**
+     * The tf-idf each word has in the reviews that contain it once, indexed by term id, or NaN if no review counted
+     * contains it once. The same for every review, since the idfs are corpus wide.
+     */
+    private double[] commonTfIdfs;
+
+    /**
+     * Creates empty counts.
+     *
+     * @param termCount Every term id counted will be less than this, e.g. the size of the dictionary.
+     */
+    public NaiveBayesCounts(int termCount) {
+        posTermFreqs = new int[termCount];
+        negTermFreqs = new int[termCount];
+        termInReviewFreqs = new int[termCount];
+        commonTfIdfs = new double[termCount];
+        Arrays.fill(commonTfIdfs, Double.NaN);
+    }
+
+    /**
+     * @return The counts of the specified reviews.
+     */
+    public static NaiveBayesCounts count(List<MovieReview> movieReviews) {
+        int termCount = 0;
+        for (MovieReview review : movieReviews) {
+            termCount = Math.max(termCount, review.getDictionary().size());
+        }
+        NaiveBayesCounts counts = new NaiveBayesCounts(termCount);
+        for (MovieReview review : movieReviews) {
+            counts.add(review);
+        }
+        return counts;
+    }
+
+    /**
+     * Counts a review, in time proportional to its words.
+     */
+    public void add(MovieReview review) {
+        int[] termIds = review.getTermIds();
+        int[] termCounts = review.getTermCounts();
+        double[] tfIdfs = review.getTfIdfs();
+        boolean positive = review.getSentiment();
+        int[] termFreqs = positive ? posTermFreqs : negTermFreqs;
+        // Summed word by word into the class sum, in the order NaiveBayes always has
+        double tfIdfSum = positive ? posTfIdfSum : negTfIdfSum;
+        for (int i = 0; i < termIds.length; i++) {
+            int termId = termIds[i];
+            termFreqs[termId] += termCounts[i];
+            termInReviewFreqs[termId]++;
+            tfIdfSum += tfIdfs[i];
+            if (termCounts[i] == 1) {
+                commonTfIdfs[termId] = tfIdfs[i];
+            }
+        }
+        if (positive) {
+            posTotalTerms += termIds.length;
+            posTfIdfSum = tfIdfSum;
+        } else {
+            negTotalTerms += termIds.length;
+            negTfIdfSum = tfIdfSum;
+        }
+    }
+
+    /**
+     * Adds the counts of other reviews to these counts.
+     *
+     * @param other Counts of reviews that these counts do not include. No longer than these counts.
+     */
+    public void add(NaiveBayesCounts other) {
+        for (int termId = 0; termId < other.posTermFreqs.length; termId++) {
+            posTermFreqs[termId] += other.posTermFreqs[termId];
+            negTermFreqs[termId] += other.negTermFreqs[termId];
+            termInReviewFreqs[termId] += other.termInReviewFreqs[termId];
+            if (Double.isNaN(commonTfIdfs[termId])) {
+                commonTfIdfs[termId] = other.commonTfIdfs[termId];
+            }
+        }
+        posTotalTerms += other.posTotalTerms;
+        negTotalTerms += other.negTotalTerms;
+        posTfIdfSum += other.posTfIdfSum;
+        negTfIdfSum += other.negTfIdfSum;
+    }
+
+    /**
+     * @param other Counts of some of the reviews these counts include, e.g. of a testing fold.
+     * @return New counts of the reviews these counts include and the other counts do not, e.g. of a training fold.
+     */
+    public NaiveBayesCounts minus(NaiveBayesCounts other) {
+        NaiveBayesCounts difference = new NaiveBayesCounts(posTermFreqs.length);
+        for (int termId = 0; termId < posTermFreqs.length; termId++) {
+            boolean inOther = termId < other.posTermFreqs.length;
+            difference.posTermFreqs[termId] = posTermFreqs[termId] - (inOther ? other.posTermFreqs[termId] : 0);
+            difference.negTermFreqs[termId] = negTermFreqs[termId] - (inOther ? other.negTermFreqs[termId] : 0);
+            difference.termInReviewFreqs[termId] = termInReviewFreqs[termId]
+                    - (inOther ? other.termInReviewFreqs[termId] : 0);
+        }
+        // Still the tf-idf of a word that occurs once, even if the reviews it was taken from were subtracted
+        difference.commonTfIdfs = commonTfIdfs.clone();
+        difference.posTotalTerms = posTotalTerms - other.posTotalTerms;
+        difference.negTotalTerms = negTotalTerms - other.negTotalTerms;
+        difference.posTfIdfSum = posTfIdfSum - other.posTfIdfSum;
+        difference.negTfIdfSum = negTfIdfSum - other.negTfIdfSum;
+        return difference;
+    }
+
+    /**
+     * @return How many distinct words the counted reviews have.
+     */
+    public int getVocabularySize() {
+        int vocabularySize = 0;
+        for (int termInReviewFreq : termInReviewFreqs) {
+            if (termInReviewFreq > 0) {
+                vocabularySize++;
+            }
+        }
+        return vocabularySize;
+    }
+
+    public int[] getPosTermFreqs() {
+        return posTermFreqs;
+    }
+
+    public int[] getNegTermFreqs() {
+        return negTermFreqs;
+    }
+
+    public int[] getTermInReviewFreqs() {
+        return termInReviewFreqs;
+    }
+
+    public int getPosTotalTerms() {
+        return posTotalTerms;
+    }
+
+    public int getNegTotalTerms() {
+        return negTotalTerms;
+    }
+
+    public double getPosTfIdfSum() {
+        return posTfIdfSum;
+    }
+
+    public double getNegTfIdfSum() {
+        return negTfIdfSum;
+    }
+
+    public double[] getCommonTfIdfs() {
+        return commonTfIdfs;
+    }
+}
@@ -0,0 +1,146 @@
+package com.mikip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Loads review files by memory mapping them and tokenizing batches of files on a pool of worker threads.
+ * The reviews are returned in the same order as the files that were passed in, and words are added to the term
+ * dictionary on the calling thread in that same order, so a parallel load builds exactly the same list of
+ * MovieReviews (and the same term ids) as reading the files one at a time.
+ */
+public class ParallelReviewLoader {
+
+    /**
+     * How many files a single worker task maps and tokenizes before handing its batch back.
+     */
+    private static final int BATCH_SIZE = 64;
+    private int threadCount;
+    /**
+     * Files read over every call to load.
+     */
+    private long filesRead;
+    /**
+     * Bytes read over every call to load.
+     */
+    private long bytesRead;
+    /**
+     * Wall clock time spent in load, in nanoseconds.
+     */
+    private long loadNanos;
+
+    /**
+     * Creates a loader that uses one worker thread per available processor.
+     */
+    public ParallelReviewLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelReviewLoader(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Memory maps and tokenizes the specified review files in parallel.
+     *
+     * @param files             The review files to load.
+     * @param sentiment         The sentiment label of every file. True is positive, false is negative.
+     * @param ignorePunctuation True if tokens made of a single punctuation character should be ignored.
+     * @param dictionary        Dictionary to add the words of the reviews to.
+     * @return The reviews, in the same order as the specified files.
+     * @throws IOException If any of the files could not be read.
+     */
+    public List<MovieReview> load(File[] files, boolean sentiment, final boolean ignorePunctuation,
+                                  TermDictionary dictionary) throws IOException {
+        long start = System.nanoTime();
+        List<MovieReview> reviews = new ArrayList<>(files.length);
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<List<HashMap<String, Integer>>>> batches = new ArrayList<>();
+            for (int lower = 0; lower < files.length; lower += BATCH_SIZE) {
+                final File[] batch = Arrays.copyOfRange(files, lower, Math.min(lower + BATCH_SIZE, files.length));
+                batches.add(pool.submit(new Callable<List<HashMap<String, Integer>>>() {
+                    @Override
+                    public List<HashMap<String, Integer>> call() throws IOException {
+                        return tokenizeBatch(batch, ignorePunctuation);
+                    }
+                }));
+            }
+            // Futures are collected in submission order, which keeps the reviews (and term ids) in file order.
+            for (Future<List<HashMap<String, Integer>>> batch : batches) {
+                for (HashMap<String, Integer> bagOfWords : batch.get()) {
+                    reviews.add(new MovieReview(bagOfWords, sentiment, dictionary));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading reviews", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not load reviews", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        synchronized (this) {
+            loadNanos += System.nanoTime() - start;
+        }
+        return reviews;
+    }
+
+    private List<HashMap<String, Integer>> tokenizeBatch(File[] batch, boolean ignorePunctuation) throws IOException {
+        List<HashMap<String, Integer>> bags = new ArrayList<>(batch.length);
+        long batchBytes = 0;
+        for (File file : batch) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                batchBytes += contents.remaining();
+                bags.add(MovieReview.tokenize(contents, ignorePunctuation));
+            }
+        }
+        synchronized (this) {
+            filesRead += batch.length;
+            bytesRead += batchBytes;
+        }
+        PipelineMetrics.get().addFilesRead(batch.length);
+        return bags;
+    }
+
+    public synchronized long getFilesRead() {
+        return filesRead;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized double getFilesPerSecond() {
+        return loadNanos == 0 ? 0 : filesRead / (loadNanos / 1e9);
+    }
+
+    public synchronized double getMegabytesPerSecond() {
+        return loadNanos == 0 ? 0 : (bytesRead / (1024.0 * 1024.0)) / (loadNanos / 1e9);
+    }
+
+    /**
+     * @return A one line summary of how many files were loaded and how fast.
+     */
+    public synchronized String getThroughputReport() {
+        return String.format("Loaded %d files (%.2f MB) in %d ms: %.0f files/sec, %.2f MB/sec",
+                filesRead, bytesRead / (1024.0 * 1024.0), loadNanos / 1000000,
+                getFilesPerSecond(), getMegabytesPerSecond());
+    }
+}
@@ -1,80 +1,332 @@
 package com.mikip;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Created by mpokr on 3/15/2017.
+ * <p>
+ * The weights are a dense array indexed by term id, and training only touches the weights of the words of the
+ * review being trained on. Words that were not in the vocabulary when the perceptron was created start at 0.
+ * <p>
+ * With averaging, the perceptron classifies with the average of the weights over every training step instead of the
+ * final weights. The average is kept lazily: each update is also added to a second array scaled by the step it
+ * happened at, so an update stays proportional to the words of the review, and the average is recovered from both
+ * arrays once training ends.
+ * <p>
+ * With more than one thread, each pass is split into one shard of reviews per thread, and the threads train on the
+ * shared weights at the same time without locking them (Hogwild). Reviews share few words, so updates rarely collide,
+ * and a lost update costs about as much as a skipped review. The result then depends on how the threads interleave;
+ * a single thread, the default, always trains the same way. Every update changes the bias, so each thread keeps its
+ * own bias change and the changes are added to the bias after each pass.
  */
-public class Perceptron {
+public class Perceptron implements Classifier {
 
     List<MovieReview> movieReviews;
     String[] vocabulary;
-    HashMap<String, Double> weights;
+    /**
+     * The weight of each word, indexed by term id.
+     */
+    private double[] weights;
     private double bias;
     private double learningRate = 0.15;
     private boolean useTfIdf = true;
+    private boolean initRandWeights;
+    /**
+     * Draws the random initial weights, in the constructor and whenever train(List) starts over.
+     */
+    private Random weightRandom;
+    /**
+     * How many times trainAll goes over the training reviews, and the random source the order of the reviews is
+     * shuffled with before each pass. Null to go over them in list order.
+     */
+    private int epochs = 1;
+    private Random shuffleRandom;
+    private boolean averaged;
+    /**
+     * How many threads trainAll trains on. 1 trains sequentially and deterministically.
+     */
+    private int threads = 1;
+    /**
+     * Sum of every update to a weight (and to the bias) times the step it was made at, for averaging.
+     */
+    private double[] stepWeightedUpdates;
+    private double stepWeightedBiasUpdates;
+    /**
+     * How many reviews have been trained on, plus 1.
+     */
+    private long step;
+    /**
+     * The weights and bias classify() uses: the averaged ones once averaged training ends, otherwise the weights.
+     */
+    private double[] classifyWeights;
+    private double classifyBias;
 
     public Perceptron(List<MovieReview> movieReviews, String[] vocabulary, boolean useTfIdf, boolean initRandWeights, double learningRate) {
+        this(movieReviews, vocabulary, useTfIdf, initRandWeights, learningRate, new Random());
+    }
+
+    /**
+     * @param weightRandom Draws the random initial weights, e.g. seeded for a reproducible run. Unused unless
+     *                     initRandWeights is true.
+     */
+    public Perceptron(List<MovieReview> movieReviews, String[] vocabulary, boolean useTfIdf, boolean initRandWeights,
+                      double learningRate, Random weightRandom) {
         this.movieReviews = movieReviews;
-        weights = new HashMap<>(vocabulary.length);
+        this.vocabulary = vocabulary;
+        TermDictionary dictionary = movieReviews.isEmpty() ? null : movieReviews.get(0).getDictionary();
+        weights = new double[(dictionary == null) ? 0 : dictionary.size()];
         bias = 0;
         this.useTfIdf = useTfIdf;
         this.learningRate = learningRate;
+        this.initRandWeights = initRandWeights;
+        this.weightRandom = weightRandom;
         if (initRandWeights) {
-            initRandomWeights(vocabulary);
-        } else {
-            initWeightsToZero(vocabulary);
+            initRandomWeights(vocabulary, dictionary);
         }
+        classifyWeights = weights;
+        classifyBias = bias;
     }
 
-    public void trainAll() {
-        for (MovieReview review : movieReviews) {
-            trainReview(review);
+    /**
+     * @param epochs        How many times trainAll goes over the training reviews. 1 by default.
+     * @param shuffleRandom Shuffles the order of the reviews before each pass, or null to keep their list order.
+     */
+    public void setEpochs(int epochs, Random shuffleRandom) {
+        if (epochs < 1) {
+            throw new IllegalArgumentException("Epochs must be at least 1");
         }
+        this.epochs = epochs;
+        this.shuffleRandom = shuffleRandom;
     }
 
-    private void trainReview(MovieReview review) {
-        double sum = 0;
-        HashMap<String, Integer> bagOfWords = review.getBagOfWords();
-        HashMap<String, Double> tfIdfMap = review.getTfIdfMap();
-        for (String word : bagOfWords.keySet()) {
-            double weight = weights.get(word) == null ? 0 : weights.get(word);
-            if (useTfIdf) {
-                sum += tfIdfMap.get(word) * weight; // x_i * w_i
+    /**
+     * @param threads How many threads to train on. 1, the default, trains on the calling thread and always gives the
+     *                same weights for the same review order.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param averaged True to classify with the average of the weights over training, false for the final weights.
+     */
+    public void useAveraging(boolean averaged) {
+        this.averaged = averaged;
+    }
+
+    /**
+     * Starts over from fresh weights, random ones if the perceptron was created with random weights, and trains on
+     * the specified reviews with trainAll().
+     */
+    @Override
+    public void train(List<MovieReview> trainingReviews) {
+        movieReviews = trainingReviews;
+        TermDictionary dictionary = trainingReviews.isEmpty() ? null : trainingReviews.get(0).getDictionary();
+        weights = new double[(dictionary == null) ? 0 : dictionary.size()];
+        bias = 0;
+        if (initRandWeights) {
+            // Every word of the training reviews starts at a random weight, the same as in the constructor
+            for (MovieReview review : trainingReviews) {
+                for (int termId : review.getTermIds()) {
+                    if (weights[termId] == 0) {
+                        weights[termId] = weightRandom.nextDouble() * 2 - 1;
+                    }
+                }
+            }
+        }
+        trainAll();
+    }
+
+    public void trainAll() {
+        int[] order = new int[movieReviews.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // Make room for every word up front, so the threads never have to grow the shared weights
+        int termCount = weights.length;
+        for (MovieReview review : movieReviews) {
+            int[] termIds = review.getTermIds();
+            if (termIds.length > 0) {
+                termCount = Math.max(termCount, termIds[termIds.length - 1] + 1);
+            }
+        }
+        if (termCount > weights.length) {
+            weights = Arrays.copyOf(weights, termCount);
+        }
+        stepWeightedUpdates = averaged ? new double[weights.length] : null;
+        stepWeightedBiasUpdates = 0;
+        step = 1;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            if (shuffleRandom != null) {
+                shuffle(order, shuffleRandom);
+            }
+            if (threads == 1 || order.length < 2) {
+                for (int reviewIndex : order) {
+                    double change = trainReview(movieReviews.get(reviewIndex), bias, step);
+                    bias = bias + change; // Update bias
+                    stepWeightedBiasUpdates += step * change;
+                    step++;
+                }
             } else {
-                sum += bagOfWords.get(word) * weight; // x_i * w_i
+                trainShards(order);
+            }
+        }
+        if (averaged) {
+            // The average of the weights after every step is the final weights minus the step weighted updates
+            // divided by the step count
+            classifyWeights = new double[weights.length];
+            for (int termId = 0; termId < weights.length; termId++) {
+                classifyWeights[termId] = weights[termId] - stepWeightedUpdates[termId] / step;
             }
+            classifyBias = bias - stepWeightedBiasUpdates / step;
+        } else {
+            classifyWeights = weights;
+            classifyBias = bias;
+        }
+    }
 
+    /**
+     * Writes the weights and bias this perceptron classifies with, for a ModelSnapshot.
+     */
+    void writeModel(DataOutputStream out) throws IOException {
+        out.writeByte(useTfIdf ? 1 : 0);
+        out.writeDouble(classifyBias);
+        out.writeInt(classifyWeights.length);
+        ModelSnapshot.writeDoubles(out, classifyWeights);
+    }
+
+    /**
+     * Reads a perceptron written by writeModel. It has no training reviews, so it can only classify.
+     */
+    static Perceptron readModel(ByteBuffer in) {
+        boolean useTfIdf = in.get() == 1;
+        Perceptron perceptron = new Perceptron(new ArrayList<MovieReview>(), new String[0], useTfIdf, false, 0.15);
+        perceptron.bias = in.getDouble();
+        perceptron.weights = ModelSnapshot.readDoubles(in, in.getInt());
+        perceptron.classifyWeights = perceptron.weights;
+        perceptron.classifyBias = perceptron.bias;
+        return perceptron;
+    }
+
+    /**
+     * Fisher-Yates shuffle.
+     */
+    private static void shuffle(int[] order, Random random) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    /**
+     * Trains on one shard of the order per thread, all on the shared weights, then adds the bias change of every shard
+     * to the bias.
+     */
+    private void trainShards(int[] order) {
+        int shardCount = Math.min(threads, order.length);
+        List<ShardTask> shards = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards.add(new ShardTask(order, (int) ((long) order.length * shard / shardCount),
+                    (int) ((long) order.length * (shard + 1) / shardCount), bias, step));
         }
-        sum+= bias;
-        int output = signum(sum);
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(shards);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(shardCount);
+            try {
+                for (ShardTask shard : shards) {
+                    pool.execute(shard);
+                }
+                for (ShardTask shard : shards) {
+                    shard.join();
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+        for (ShardTask shard : shards) {
+            bias += shard.biasChange;
+            stepWeightedBiasUpdates += shard.stepWeightedBiasChange;
+        }
+        step += order.length;
+    }
+
+    /**
+     * Updates the weights if the perceptron misclassifies the review. Safe to call from several threads at once; the
+     * bias is left to the caller.
+     *
+     * @param bias The bias to score the review with.
+     * @param step The step the review is trained at, for averaging.
+     * @return How much the bias should change.
+     */
+    private double trainReview(MovieReview review, double bias, long step) {
+        int[] termIds = review.getTermIds();
+        int output = signum(score(review, weights, bias));
         int sentimentValue = review.getSentiment() ? 1 : -1; // sentiment is 1 if pos, -1 if negative
         double error = sentimentValue - output;
-        bias = bias + learningRate * error; // Update bias
-        for (String word : bagOfWords.keySet()) {
-            double currentWeight = weights.get(word);
-            double updatedWeight = currentWeight + error * learningRate * tfIdfMap.get(word);
-            weights.put(word, updatedWeight); // Update weights
+        if (error == 0) {
+            return 0;
         }
-
+        double change = learningRate * error;
+        // Updates always step along the tf-idfs, even when reviews are scored by term counts. Stepping along the
+        // counts makes the steps of frequent words so large that unary weighting loses about 15% accuracy.
+        double[] weights = this.weights;
+        double[] stepWeightedUpdates = this.stepWeightedUpdates;
+        double[] tfIdfs = review.getTfIdfs();
+        for (int i = 0; i < termIds.length; i++) {
+            double update = change * tfIdfs[i];
+            weights[termIds[i]] += update; // Update weights
+            if (stepWeightedUpdates != null) {
+                stepWeightedUpdates[termIds[i]] += step * update;
+            }
+        }
+        return change;
     }
+
     /**
-    Initializes weights to random doubles between -1.0 and 1.0
+     * @return The weighted sum of the review's feature values plus the bias. Words past the end of the weights are 0.
      */
-    private void initRandomWeights(String[] vocabulary) {
-        Random r = new Random();
-        for (int i = 0; i < vocabulary.length; i++) {
-            double weight = r.nextDouble() * 2 - 1;
-            weights.put(vocabulary[i], weight);
+    private double score(MovieReview review, double[] weights, double bias) {
+        double sum = 0;
+        int[] termIds = review.getTermIds();
+        if (useTfIdf) {
+            double[] tfIdfs = review.getTfIdfs();
+            for (int i = 0; i < termIds.length && termIds[i] < weights.length; i++) {
+                sum += tfIdfs[i] * weights[termIds[i]]; // x_i * w_i
+            }
+        } else {
+            int[] termCounts = review.getTermCounts();
+            for (int i = 0; i < termIds.length && termIds[i] < weights.length; i++) {
+                sum += termCounts[i] * weights[termIds[i]]; // x_i * w_i
+            }
         }
+        return sum + bias;
     }
 
-    private void initWeightsToZero(String[] vocabulary) {
+    /**
+    Initializes weights to random doubles between -1.0 and 1.0
+     */
+    private void initRandomWeights(String[] vocabulary, TermDictionary dictionary) {
         for (int i = 0; i < vocabulary.length; i++) {
-            weights.put(vocabulary[i], 0.0);
+            double weight = weightRandom.nextDouble() * 2 - 1;
+            int termId = dictionary.getId(vocabulary[i]);
+            if (termId >= 0) {
+                weights[termId] = weight;
+            }
         }
     }
 
@@ -88,19 +340,19 @@ public class Perceptron {
         return output;
     }
 
+    /**
+     * Classifies a review the same way as classify.
+     *
+     * @return The prediction, scored as the weighted sum of the review's feature values plus the bias.
+     */
+    @Override
+    public Prediction predict(MovieReview review) {
+        double sum = score(review, classifyWeights, classifyBias);
+        return new Prediction(sum, sum > 0);
+    }
+
     public boolean classify(MovieReview review) {
-        double sum = 0;
-        HashMap<String, Integer> bagOfWords = review.getBagOfWords();
-        HashMap<String, Double> tfIdfMap = review.getTfIdfMap();
-        for (String word : bagOfWords.keySet()) {
-            double weight = weights.get(word) == null ? 0 : weights.get(word);
-            if (useTfIdf) {
-                sum += tfIdfMap.get(word) * weight; // x_i * w_i
-            } else {
-                sum += bagOfWords.get(word) * weight; // x_i * w_i
-            }
-        }
-        sum+= bias;
+        double sum = score(review, classifyWeights, classifyBias);
         int output = 0;
         if (sum < 0) {
             output = -1;
@@ -110,5 +362,35 @@ public class Perceptron {
         return output == 1;
     }
 
+    /**
+     * Trains on a range of the order, scoring with the bias of the start of the pass plus this shard's own changes.
+     */
+    private class ShardTask extends RecursiveAction {
+        private int[] order;
+        private int lower;
+        private int upper;
+        private double bias;
+        private long firstStep;
+        private double biasChange;
+        private double stepWeightedBiasChange;
+
+        ShardTask(int[] order, int lower, int upper, double bias, long firstStep) {
+            this.order = order;
+            this.lower = lower;
+            this.upper = upper;
+            this.bias = bias;
+            this.firstStep = firstStep;
+        }
 
+        @Override
+        protected void compute() {
+            for (int i = lower; i < upper; i++) {
+                // Reviews keep the step of their position in the pass, as if the shards were trained one after another
+                long step = firstStep + i;
+                double change = trainReview(movieReviews.get(order[i]), bias + biasChange, step);
+                biasChange += change;
+                stepWeightedBiasChange += step * change;
+            }
+        }
+    }
 }
@@ -11,6 +11,11 @@ public class PerceptronPanel extends JPanel {
     private JCheckBox initRandWeights;
     private JTextField learningRate;
     private JCheckBox useTfIdf;
+    private JLabel epochsLabel;
+    private JTextField epochs;
+    private JCheckBox averaged;
+    private JLabel threadsLabel;
+    private JTextField threads;
     private final String PANEL_TITLE = "Perceptron Options";
     private JLabel titleArea;
 
@@ -23,11 +28,24 @@ public class PerceptronPanel extends JPanel {
         learningRate.setText("Specify learning rate between 0 and 1.0. Default is 0.15.");
         useTfIdf = new JCheckBox();
         useTfIdf.setText("Use tf-idf instead of unary weighting.");
+        epochsLabel = new JLabel("Passes over the training reviews (shuffled if more than 1)");
+        epochsLabel.setFont(useTfIdf.getFont());
+        epochs = new JTextField("1");
+        averaged = new JCheckBox();
+        averaged.setText("Classify with the averaged weights.");
+        threadsLabel = new JLabel("Training threads (more than 1 trains lock-free and is not reproducible)");
+        threadsLabel.setFont(useTfIdf.getFont());
+        threads = new JTextField("1");
         titleArea = new JLabel(PANEL_TITLE);
         this.add(titleArea);
         this.add(useTfIdf);
         this.add(initRandWeights);
         this.add(learningRate);
+        this.add(epochsLabel);
+        this.add(epochs);
+        this.add(averaged);
+        this.add(threadsLabel);
+        this.add(threads);
         this.setVisible(true);
     }
 
@@ -48,10 +66,39 @@ public class PerceptronPanel extends JPanel {
         }
     }
 
+    /**
+     * @return How many passes the perceptron makes over the training reviews, or -1 if not an integer.
+     */
+    public int getEpochs() {
+        try {
+            return Integer.parseInt(epochs.getText().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return How many threads the perceptron trains on, or -1 if not an integer.
+     */
+    public int getThreads() {
+        try {
+            return Integer.parseInt(threads.getText().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isAveraged() {
+        return averaged.isSelected();
+    }
+
     public void disableComponents() {
         useTfIdf.setEnabled(false);
         useTfIdf.setEnabled(false);
         learningRate.setEnabled(false);
+        epochs.setEnabled(false);
+        averaged.setEnabled(false);
+        threads.setEnabled(false);
     }
 
 
@@ -59,5 +106,8 @@ public class PerceptronPanel extends JPanel {
         useTfIdf.setEnabled(true);
         useTfIdf.setEnabled(true);
         learningRate.setEnabled(true);
+        epochs.setEnabled(true);
+        averaged.setEnabled(true);
+        threads.setEnabled(true);
     }
 }
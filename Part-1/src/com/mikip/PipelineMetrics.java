@@ -0,0 +1,171 @@
+package com.mikip;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times each stage of the pipeline and counts what passes through it, for the whole process, so a slow run shows
+ * whether parsing, idf computation, partitioning, training or testing is to blame. The stages and counters are
+ * published as JMX MBeans under the MovieReviews domain, e.g. to watch a run in JConsole, and getReport() sums them up
+ * at the end of a run.
+ * <p>
+ * Recording is cheap enough to stay on: a stage is timed once per run of the stage, not per review, and the counters
+ * are striped, so threads counting at once do not contend.
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+    public static final String DOMAIN = "MovieReviews";
+    /**
+     * Reading and tokenizing the review files, or reading the corpus snapshot instead.
+     */
+    public static final String PARSE = "parse";
+    /**
+     * Recalculating the idfs and the tf-idfs that depend on them.
+     */
+    public static final String IDF = "idf";
+    /**
+     * Partitioning the reviews into cross validation folds.
+     */
+    public static final String PARTITION = "partition";
+    /**
+     * Training the classifier of a fold.
+     */
+    public static final String TRAIN = "train";
+    /**
+     * Classifying the testing fold of a fold.
+     */
+    public static final String TEST = "test";
+
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+    private final Map<String, StageTimer> stages = new LinkedHashMap<>();
+    private final LongAdder filesRead = new LongAdder();
+    private final LongAdder tokensProduced = new LongAdder();
+    private final LongAdder distanceComputations = new LongAdder();
+    private volatile int vocabularySize;
+    private boolean registered;
+
+    private PipelineMetrics() {
+        for (String stage : new String[]{PARSE, IDF, PARTITION, TRAIN, TEST}) {
+            stages.put(stage, new StageTimer(stage));
+        }
+    }
+
+    /**
+     * @return The metrics of this process.
+     */
+    public static PipelineMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param name PARSE, IDF, PARTITION, TRAIN or TEST.
+     * @return The timer of the stage.
+     */
+    public StageTimer getStage(String name) {
+        StageTimer stage = stages.get(name);
+        if (stage == null) {
+            throw new IllegalArgumentException("Unknown stage: " + name);
+        }
+        return stage;
+    }
+
+    /**
+     * Publishes the counters and every stage timer in the platform MBean server, once per process.
+     */
+    public synchronized void registerMBeans() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(DOMAIN + ":type=PipelineMetrics"));
+            for (StageTimer stage : stages.values()) {
+                server.registerMBean(stage, new ObjectName(DOMAIN + ":type=Stage,name=" + stage.getName()));
+            }
+        } catch (JMException e) {
+            e.printStackTrace(); // Still recorded and reported, only not over JMX
+        }
+    }
+
+    public void addFilesRead(int files) {
+        filesRead.add(files);
+    }
+
+    public void addTokensProduced(int tokens) {
+        tokensProduced.add(tokens);
+    }
+
+    public void addDistanceComputations(long distances) {
+        distanceComputations.add(distances);
+    }
+
+    public void setVocabularySize(int vocabularySize) {
+        this.vocabularySize = vocabularySize;
+    }
+
+    @Override
+    public long getFilesRead() {
+        return filesRead.sum();
+    }
+
+    @Override
+    public long getTokensProduced() {
+        return tokensProduced.sum();
+    }
+
+    @Override
+    public int getVocabularySize() {
+        return vocabularySize;
+    }
+
+    @Override
+    public long getDistanceComputations() {
+        return distanceComputations.sum();
+    }
+
+    /**
+     * @return The timings of every stage that ran, and the counters, as a table.
+     */
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder("-------------------------");
+        report.append(String.format(Locale.ROOT, "%n%-10s %6s %11s %9s %9s %9s %9s", "Stage", "Runs", "Total ms",
+                "Mean ms", "p50 ms", "p99 ms", "Max ms"));
+        for (StageTimer stage : stages.values()) {
+            if (stage.getCount() == 0) {
+                continue;
+            }
+            report.append(String.format(Locale.ROOT, "%n%-10s %6d %11.1f %9.2f %9.2f %9.2f %9.2f", stage.getName(),
+                    stage.getCount(), stage.getTotalMillis(), stage.getMeanMillis(), stage.getP50Millis(),
+                    stage.getP99Millis(), stage.getMaxMillis()));
+        }
+        report.append(String.format("%nFiles read: %d", getFilesRead()));
+        report.append(String.format("%nTokens produced: %d", getTokensProduced()));
+        report.append(String.format("%nVocabulary size: %d", getVocabularySize()));
+        if (getDistanceComputations() > 0) {
+            report.append(String.format("%nDistance computations: %d", getDistanceComputations()));
+        }
+        return report.append(String.format("%n-------------------------%n")).toString();
+    }
+
+    /**
+     * Starts every stage timer and counter from 0 again. The vocabulary size is kept, since it is not a count.
+     */
+    @Override
+    public void reset() {
+        for (StageTimer stage : stages.values()) {
+            stage.reset();
+        }
+        filesRead.reset();
+        tokensProduced.reset();
+        distanceComputations.reset();
+    }
+}
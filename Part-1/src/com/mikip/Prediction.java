@@ -0,0 +1,36 @@
+package com.mikip;
+
+/**
+ * The sentiment a Classifier predicts for a review, with its score. The higher the score, the more the classifier
+ * leans towards positive; what the score measures, and so its range, depends on the classifier.
+ */
+public final class Prediction {
+
+    private final double score;
+    private final boolean positive;
+
+    /**
+     * @param score    How strongly the classifier leans towards positive. Negative scores lean towards negative.
+     * @param positive The predicted label. Usually the sign of the score, but a classifier decides ties as it likes.
+     */
+    public Prediction(double score, boolean positive) {
+        this.score = score;
+        this.positive = positive;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @return True if the review is predicted positive, false if negative.
+     */
+    public boolean isPositive() {
+        return positive;
+    }
+
+    @Override
+    public String toString() {
+        return (positive ? "positive" : "negative") + " (" + score + ")";
+    }
+}
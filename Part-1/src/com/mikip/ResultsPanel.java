@@ -37,6 +37,21 @@ public class ResultsPanel extends  JPanel {
         repaint();
     }
 
+    /**
+     * Adds text to the end of the perceptron results, e.g. the stats of a fold that just finished.
+     */
+    public void appendPerceptronAreaText(String text) {
+        perceptronArea.append(text);
+        setVisible(true);
+        repaint();
+    }
+
+    public void appendNaiveBayesAreaText(String text) {
+        naiveBayesArea.append(text);
+        setVisible(true);
+        repaint();
+    }
+
 
 }
 
@@ -1,6 +1,7 @@
 package com.mikip;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -10,21 +11,50 @@ public class ReviewDBParser {
 
     private List<MovieReview> movieReviews;
     /**
-     * Maps a word to how many times it has appeared in the entire corpus.
+     * Assigns every word in the corpus an id. Every review shares this dictionary.
      */
-    private HashMap<String, Integer> termInCorpusFreqMap; // *** Not sure if actually useful ***
+    private TermDictionary dictionary;
     /**
-     * Maps a word to how many reviews it has appeared in.
+     * How many times each word has appeared in the entire corpus, indexed by term id.
      */
-    private HashMap<String, Integer> termInReviewFreqMap;
+    private int[] termInCorpusFreqs; // *** Not sure if actually useful ***
     /**
-     * Maps a word to its inverse document frequency (idf)
+     * How many reviews each word has appeared in, indexed by term id.
      */
-    private HashMap<String, Double> termToIdfMap;
+    private int[] termInReviewFreqs;
     /**
-     * Maps a word to its WEIGHTED inverse document frequency (idf)
+     * The inverse document frequency (idf) of each word, indexed by term id.
      */
-    private HashMap<String, Double> smoothIdfMap;
+    private double[] idfs;
+    /**
+     * The WEIGHTED inverse document frequency (idf) of each word, indexed by term id.
+     */
+    private double[] smoothIdfs;
+    /**
+     * For each word, the idf generation in which its idf last changed, indexed by term id.
+     */
+    private int[] idfGenerations;
+    /**
+     * Incremented every time the idfs are refreshed. A review whose tf-idfs were calculated in an older generation
+     * than the idf of one of its words is stale.
+     */
+    private int idfGeneration;
+    /**
+     * Words whose review frequency changed since the idfs were last refreshed.
+     */
+    private BitSet staleTerms;
+    /**
+     * The review count the idfs were last calculated with. Every idf depends on it.
+     */
+    private int idfReviewCount;
+    /**
+     * True if reviews were added or removed since the tf-idfs were last refreshed.
+     */
+    private boolean tfIdfStale;
+    /**
+     * True if reviews were added or removed since the reviews were last partitioned.
+     */
+    private boolean partitionsStale;
     /**
      * How many movie reviews there are in total.
      */
@@ -38,48 +68,207 @@ public class ReviewDBParser {
     private NaiveBayes naiveBayes;
     private static final String POSITIVE_DIR = "/pos";
     private static final String NEGATIVE_DIR = "/neg";
+    private static final int PARTITIONS = 5;
     private boolean ignorePunctuation;
+    /**
+     * Loads the review files in parallel. Null if the files are read one at a time.
+     */
+    private ParallelReviewLoader loader;
+    /**
+     * Describes how the corpus was loaded and how long it took.
+     */
+    private String loadReport;
+    /**
+     * Shuffles the reviews before they are partitioned into folds.
+     */
+    private Random shuffleRandom;
 
     public ReviewDBParser(File parentFolder, boolean ignorePunctuation) {
+        this(parentFolder, ignorePunctuation, true, true);
+    }
+
+    public ReviewDBParser(File parentFolder, boolean ignorePunctuation, boolean parallelLoad) {
+        this(parentFolder, ignorePunctuation, parallelLoad, true);
+    }
+
+    /**
+     * @param parentFolder      Folder containing the pos and neg review directories.
+     * @param ignorePunctuation True if tokens made of a single punctuation character should be ignored.
+     * @param parallelLoad      True to memory map and tokenize the review files on all cores, false to read them one
+     *                          at a time. Both build the same list of reviews.
+     * @param useSnapshot       True to load the corpus from its CorpusSnapshot when the snapshot is still valid, and
+     *                          to write a new snapshot after parsing the review files otherwise.
+     */
+    public ReviewDBParser(File parentFolder, boolean ignorePunctuation, boolean parallelLoad, boolean useSnapshot) {
+        this(parentFolder, ignorePunctuation, parallelLoad, useSnapshot, new Random());
+    }
+
+    /**
+     * @param shuffleRandom Shuffles the reviews before they are partitioned into folds, e.g. seeded so the folds of a
+     *                      run can be repeated. The reviews are loaded in file name order, so the same seed gives the
+     *                      same folds.
+     */
+    public ReviewDBParser(File parentFolder, boolean ignorePunctuation, boolean parallelLoad, boolean useSnapshot,
+                          Random shuffleRandom) {
+        long start = System.nanoTime();
+        this.shuffleRandom = shuffleRandom;
         movieReviews = new ArrayList<>();
+        dictionary = new TermDictionary();
+        staleTerms = new BitSet();
         this.ignorePunctuation = ignorePunctuation;
-        // Parse review directories
-        parseReviewDirectory(parentFolder, POSITIVE_DIR, ignorePunctuation);
-        parseReviewDirectory(parentFolder, NEGATIVE_DIR, ignorePunctuation);
-        reviewCount = movieReviews.size();
-
-        /*
-        Create corpus frequency and review frequency maps
-         */
-        termInCorpusFreqMap = new HashMap<>();
-        termInReviewFreqMap = new HashMap<>();
-        for (MovieReview review : movieReviews) {
-            for (String word : review.getBagOfWords().keySet()) {
-                int termFrequencyInReview = review.getBagOfWords().get(word);
-                if (termInCorpusFreqMap.get(word) == null) {
-                    // Set frequency to frequency encountered
-                    termInCorpusFreqMap.put(word, termFrequencyInReview);
-                } else {
-                    // Set frequency to previous frequency + frequency encountered
-                    termInCorpusFreqMap.put(word, termInCorpusFreqMap.get(word) + termFrequencyInReview);
-                }
-                if (termInReviewFreqMap.get(word) == null) {
-                    termInReviewFreqMap.put(word, 1);
-                } else {
-                    termInReviewFreqMap.put(word, termInReviewFreqMap.get(word) + 1);
+        if (parallelLoad) {
+            loader = new ParallelReviewLoader();
+        }
+        File[] posFiles = listReviewFiles(parentFolder, POSITIVE_DIR);
+        File[] negFiles = listReviewFiles(parentFolder, NEGATIVE_DIR);
+        long fingerprint = CorpusSnapshot.fingerprint(posFiles, negFiles);
+        File snapshotFile = CorpusSnapshot.getSnapshotFile(parentFolder, ignorePunctuation);
+        CorpusSnapshot snapshot = null;
+        if (useSnapshot) {
+            try {
+                snapshot = CorpusSnapshot.read(snapshotFile, fingerprint, ignorePunctuation);
+            } catch (IOException e) {
+                e.printStackTrace(); // Fall back to parsing the review files
+            }
+        }
+        if (snapshot != null) {
+            dictionary = snapshot.getDictionary();
+            movieReviews.addAll(snapshot.getMovieReviews());
+            reviewCount = movieReviews.size();
+            termInCorpusFreqs = snapshot.getTermInCorpusFreqs();
+            termInReviewFreqs = snapshot.getTermInReviewFreqs();
+            idfs = snapshot.getIdfs();
+            smoothIdfs = snapshot.getSmoothIdfs();
+            idfGeneration = 1;
+            idfGenerations = new int[idfs.length];
+            Arrays.fill(idfGenerations, idfGeneration);
+            idfReviewCount = reviewCount;
+            loadReport = "Loaded " + reviewCount + " reviews from " + snapshotFile.getName();
+            PipelineMetrics.get().getStage(PipelineMetrics.PARSE).recordSince(start);
+        } else {
+            // Parse review directories
+            parseReviewFiles(posFiles, true, ignorePunctuation);
+            parseReviewFiles(negFiles, false, ignorePunctuation);
+            reviewCount = movieReviews.size();
+            calculateTermFreqs();
+            PipelineMetrics.get().getStage(PipelineMetrics.PARSE).recordSince(start);
+            /*
+            Calculate inverse document frequency (idf)
+             */
+            long idfStart = System.nanoTime();
+            idfs = new double[dictionary.size()];
+            smoothIdfs = new double[dictionary.size()];
+            idfGenerations = new int[dictionary.size()];
+            refreshIdf();
+            PipelineMetrics.get().getStage(PipelineMetrics.IDF).recordSince(idfStart);
+            loadReport = (loader != null) ? loader.getThroughputReport() : "Parsed " + reviewCount + " reviews";
+            if (useSnapshot) {
+                try {
+                    new CorpusSnapshot(dictionary, new ArrayList<>(movieReviews), termInCorpusFreqs, termInReviewFreqs,
+                            idfs, smoothIdfs).write(snapshotFile, fingerprint, ignorePunctuation);
+                } catch (IOException e) {
+                    e.printStackTrace(); // The snapshot is only an optimization
                 }
             }
         }
-        /*
-        Calculate inverse document frequency (idf)
-         */
-        termToIdfMap = new HashMap<>();
-        smoothIdfMap = new HashMap<>();
-        calculateIdf();
-        calculateTfIdf();
+        tfIdfStale = true;
+        refreshTfIdf();
+        loadReport += " (" + (System.nanoTime() - start) / 1000000 + " ms until tf-idf was ready)";
         shuffleReviews();
         trainingToTestingMap = new HashMap<>();
-        partitionReviews(5);
+        partitionReviews(PARTITIONS);
+    }
+
+    /**
+     * Reads a review file and adds it to the corpus.
+     *
+     * @param file      The review file.
+     * @param sentiment True if the review is positive. False otherwise.
+     * @return The new review.
+     */
+    public MovieReview addReview(File file, boolean sentiment) {
+        MovieReview review = new MovieReview(file, sentiment, ignorePunctuation, dictionary);
+        addReview(review);
+        return review;
+    }
+
+    /**
+     * Adds a review to the corpus and updates the document frequencies of its words. Idfs and tf-idfs are not
+     * recalculated until reviews or folds are next read from this parser, and then only for the reviews whose
+     * idf inputs actually changed, so adding several reviews in a row costs a single refresh.
+     *
+     * @param review A review built with this parser's TermDictionary.
+     */
+    public void addReview(MovieReview review) {
+        if (review.getDictionary() != dictionary) {
+            throw new IllegalArgumentException("Review was not built with this parser's term dictionary");
+        }
+        ensureTermCapacity(dictionary.size());
+        movieReviews.add(review);
+        reviewCount++;
+        updateTermFreqs(review, 1);
+    }
+
+    /**
+     * Removes a review from the corpus and updates the document frequencies of its words. Like addReview, the
+     * idfs and tf-idfs are refreshed lazily.
+     *
+     * @param review The review to remove.
+     * @return True if the review was in the corpus.
+     */
+    public boolean removeReview(MovieReview review) {
+        if (!movieReviews.remove(review)) {
+            return false;
+        }
+        reviewCount--;
+        updateTermFreqs(review, -1);
+        return true;
+    }
+
+    /**
+     * @param delta 1 if the review was added, -1 if it was removed.
+     */
+    private void updateTermFreqs(MovieReview review, int delta) {
+        int[] termIds = review.getTermIds();
+        int[] termCounts = review.getTermCounts();
+        for (int i = 0; i < termIds.length; i++) {
+            termInCorpusFreqs[termIds[i]] += delta * termCounts[i];
+            termInReviewFreqs[termIds[i]] += delta;
+            staleTerms.set(termIds[i]);
+        }
+        tfIdfStale = true;
+        partitionsStale = true;
+    }
+
+    /**
+     * Grows the per term arrays so every id in the dictionary has a slot.
+     */
+    private void ensureTermCapacity(int termCount) {
+        if (termCount <= termInReviewFreqs.length) {
+            return;
+        }
+        int capacity = Math.max(termCount, termInReviewFreqs.length * 3 / 2);
+        termInCorpusFreqs = Arrays.copyOf(termInCorpusFreqs, capacity);
+        termInReviewFreqs = Arrays.copyOf(termInReviewFreqs, capacity);
+        idfs = Arrays.copyOf(idfs, capacity);
+        smoothIdfs = Arrays.copyOf(smoothIdfs, capacity);
+        idfGenerations = Arrays.copyOf(idfGenerations, capacity);
+    }
+
+    /**
+     * Create corpus frequency and review frequency maps
+     */
+    private void calculateTermFreqs() {
+        termInCorpusFreqs = new int[dictionary.size()];
+        termInReviewFreqs = new int[dictionary.size()];
+        for (MovieReview review : movieReviews) {
+            int[] termIds = review.getTermIds();
+            int[] termCounts = review.getTermCounts();
+            for (int i = 0; i < termIds.length; i++) {
+                termInCorpusFreqs[termIds[i]] += termCounts[i];
+                termInReviewFreqs[termIds[i]]++;
+            }
+        }
     }
 
     /**
@@ -89,54 +278,173 @@ public class ReviewDBParser {
      * @return Array containg all unique words from the specified list of movie reviews (the vocabulary).
      */
     private String[] getVocabulary(List<MovieReview> movieReviews) {
-        Set<String> vocabulary = new HashSet<>();
+        boolean[] inVocabulary = new boolean[dictionary.size()];
+        int vocabularySize = 0;
         for (MovieReview review : movieReviews) {
-            for (String word : review.getBagOfWords().keySet()) {
-                if (!vocabulary.contains(word)) {
-                    vocabulary.add(word);
+            for (int termId : review.getTermIds()) {
+                if (!inVocabulary[termId]) {
+                    inVocabulary[termId] = true;
+                    vocabularySize++;
                 }
             }
         }
-        return vocabulary.toArray(new String[vocabulary.size()]);
+        String[] vocabulary = new String[vocabularySize];
+        int next = 0;
+        for (int termId = 0; termId < inVocabulary.length; termId++) {
+            if (inVocabulary[termId]) {
+                vocabulary[next++] = dictionary.getTerm(termId);
+            }
+        }
+        return vocabulary;
     }
 
     public void initPerceptron(List<MovieReview> movieReviews, boolean useTfIdf, boolean initRandPerceptronWeights, double learningRate) {
-        String[] vocabulary = getVocabulary(movieReviews);
-        perceptron = new Perceptron(movieReviews, vocabulary, useTfIdf, initRandPerceptronWeights, learningRate);
+        perceptron = createPerceptron(movieReviews, useTfIdf, initRandPerceptronWeights, learningRate);
     }
 
     public void initNaiveBayes(List<MovieReview> movieReviews, boolean useTfIdf) {
-        HashMap<String, Integer> termInReviewFreqMap = new HashMap<>();
-        for (MovieReview review : movieReviews) {
-            for (String word : review.getBagOfWords().keySet()) {
-                if (termInReviewFreqMap.get(word) == null) {
-                    termInReviewFreqMap.put(word, 1);
-                } else {
-                    termInReviewFreqMap.put(word, termInReviewFreqMap.get(word) + 1);
-                }
+        naiveBayes = createNaiveBayes(movieReviews, useTfIdf);
+    }
+
+    /**
+     * Creates an untrained perceptron without replacing this parser's perceptron, so several can be trained at once.
+     */
+    public Perceptron createPerceptron(List<MovieReview> movieReviews, boolean useTfIdf, boolean initRandPerceptronWeights, double learningRate) {
+        return createPerceptron(movieReviews, useTfIdf, initRandPerceptronWeights, learningRate, new Random());
+    }
+
+    /**
+     * @param random Draws the random initial weights of the perceptron.
+     */
+    public Perceptron createPerceptron(List<MovieReview> movieReviews, boolean useTfIdf, boolean initRandPerceptronWeights,
+                                       double learningRate, Random random) {
+        String[] vocabulary = getVocabulary(movieReviews);
+        return new Perceptron(movieReviews, vocabulary, useTfIdf, initRandPerceptronWeights, learningRate, random);
+    }
+
+    /**
+     * Creates a naive bayes classifier without replacing this parser's classifier, so several can be used at once.
+     * Built from the counts of the reviews, in a single pass over them.
+     */
+    public NaiveBayes createNaiveBayes(List<MovieReview> movieReviews, boolean useTfIdf) {
+        return new NaiveBayes(NaiveBayesCounts.count(movieReviews), useTfIdf);
+    }
+
+    /**
+     * @return Trains a new perceptron on each fold passed to a CrossValidator.
+     */
+    public CrossValidator.FoldTrainer getPerceptronTrainer(final boolean useTfIdf, final boolean initRandPerceptronWeights,
+                                                           final double learningRate) {
+        return getPerceptronTrainer(useTfIdf, initRandPerceptronWeights, learningRate, 1, false, 1, 0);
+    }
+
+    /**
+     * @param epochs   How many times each perceptron goes over its training reviews. A single pass keeps the order of
+     *                 the fold, which is already shuffled; more passes are shuffled again before each one.
+     * @param averaged True to classify with the averaged weights.
+     * @param threads  How many threads each perceptron trains on. See Perceptron.setThreads.
+     * @param seed     Seeds the random weights and shuffles of each perceptron, so on a single thread every fold
+     *                 trains the same way in every run.
+     * @return Trains a new perceptron on each fold passed to a CrossValidator.
+     */
+    public CrossValidator.FoldTrainer getPerceptronTrainer(final boolean useTfIdf, final boolean initRandPerceptronWeights,
+                                                           final double learningRate, final int epochs,
+                                                           final boolean averaged, final int threads, final long seed) {
+        return new CrossValidator.FoldTrainer() {
+            @Override
+            public Classifier train(List<MovieReview> trainingList) {
+                Random random = new Random(seed);
+                Perceptron perceptron = createPerceptron(trainingList, useTfIdf, initRandPerceptronWeights, learningRate,
+                        random);
+                perceptron.setEpochs(epochs, (epochs > 1) ? random : null);
+                perceptron.useAveraging(averaged);
+                perceptron.setThreads(threads);
+                perceptron.trainAll();
+                return perceptron;
             }
+        };
+    }
+
+    /**
+     * @return Builds a new naive bayes classifier for each fold passed to a CrossValidator, from the counts of the
+     * current folds. Get a new trainer after reviews are added or removed.
+     */
+    public CrossValidator.FoldTrainer getNaiveBayesTrainer(final boolean useTfIdf) {
+        // Every testing fold is counted in a single pass over the corpus, and each training fold is the sum of all
+        // the folds minus its own testing fold, so no training fold is counted review by review.
+        HashMap<List<MovieReview>, List<MovieReview>> folds = getTrainingToTestingMap();
+        final NaiveBayesCounts totalCounts = new NaiveBayesCounts(dictionary.size());
+        final IdentityHashMap<List<MovieReview>, NaiveBayesCounts> testingCounts = new IdentityHashMap<>();
+        for (Map.Entry<List<MovieReview>, List<MovieReview>> fold : folds.entrySet()) {
+            NaiveBayesCounts foldCounts = new NaiveBayesCounts(dictionary.size());
+            for (MovieReview review : fold.getValue()) {
+                foldCounts.add(review);
+            }
+            totalCounts.add(foldCounts);
+            testingCounts.put(fold.getKey(), foldCounts);
         }
-        naiveBayes = new NaiveBayes(movieReviews, termInReviewFreqMap.size(), termInReviewFreqMap, useTfIdf);
+        return new CrossValidator.FoldTrainer() {
+            @Override
+            public Classifier train(List<MovieReview> trainingList) {
+                NaiveBayesCounts foldCounts = testingCounts.get(trainingList);
+                // A training list that is not one of the folds is counted on its own
+                return (foldCounts == null) ? createNaiveBayes(trainingList, useTfIdf)
+                        : new NaiveBayes(totalCounts.minus(foldCounts), useTfIdf);
+            }
+        };
     }
 
-    private void parseReviewDirectory(File parentFolder, String posOrNeg, boolean ignorePunctuation) {
-        boolean sentiment = posOrNeg.equals(POSITIVE_DIR); // Sentiment = true if positive reviews. False otherwise.
+    /**
+     * @return The files of the specified review directory, sorted by name. Empty if the directory does not exist.
+     */
+    private File[] listReviewFiles(File parentFolder, String posOrNeg) {
         File reviewDir = new File(parentFolder + posOrNeg);
         File[] reviewArr = reviewDir.listFiles();
-        // Create positive movie reviews
-        if (reviewArr != null) {
+        if (reviewArr == null) {
+            return new File[0];
+        }
+        Arrays.sort(reviewArr); // listFiles() order is platform dependent
+        return reviewArr;
+    }
+
+    /**
+     * @param sentiment True if the files are positive reviews. False otherwise.
+     */
+    private void parseReviewFiles(File[] reviewArr, boolean sentiment, boolean ignorePunctuation) {
+        if (loader != null) {
+            try {
+                movieReviews.addAll(loader.load(reviewArr, sentiment, ignorePunctuation, dictionary));
+            } catch (IOException e) {
+                e.printStackTrace(); // For now
+            }
+        } else {
             for (File file : reviewArr) {
-                movieReviews.add(new MovieReview(file, sentiment, ignorePunctuation)); // True because sentiment is positive
+                movieReviews.add(new MovieReview(file, sentiment, ignorePunctuation, dictionary));
             }
         }
     }
 
+    /**
+     * @return The parallel loader used to read the review files, or null if they were read one at a time.
+     */
+    public ParallelReviewLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * @return Whether the corpus came from a snapshot or the review files, and how long loading took.
+     */
+    public String getLoadReport() {
+        return loadReport;
+    }
+
     /**
      * Partitions the list of movie revies into the specified amount of partitions for cross validation testing.
      *
      * @param partitions The amount of partitions to partition to.
      */
     private void partitionReviews(int partitions) {
+        long start = System.nanoTime();
         shuffleReviews();
         int partitionSize = movieReviews.size() / partitions; // 2000 / 5 = 400
         List<List<MovieReview>> initPartition = new ArrayList<>(partitions);
@@ -157,56 +465,138 @@ public class ReviewDBParser {
             }
             trainingToTestingMap.put(trainingList, testingList);
         }
+        PipelineMetrics.get().getStage(PipelineMetrics.PARTITION).recordSince(start);
     }
 
 
-    private void calculateIdf() {
-        for (String word : termInCorpusFreqMap.keySet()) {
-            int termInReviewFreq = termInReviewFreqMap.get(word);
-            double quotient = (double) reviewCount / (1 + termInReviewFreq);
-            double idf = Math.log(quotient);
-            idf = idf < 0 ? 0 : idf; // Set idf to 0 if idf < 0
-            termToIdfMap.put(word, idf);
-            // Calculate weighted idf
-            // Using "inverse document frequency smooth" weighting scheme
-            double smoothDocWeight = Math.log(((double) reviewCount) / (1 + termInReviewFreqMap.get(word)));
-            double weightedIdf = idf * smoothDocWeight;
-            smoothIdfMap.put(word, weightedIdf);
+    /**
+     * Recalculates the idf of every word whose review frequency changed, or of every word if the review count
+     * changed, and stamps the words whose idf actually changed with a new generation.
+     */
+    private void refreshIdf() {
+        boolean allTerms = reviewCount != idfReviewCount;
+        if (!allTerms && staleTerms.isEmpty()) {
+            return;
         }
+        idfGeneration++;
+        int termCount = dictionary.size();
+        // Reviews tokenized with the dictionary but not added to the corpus can have grown it past the per term arrays
+        ensureTermCapacity(termCount);
+        if (allTerms) {
+            for (int termId = 0; termId < termCount; termId++) {
+                calculateIdf(termId);
+            }
+        } else {
+            for (int termId = staleTerms.nextSetBit(0); termId >= 0; termId = staleTerms.nextSetBit(termId + 1)) {
+                calculateIdf(termId);
+            }
+        }
+        staleTerms.clear();
+        idfReviewCount = reviewCount;
     }
 
+    private void calculateIdf(int termId) {
+        int termInReviewFreq = termInReviewFreqs[termId];
+        double quotient = (double) reviewCount / (1 + termInReviewFreq);
+        double idf = Math.log(quotient);
+        idf = idf < 0 ? 0 : idf; // Set idf to 0 if idf < 0
+        // Calculate weighted idf
+        // Using "inverse document frequency smooth" weighting scheme
+        double smoothDocWeight = Math.log(((double) reviewCount) / (1 + termInReviewFreq));
+        double weightedIdf = idf * smoothDocWeight;
+        if (idf != idfs[termId] || weightedIdf != smoothIdfs[termId]) {
+            idfs[termId] = idf;
+            smoothIdfs[termId] = weightedIdf;
+            idfGenerations[termId] = idfGeneration;
+        }
+    }
 
-    private void calculateTfIdf() {
+    /**
+     * Brings the idfs up to date, then recalculates the tf-idfs of the reviews that contain a word whose idf
+     * changed since their tf-idfs were last calculated. Does nothing if no review was added or removed.
+     */
+    public void refreshTfIdf() {
+        if (!tfIdfStale) {
+            return;
+        }
+        long start = System.nanoTime();
+        refreshIdf();
         for (MovieReview review : movieReviews) {
-            for (String word : review.getTfLogNormMap().keySet()) {
-                double tf = (double) review.getTfLogNormMap().get(word);
-                //double weightedIdf = smoothIdfMap.get(word);
-                //double tfIdf = tf * weightedIdf;
-                double tfIdf = tf * termToIdfMap.get(word);
-                review.setTfIdf(word, tfIdf);
+            if (isTfIdfStale(review)) {
+                calculateTfIdf(review);
             }
-            //Length norm the tfidf
-            /*
-            for (String word : review.getTfLogNormMap().keySet()) {
-                Collection<Double> tfIdfValues = review.getTfIdfMap().values();
+        }
+        tfIdfStale = false;
+        PipelineMetrics.get().getStage(PipelineMetrics.IDF).recordSince(start);
+        PipelineMetrics.get().setVocabularySize(dictionary.size());
+    }
 
-                Double[] tfIdfArr = tfIdfValues.toArray(new Double[tfIdfValues.size()]);
-                double tfIdfSumSquared = 0;
-                for (int i = 0; i < tfIdfArr.length; i++) {
-                    tfIdfSumSquared += (tfIdfArr[i] * tfIdfArr[i]);
-                }
-                double tfIdfNorm = review.getTfIdfMap().get(word) / Math.sqrt(tfIdfSumSquared);
-                review.getTfIdfMap().put(word, tfIdfNorm);
+    /**
+     * Recalculates every idf, and the tf-idfs of every review, whether or not any review was added or removed, the
+     * way loading the corpus does. Lets the benchmarks measure a full recalculation, which refreshTfIdf skips.
+     */
+    void recalculateTfIdf() {
+        idfReviewCount = -1; // Every idf, as if the review count had changed
+        refreshIdf();
+        for (MovieReview review : movieReviews) {
+            calculateTfIdf(review);
+        }
+        tfIdfStale = false;
+    }
+
+    private boolean isTfIdfStale(MovieReview review) {
+        int reviewGeneration = review.getTfIdfGeneration();
+        for (int termId : review.getTermIds()) {
+            if (idfGenerations[termId] > reviewGeneration) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private void calculateTfIdf(MovieReview review) {
+        int[] termIds = review.getTermIds();
+        double[] tfLogNorms = review.getTfLogNorms();
+        for (int i = 0; i < termIds.length; i++) {
+            double tf = tfLogNorms[i];
+            //double weightedIdf = smoothIdfs[termIds[i]];
+            //double tfIdf = tf * weightedIdf;
+            double tfIdf = tf * idfs[termIds[i]];
+            review.setTfIdfAt(i, tfIdf);
+        }
+        review.setTfIdfGeneration(idfGeneration);
+        //Length norm the tfidf
+        /*
+        for (String word : review.getTfLogNormMap().keySet()) {
+            Collection<Double> tfIdfValues = review.getTfIdfMap().values();
+
+            Double[] tfIdfArr = tfIdfValues.toArray(new Double[tfIdfValues.size()]);
+            double tfIdfSumSquared = 0;
+            for (int i = 0; i < tfIdfArr.length; i++) {
+                tfIdfSumSquared += (tfIdfArr[i] * tfIdfArr[i]);
             }
-            */
+            double tfIdfNorm = review.getTfIdfMap().get(word) / Math.sqrt(tfIdfSumSquared);
+            review.getTfIdfMap().put(word, tfIdfNorm);
         }
+        */
     }
 
     public void shuffleReviews() {
-        Collections.shuffle(movieReviews);
+        Collections.shuffle(movieReviews, shuffleRandom);
     }
 
+    /**
+     * @return Maps each training fold to its testing fold. The folds are rebuilt if reviews were added or removed
+     * since they were last partitioned.
+     */
     public HashMap<List<MovieReview>, List<MovieReview>> getTrainingToTestingMap() {
+        refreshTfIdf();
+        if (partitionsStale) {
+            trainingToTestingMap = new HashMap<>();
+            partitionReviews(PARTITIONS);
+            partitionsStale = false;
+        }
         return trainingToTestingMap;
     }
 
@@ -218,10 +608,30 @@ public class ReviewDBParser {
         return naiveBayes;
     }
 
+    /**
+     * @return Every review in the corpus, with up to date tf-idfs. Use addReview and removeReview to change it.
+     */
     public List<MovieReview> getMovieReviews() {
+        refreshTfIdf();
         return movieReviews;
     }
 
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return The idf of every word, indexed by term id, brought up to date first. May be longer than the dictionary.
+     */
+    public double[] getIdfs() {
+        refreshTfIdf();
+        return idfs;
+    }
+
+    public boolean shouldIgnorePunctuation() {
+        return ignorePunctuation;
+    }
+
     public static void main(String[] args) {
         String currentDir = System.getProperty("user.dir");
         ReviewDBParser dbParser;
@@ -230,75 +640,35 @@ public class ReviewDBParser {
         } else {
             dbParser = new ReviewDBParser(new File("./txt_sentoken"), false);
         }
-        double reviewsCorrect = 0;
-        double perceptronAccuracy = 0;
-        int trainingCycles = 0;
-        int falsePos = 0;
-        int falseNeg = 0;
-        int truePos = 0;
-        int trueNeg = 0;
-        for (List<MovieReview> trainingList : dbParser.trainingToTestingMap.keySet()) {
-            dbParser.initPerceptron(trainingList, true, true, 0.15);
-            dbParser.perceptron.trainAll();
-            List<MovieReview> testingList = dbParser.trainingToTestingMap.get(trainingList);
-            for (MovieReview review : testingList) {
-                boolean classification = dbParser.perceptron.classify(review);
-                if (classification == review.getSentiment()) {
-                    reviewsCorrect++;
-                    if (classification) {
-                        truePos++;
-                    } else {
-                        trueNeg++;
-                    }
-                } else {
-                    if (classification) {
-                        falsePos++;
-                    } else {
-                        falseNeg++;
-                    }
-                }
-            }
+        System.out.println(dbParser.getLoadReport());
+        CrossValidator crossValidator = new CrossValidator();
+        List<FoldStats> perceptronFoldStats = crossValidator.run(dbParser.getTrainingToTestingMap(),
+                dbParser.getPerceptronTrainer(true, true, 0.15));
+        double reviewsCorrect = CrossValidator.getTotalTrue(perceptronFoldStats);
+        FoldStats totalStats = new FoldStats();
+        for (FoldStats foldStats : perceptronFoldStats) {
+            totalStats.add(foldStats);
         }
         System.out.println("Perceptron: " + reviewsCorrect + " / " + dbParser.movieReviews.size() + " correct.");
-        double precision = (double) truePos / (truePos + falsePos);
-        double recall = (double) truePos / (truePos + falseNeg);
-        double accuracy = (double) (truePos + trueNeg) / (truePos + trueNeg + falsePos + falseNeg);
+        double precision = totalStats.getPosPrecision();
+        double recall = totalStats.getPosRecall();
+        double accuracy = totalStats.getAccuracy();
         System.out.println("Perceptron accuracy: " + accuracy);
         System.out.println("Perceptron precision: " + precision);
         System.out.println("Perceptron recall: " + recall);
         System.out.println();
         System.out.println("-------------------------");
         System.out.println();
-        reviewsCorrect = 0;
-        falsePos = 0;
-        falseNeg = 0;
-        truePos = 0;
-        trueNeg = 0;
-        for (List<MovieReview> trainingList : dbParser.trainingToTestingMap.keySet()) {
-            dbParser.initNaiveBayes(trainingList, true);
-            List<MovieReview> testingList = dbParser.trainingToTestingMap.get(trainingList);
-            for (MovieReview review : testingList) {
-                boolean classification = dbParser.naiveBayes.trainReview(review);
-                if (classification == review.getSentiment()) {
-                    reviewsCorrect++;
-                    if (classification) {
-                        truePos++;
-                    } else {
-                        trueNeg++;
-                    }
-                } else {
-                    if (classification) {
-                        falsePos++;
-                    } else {
-                        falseNeg++;
-                    }
-                }
-            }
+        List<FoldStats> naiveBayesFoldStats = crossValidator.run(dbParser.getTrainingToTestingMap(),
+                dbParser.getNaiveBayesTrainer(true));
+        reviewsCorrect = CrossValidator.getTotalTrue(naiveBayesFoldStats);
+        totalStats = new FoldStats();
+        for (FoldStats foldStats : naiveBayesFoldStats) {
+            totalStats.add(foldStats);
         }
-
-        precision = (double)truePos / (truePos + falsePos);
-        recall = (double) truePos / (truePos + falseNeg);
-        accuracy = (double) (truePos + trueNeg) / (truePos + trueNeg + falsePos + falseNeg);
+        precision = totalStats.getPosPrecision();
+        recall = totalStats.getPosRecall();
+        accuracy = totalStats.getAccuracy();
         System.out.println("Naive Bayes: " + reviewsCorrect + " / " + dbParser.movieReviews.size() + " correct.");
         System.out.println("Naive Bayes accuracy: " + accuracy);
         System.out.println("Naive Bayes precision: " + precision);
@@ -0,0 +1,113 @@
+package com.mikip;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Splits the raw bytes of a review into words in a single pass, without String.split or regular expressions.
+ * Words are separated by spaces and line breaks. Every byte is classified through a lookup table, and a word
+ * made of a single punctuation character can optionally be dropped (the same characters as \p{Punct}).
+ * <p>
+ * A tokenizer keeps a scratch buffer between words, so one instance should not be shared between threads.
+ */
+public class ReviewTokenizer {
+
+    public static final byte SEPARATOR = 0;
+    public static final byte WORD = 1;
+    public static final byte PUNCTUATION = 2;
+    /**
+     * Maps every ASCII character to its class. Bytes outside of ASCII are always part of a word.
+     */
+    private static final byte[] CHAR_CLASSES = new byte[128];
+
+    static {
+        for (int c = 0; c < CHAR_CLASSES.length; c++) {
+            CHAR_CLASSES[c] = WORD;
+        }
+        String punctuation = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+        for (int i = 0; i < punctuation.length(); i++) {
+            CHAR_CLASSES[punctuation.charAt(i)] = PUNCTUATION;
+        }
+        CHAR_CLASSES[' '] = SEPARATOR;
+        CHAR_CLASSES['\n'] = SEPARATOR;
+        CHAR_CLASSES['\r'] = SEPARATOR;
+    }
+
+    private boolean ignorePunctuation;
+    /**
+     * Holds the bytes of the word currently being read.
+     */
+    private byte[] wordBytes;
+
+    /**
+     * @param ignorePunctuation True if words made of a single punctuation character should be dropped.
+     */
+    public ReviewTokenizer(boolean ignorePunctuation) {
+        this.ignorePunctuation = ignorePunctuation;
+        wordBytes = new byte[64];
+    }
+
+    /**
+     * @param b A byte of review text.
+     * @return SEPARATOR, WORD or PUNCTUATION.
+     */
+    public static byte getCharClass(byte b) {
+        return b < 0 ? WORD : CHAR_CLASSES[b];
+    }
+
+    /**
+     * Reads every word between the position and the limit of the buffer and adds it to the term counts.
+     * The position of the buffer is not changed.
+     *
+     * @param contents   The review text, encoded in the platform charset.
+     * @param bagOfWords Maps a word to how many times it has been seen. Updated in place.
+     * @return How many words were added, counting repeated words every time.
+     */
+    public int tokenize(ByteBuffer contents, HashMap<String, Integer> bagOfWords) {
+        int tokens = 0;
+        int length = 0;
+        boolean ascii = true;
+        byte firstClass = SEPARATOR;
+        for (int i = contents.position(), limit = contents.limit(); i < limit; i++) {
+            byte b = contents.get(i);
+            byte charClass = getCharClass(b);
+            if (charClass == SEPARATOR) {
+                if (length > 0) {
+                    tokens += addWord(length, ascii, firstClass, bagOfWords) ? 1 : 0;
+                    length = 0;
+                    ascii = true;
+                }
+                continue;
+            }
+            if (length == 0) {
+                firstClass = charClass;
+            } else if (length == wordBytes.length) {
+                byte[] grown = new byte[wordBytes.length * 2];
+                System.arraycopy(wordBytes, 0, grown, 0, length);
+                wordBytes = grown;
+            }
+            wordBytes[length++] = b;
+            ascii &= b >= 0;
+        }
+        if (length > 0) {
+            tokens += addWord(length, ascii, firstClass, bagOfWords) ? 1 : 0;
+        }
+        return tokens;
+    }
+
+    /**
+     * @return False if the word was ignored.
+     */
+    private boolean addWord(int length, boolean ascii, byte firstClass, HashMap<String, Integer> bagOfWords) {
+        if (ignorePunctuation && length == 1 && firstClass == PUNCTUATION) {
+            return false;
+        }
+        Charset charset = ascii ? StandardCharsets.ISO_8859_1 : Charset.defaultCharset();
+        String word = new String(wordBytes, 0, length, charset);
+        Integer count = bagOfWords.get(word);
+        bagOfWords.put(word, count == null ? 1 : count + 1);
+        return true;
+    }
+}
@@ -0,0 +1,158 @@
+package com.mikip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load tests a ScoringServer from the same machine: several clients POST the reviews of a data folder to /score, each
+ * waiting for its answer before sending the next review, and the latencies the clients saw, the throughput and the
+ * share of reviews scored with their true sentiment are printed, followed by the server's own /stats.
+ */
+public class ScoringLoadTest {
+
+    public static final String URL = "url";
+    public static final String DATA_DIR = "data-dir";
+    public static final String CLIENTS = "clients";
+    public static final String REQUESTS = "requests";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> argOptions = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equalsIndex = arg.indexOf('=');
+            if (!arg.startsWith("--") || equalsIndex < 0) {
+                System.err.println("Unexpected argument: " + arg);
+                System.err.println(getUsage());
+                System.exit(1);
+                return;
+            }
+            argOptions.put(arg.substring(2, equalsIndex), arg.substring(equalsIndex + 1));
+        }
+        String url = argOptions.containsKey(URL) ? argOptions.get(URL) : "http://localhost:8080";
+        File dataDir = new File(argOptions.containsKey(DATA_DIR) ? argOptions.get(DATA_DIR) : "txt_sentoken");
+        int clients = Integer.parseInt(argOptions.containsKey(CLIENTS) ? argOptions.get(CLIENTS) : "8");
+        int requestCount = Integer.parseInt(argOptions.containsKey(REQUESTS) ? argOptions.get(REQUESTS) : "2000");
+
+        final List<byte[]> reviews = new ArrayList<>();
+        final List<Boolean> sentiments = new ArrayList<>();
+        for (String posOrNeg : new String[]{"pos", "neg"}) {
+            File[] files = new File(dataDir, posOrNeg).listFiles();
+            if (files == null) {
+                System.err.println("No " + posOrNeg + " folder in " + dataDir);
+                System.exit(1);
+                return;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                reviews.add(Files.readAllBytes(file.toPath()));
+                sentiments.add(posOrNeg.equals("pos"));
+            }
+        }
+
+        final URL scoreUrl = new URL(url + "/score");
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicInteger nextRequest = new AtomicInteger();
+        final AtomicLong correct = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final int requests = requestCount;
+        final CountDownLatch done = new CountDownLatch(clients);
+        long startNanos = System.nanoTime();
+        for (int client = 0; client < clients; client++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int request;
+                    while ((request = nextRequest.getAndIncrement()) < requests) {
+                        // Interleave pos and neg reviews, so any number of requests is balanced
+                        int index = (request % 2 == 0) ? request / 2 % reviews.size()
+                                : (reviews.size() - 1 - request / 2 % reviews.size());
+                        long sentNanos = System.nanoTime();
+                        try {
+                            String response = post(scoreUrl, reviews.get(index));
+                            latencies.record(System.nanoTime() - sentNanos);
+                            if (response.contains("\"positive\":" + sentiments.get(index))) {
+                                correct.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }, "load-client-" + client).start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long answered = latencies.getCount();
+        System.out.println(String.format(Locale.ROOT,
+                "%d requests from %d clients in %.2f s: %.0f requests/s, %d failed", requests, clients, seconds,
+                answered / seconds, failures.get()));
+        System.out.println(String.format(Locale.ROOT,
+                "Latency: p50 %.2f ms, p99 %.2f ms, mean %.2f ms, max %.2f ms", latencies.getPercentileMillis(50),
+                latencies.getPercentileMillis(99), latencies.getMeanMillis(), latencies.getMaxMillis()));
+        System.out.println(String.format(Locale.ROOT, "Scored with their true sentiment: %d of %d (%.1f%%)",
+                correct.get(), answered, (answered == 0) ? 0 : 100.0 * correct.get() / answered));
+        try (InputStream in = new URL(url + "/stats").openStream()) {
+            System.out.print("Server stats: " + new String(readFully(in), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String post(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("HTTP " + connection.getResponseCode());
+        }
+        // Reading the whole response lets the connection be kept alive for the next request
+        try (InputStream in = connection.getInputStream()) {
+            return new String(readFully(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return A description of every option, for the command line.
+     */
+    public static String getUsage() {
+        String[][] options = {
+                {URL + "=url", "Where the server listens (default http://localhost:8080)"},
+                {DATA_DIR + "=path", "Folder with the pos and neg review folders to send (default txt_sentoken)"},
+                {CLIENTS + "=n", "Clients sending reviews at once (default 8)"},
+                {REQUESTS + "=n", "Reviews to send in all (default 2000)"}};
+        StringBuilder usage = new StringBuilder("Options (--option=value):");
+        for (String[] option : options) {
+            usage.append(String.format("%n  --%-26s %s", option[0], option[1]));
+        }
+        return usage.toString();
+    }
+}
@@ -0,0 +1,431 @@
+package com.mikip;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves a model saved with --save-models over HTTP on localhost, using the HTTP server built into the JDK. POST the
+ * text of a review to /score to get its sentiment back as {"positive":true,"score":1.25}, and GET /stats for the
+ * request, batch and latency counters, with ?reset=true to start counting again, e.g. between load tests.
+ * <p>
+ * The handler threads only read and tokenize reviews. A single batching thread scores them, a micro-batch at a time,
+ * and writes the responses, so the classifier is never used from two threads at once and a K-NN classifies a whole
+ * batch with one pass over its reference reviews. The batching thread takes whatever reviews are waiting, and then
+ * waits up to the batch window for more. The window adapts to the load: it doubles, up to --max-batch-wait, while
+ * reviews are already waiting when a batch starts, and halves down to 0 while waiting gathers no more reviews, so a
+ * lightly loaded server answers at once and a busy one scores in larger batches.
+ */
+public class ScoringServer {
+
+    public static final String MODEL = "model";
+    public static final String PORT = "port";
+    public static final String THREADS = "threads";
+    public static final String MAX_BATCH = "max-batch";
+    public static final String MAX_BATCH_WAIT = "max-batch-wait";
+    /**
+     * The smallest window worth waiting for, in microseconds. Shorter windows are rounded down to 0.
+     */
+    private static final long MIN_BATCH_WAIT_MICROS = 50;
+
+    private final ModelSnapshot model;
+    private final Classifier classifier;
+    private final int maxBatch;
+    private final long maxBatchWaitMicros;
+    private final LinkedBlockingQueue<PendingReview> queue = new LinkedBlockingQueue<>();
+    private volatile long batchWaitMicros;
+    private volatile boolean running;
+    private HttpServer server;
+    private ExecutorService handlerPool;
+    private Thread batcher;
+
+    private final LatencyHistogram requestLatencies = new LatencyHistogram();
+    private final LatencyHistogram batchLatencies = new LatencyHistogram();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong scoredReviews = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long countingSince = System.nanoTime();
+
+    /**
+     * @param model              The model to score reviews with.
+     * @param maxBatch           The most reviews to score in a batch.
+     * @param maxBatchWaitMicros The longest the batch window grows to, in microseconds. 0 never waits for more reviews.
+     */
+    public ScoringServer(ModelSnapshot model, int maxBatch, long maxBatchWaitMicros) {
+        this.model = model;
+        this.classifier = model.getClassifier();
+        this.maxBatch = maxBatch;
+        this.maxBatchWaitMicros = maxBatchWaitMicros;
+    }
+
+    /**
+     * Starts serving on localhost.
+     *
+     * @param port    The port to listen on, or 0 for any free port.
+     * @param threads How many threads read and tokenize requests.
+     */
+    public void start(int port, int threads) throws IOException {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            // Otherwise Nagle's algorithm holds small responses back until the client acknowledges, ~40 ms per request
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        handlerPool = Executors.newFixedThreadPool(threads);
+        server.setExecutor(handlerPool);
+        server.createContext("/score", new ScoreHandler());
+        server.createContext("/stats", new StatsHandler());
+        running = true;
+        batcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBatches();
+            }
+        }, "scoring-batcher");
+        batcher.start();
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, answers the ones already queued and stops the batching thread.
+     */
+    public void stop() {
+        server.stop(0);
+        handlerPool.shutdown();
+        try {
+            // Let the handlers queue the reviews they are reading before the batching thread drains the queue
+            handlerPool.awaitTermination(5, TimeUnit.SECONDS);
+            running = false;
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void runBatches() {
+        List<PendingReview> batch = new ArrayList<>(maxBatch);
+        List<MovieReview> reviews = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingReview first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                boolean alreadyWaiting = batch.size() > 1;
+                int sizeBeforeWait = batch.size();
+                long waitMicros = batchWaitMicros;
+                if (waitMicros > 0 && batch.size() < maxBatch) {
+                    long deadline = first.receivedNanos + waitMicros * 1000;
+                    long remaining;
+                    while (batch.size() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                        PendingReview next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, maxBatch - batch.size());
+                    }
+                }
+                scoreBatch(batch, reviews);
+                adaptBatchWait(waitMicros, alreadyWaiting, batch.size() > sizeBeforeWait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+                reviews.clear();
+            }
+        }
+    }
+
+    /**
+     * Doubles the batch window while reviews arrive faster than batches are scored, and halves it while waiting
+     * gathers no more reviews.
+     *
+     * @param waitMicros     The window the last batch was gathered with.
+     * @param alreadyWaiting Whether more reviews were waiting when the last batch started.
+     * @param waitPaidOff    Whether waiting gathered more reviews for the last batch.
+     */
+    private void adaptBatchWait(long waitMicros, boolean alreadyWaiting, boolean waitPaidOff) {
+        if (alreadyWaiting) {
+            batchWaitMicros = Math.min(maxBatchWaitMicros, Math.max(MIN_BATCH_WAIT_MICROS, waitMicros * 2));
+        } else if (!waitPaidOff && waitMicros > 0) {
+            batchWaitMicros = (waitMicros / 2 < MIN_BATCH_WAIT_MICROS) ? 0 : waitMicros / 2;
+        }
+    }
+
+    private void scoreBatch(List<PendingReview> batch, List<MovieReview> reviews) {
+        for (PendingReview pending : batch) {
+            reviews.add(pending.review);
+        }
+        long startNanos = System.nanoTime();
+        Prediction[] predictions;
+        try {
+            predictions = classifier.predictBatch(reviews);
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // Fail this batch only, the server keeps running
+            for (PendingReview pending : batch) {
+                respond(pending.exchange, 500, "Could not score the review\n", "text/plain", pending.receivedNanos);
+            }
+            return;
+        }
+        batchLatencies.record(System.nanoTime() - startNanos);
+        batches.incrementAndGet();
+        scoredReviews.addAndGet(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            PendingReview pending = batch.get(i);
+            String body = String.format(Locale.ROOT, "{\"positive\":%b,\"score\":%s}%n",
+                    predictions[i].isPositive(), formatScore(predictions[i].getScore()));
+            respond(pending.exchange, 200, body, "application/json", pending.receivedNanos);
+        }
+    }
+
+    private static String formatScore(double score) {
+        // JSON has no NaN or infinity
+        return (Double.isNaN(score) || Double.isInfinite(score)) ? "null" : Double.toString(score);
+    }
+
+    /**
+     * Writes a response and closes the exchange. Counts it, with its latency since it was received.
+     */
+    private void respond(HttpExchange exchange, int status, String body, String contentType, long receivedNanos) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet(); // The client went away, nothing left to answer
+        } finally {
+            exchange.close();
+        }
+        if (status == 200) {
+            requests.incrementAndGet();
+            requestLatencies.record(System.nanoTime() - receivedNanos);
+        } else {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The counters, as a JSON object.
+     */
+    public String getStats() {
+        double seconds = (System.nanoTime() - countingSince) / 1e9;
+        long requests = this.requests.get();
+        long batches = this.batches.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("requests", requests);
+        stats.put("failures", failures.get());
+        stats.put("batches", batches);
+        stats.put("meanBatchSize", (batches == 0) ? 0 : scoredReviews.get() / (double) batches);
+        stats.put("batchWaitMicros", batchWaitMicros);
+        stats.put("seconds", seconds);
+        stats.put("requestsPerSecond", (seconds > 0) ? requests / seconds : 0);
+        stats.put("latencyP50Millis", requestLatencies.getPercentileMillis(50));
+        stats.put("latencyP99Millis", requestLatencies.getPercentileMillis(99));
+        stats.put("latencyMaxMillis", requestLatencies.getMaxMillis());
+        stats.put("batchP50Millis", batchLatencies.getPercentileMillis(50));
+        stats.put("batchP99Millis", batchLatencies.getPercentileMillis(99));
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> stat : stats.entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            Object value = stat.getValue();
+            json.append('"').append(stat.getKey()).append("\":")
+                    .append((value instanceof Double) ? String.format(Locale.ROOT, "%.3f", value) : value);
+        }
+        return json.append("}").toString();
+    }
+
+    /**
+     * Starts counting requests, batches and latencies from 0 again.
+     */
+    public void resetStats() {
+        requests.set(0);
+        batches.set(0);
+        scoredReviews.set(0);
+        failures.set(0);
+        requestLatencies.reset();
+        batchLatencies.reset();
+        countingSince = System.nanoTime();
+    }
+
+    /**
+     * A tokenized review waiting for its batch to be scored.
+     */
+    private static final class PendingReview {
+        private final HttpExchange exchange;
+        private final MovieReview review;
+        private final long receivedNanos;
+
+        private PendingReview(HttpExchange exchange, MovieReview review, long receivedNanos) {
+            this.exchange = exchange;
+            this.review = review;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private class ScoreHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long receivedNanos = System.nanoTime();
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "POST the text of a review\n", "text/plain", receivedNanos);
+                return;
+            }
+            if (!running) {
+                respond(exchange, 503, "Shutting down\n", "text/plain", receivedNanos);
+                return;
+            }
+            MovieReview review = model.createReview(ByteBuffer.wrap(readBody(exchange.getRequestBody())));
+            // Answered by the batching thread, once the batch it ends up in is scored
+            queue.add(new PendingReview(exchange, review, receivedNanos));
+        }
+    }
+
+    private class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String stats = getStats() + String.format("%n");
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null && query.equals("reset=true")) {
+                resetStats();
+            }
+            byte[] bytes = stats.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            body.write(buffer, 0, read);
+        }
+        in.close();
+        return body.toByteArray();
+    }
+
+    /**
+     * @return A description of every option, for the command line.
+     */
+    public static String getUsage() {
+        String[][] options = {
+                {MODEL + "=path", "Model file saved with --save-models"},
+                {PORT + "=n", "Port to listen on, on localhost (default 8080)"},
+                {THREADS + "=n", "Threads to read and tokenize requests on (default: one per core)"},
+                {MAX_BATCH + "=n", "Most reviews to score in a batch (default 64)"},
+                {MAX_BATCH_WAIT + "=us", "Longest to wait for a batch to fill, in microseconds (default 2000)"}};
+        StringBuilder usage = new StringBuilder("Options (--option=value):");
+        for (String[] option : options) {
+            usage.append(String.format("%n  --%-26s %s", option[0], option[1]));
+        }
+        return usage.toString();
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> argOptions = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equalsIndex = arg.indexOf('=');
+            if (!arg.startsWith("--") || equalsIndex < 0) {
+                System.err.println("Unexpected argument: " + arg);
+                System.err.println(getUsage());
+                System.exit(1);
+                return;
+            }
+            argOptions.put(arg.substring(2, equalsIndex), arg.substring(equalsIndex + 1));
+        }
+        ScoringServer scoringServer;
+        int port;
+        int threads;
+        try {
+            String modelPath = argOptions.remove(MODEL);
+            if (modelPath == null) {
+                throw new IllegalArgumentException("Specify the model to serve with --" + MODEL + "=path");
+            }
+            port = parseOption(argOptions, PORT, 8080, 0);
+            threads = parseOption(argOptions, THREADS, Runtime.getRuntime().availableProcessors(), 1);
+            int maxBatch = parseOption(argOptions, MAX_BATCH, 64, 1);
+            int maxBatchWait = parseOption(argOptions, MAX_BATCH_WAIT, 2000, 0);
+            if (!argOptions.isEmpty()) {
+                throw new IllegalArgumentException("Unknown option: " + argOptions.keySet().iterator().next());
+            }
+            ModelSnapshot model = ModelSnapshot.read(new File(modelPath));
+            scoringServer = new ScoringServer(model, maxBatch, maxBatchWait);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(getUsage());
+            System.exit(1);
+            return;
+        }
+        try {
+            scoringServer.start(port, threads);
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        final ScoringServer stoppingServer = scoringServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stoppingServer.stop();
+            }
+        }));
+        System.out.println("Scoring " + scoringServer.classifier.getClass().getSimpleName()
+                + " reviews on http://localhost:" + scoringServer.getPort() + "/score, stats on /stats");
+    }
+
+    private static int parseOption(Map<String, String> argOptions, String name, int defaultValue, int min) {
+        String value = argOptions.remove(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " must be a whole number of at least " + min + ", was " + value);
+    }
+}
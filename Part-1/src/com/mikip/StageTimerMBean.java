@@ -0,0 +1,21 @@
+package com.mikip;
+
+/**
+ * The JMX view of a StageTimer.
+ */
+public interface StageTimerMBean {
+
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+
+    void reset();
+}
@@ -0,0 +1,67 @@
+package com.mikip;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assigns every word of the corpus an int id, so reviews and classifiers can store terms in primitive arrays
+ * instead of maps keyed by String. Ids are handed out in the order words are first seen, starting at 0.
+ * <p>
+ * New ids are only added while reviews are being built. Once loading is done, lookups are safe from any thread.
+ */
+public class TermDictionary {
+
+    /**
+     * Maps a word to its id.
+     */
+    private HashMap<String, Integer> termToId;
+    /**
+     * The word of every id, indexed by id.
+     */
+    private ArrayList<String> terms;
+
+    public TermDictionary() {
+        termToId = new HashMap<>();
+        terms = new ArrayList<>();
+    }
+
+    /**
+     * Returns the id of the specified word, assigning it the next free id if it has not been seen before.
+     *
+     * @param term The word.
+     * @return The id of the word.
+     */
+    public synchronized int getOrAddId(String term) {
+        Integer id = termToId.get(term);
+        if (id == null) {
+            id = terms.size();
+            termToId.put(term, id);
+            terms.add(term);
+        }
+        return id;
+    }
+
+    /**
+     * @param term The word.
+     * @return The id of the word, or -1 if the word is not in the dictionary.
+     */
+    public int getId(String term) {
+        Integer id = termToId.get(term);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * @param id The id of a word.
+     * @return The word with the specified id.
+     */
+    public String getTerm(int id) {
+        return terms.get(id);
+    }
+
+    /**
+     * @return How many words are in the dictionary. Every id is less than this.
+     */
+    public int size() {
+        return terms.size();
+    }
+}
@@ -0,0 +1,345 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the corpus and cross validates the K-NN and Rocchio classifiers with the specified options.
+ * Both the GUI and HeadlessRunner run classification through this class, so they report the same results.
+ * Nothing here touches Swing, so a run can be started from any thread.
+ */
+public class ClassificationRunner {
+
+    public static final String KNN = "K-NN";
+    public static final String ROCCHIO = "Rocchio";
+
+    /**
+     * Notified as the folds of each classifier finish.
+     */
+    public interface ProgressListener {
+        /**
+         * Called from the thread that ran the fold, one call at a time.
+         *
+         * @param classifierName KNN or ROCCHIO.
+         * @param foldsFinished  How many folds of the classifier have finished, including this one.
+         * @param foldCount      How many folds the classifier is tested on.
+         * @param foldStats      The stats of the fold that finished.
+         */
+        void foldFinished(String classifierName, int foldsFinished, int foldCount, FoldStats foldStats);
+    }
+
+    private ClassifierOptions options;
+    private ReviewDBParser dbParser;
+
+    /**
+     * @param options The options of the run.
+     * @throws IllegalArgumentException If an option is out of range.
+     */
+    public ClassificationRunner(ClassifierOptions options) {
+        options.validate();
+        this.options = options;
+        PipelineMetrics.get().registerMBeans();
+    }
+
+    /**
+     * Loads the corpus, then cross validates the K-NN and Rocchio classifiers.
+     *
+     * @param listener Notified as folds finish. May be null.
+     * @return The results of the K-NN and Rocchio, in that order, formatted for display.
+     */
+    public String[] run(ProgressListener listener) {
+        dbParser = new ReviewDBParser(options.getDataDir(), options.shouldIgnorePunctuation());
+        CrossValidator crossValidator = new CrossValidator(options.getThreads(), options.isParallelTesting());
+        int foldCount = dbParser.getTrainingToTestingMap().size();
+        int reviewCount = dbParser.getMovieReviews().size();
+
+        String KNNResults;
+        if (options.getSweepMaxK() > 0) {
+            KNNResults = sweepKNearest(crossValidator, reviewCount);
+        } else {
+            PairwiseDistanceCache distanceCache = null;
+            if (options.shouldUseDistanceCache()) {
+                distanceCache = dbParser.getDistanceCache(options.getKNNUseTfIdf(), options.getKNNDistanceMetric(),
+                        true);
+            }
+            List<FoldStats> KNNFoldStats = crossValidator.run(dbParser.getTrainingToTestingMap(),
+                    dbParser.getKNearestTrainer(options.getK(), options.getKNNUseTfIdf(),
+                            options.getKNNDistanceMetric(), options.getApproximateTermCount(),
+                            options.getApproximateCandidateCount(), distanceCache),
+                    getFoldListener(KNN, foldCount, listener));
+            KNNResults = formatResults(KNN, KNNFoldStats, reviewCount);
+            if (options.getApproximateTermCount() > 0) {
+                KNNResults += formatRecall(measureApproximateRecall(), options.getK());
+            }
+        }
+        List<FoldStats> rocchioFoldStats = crossValidator.run(dbParser.getTrainingToTestingMap(),
+                dbParser.getRocchioTrainer(options.getRocchioUseTfIdf(), options.getRocchioDistanceMetric()),
+                getFoldListener(ROCCHIO, foldCount, listener));
+        String rocchioResults = formatResults(ROCCHIO, rocchioFoldStats, reviewCount);
+        if (options.getModelDir() != null) {
+            KNNResults += saveModel(KNN);
+            rocchioResults += saveModel(ROCCHIO);
+        }
+        return new String[]{KNNResults, rocchioResults};
+    }
+
+    /**
+     * Cross validates the K-NN with every K up to the sweep K, under the K-NN metric or both metrics, ranking the
+     * neighbors of each test review only once. Folds are not reported as they finish, since each one finishes every
+     * configuration at once.
+     *
+     * @return The stats of every metric and K, one per line, and the configuration with the best average accuracy.
+     */
+    private String sweepKNearest(CrossValidator crossValidator, int reviewCount) {
+        int maxK = options.getSweepMaxK();
+        String[] distanceMetrics;
+        if (options.shouldSweepBothMetrics()) {
+            distanceMetrics = new String[]{KNearestClassifier.EUCLIDEAN, KNearestClassifier.MANHATTAN};
+        } else {
+            distanceMetrics = new String[]{options.getKNNDistanceMetric()};
+        }
+        List<FoldStats[]> sweepStats = crossValidator.runSweep(dbParser.getTrainingToTestingMap(),
+                dbParser.getKNearestSweeper(maxK, options.getKNNUseTfIdf(), distanceMetrics));
+        String results = (KNN + " sweep, K = 1 to " + maxK + ", averaged over " + sweepStats.size() + " folds:") + "\n";
+        results += String.format("%-10s %4s %13s %10s %8s %9s%n", "Metric", "K", "Correct", "Precision", "Recall",
+                "Accuracy");
+        String bestConfiguration = null;
+        double bestAccuracy = -1;
+        for (int m = 0; m < distanceMetrics.length; m++) {
+            for (int k = 1; k <= maxK; k++) {
+                List<FoldStats> foldStatsList = new ArrayList<>(sweepStats.size());
+                for (FoldStats[] foldStats : sweepStats) {
+                    foldStatsList.add(foldStats[m * maxK + k - 1]);
+                }
+                double[] meanStats = getMeanStats(foldStatsList);
+                results += String.format("%-10s %4d %13s %10.2f %8.2f %9.2f%n", distanceMetrics[m].toLowerCase(), k,
+                        CrossValidator.getTotalTrue(foldStatsList) + " / " + reviewCount, meanStats[0], meanStats[1],
+                        meanStats[2]);
+                if (meanStats[2] > bestAccuracy) {
+                    bestAccuracy = meanStats[2];
+                    bestConfiguration = distanceMetrics[m].toLowerCase() + ", K = " + k;
+                }
+            }
+        }
+        results += ("-------------------------") + "\n";
+        results += ("Best " + KNN + ": " + bestConfiguration + ", " + round(bestAccuracy, 2) + " average accuracy") + "\n";
+        return results;
+    }
+
+    /**
+     * Trains a classifier on every review of the corpus and saves it, with the dictionary and idfs, in the model
+     * folder.
+     *
+     * @param classifierName KNN or ROCCHIO.
+     * @return Where the model was saved, or why it could not be, as lines to append to the results of the classifier.
+     */
+    private String saveModel(String classifierName) {
+        List<MovieReview> movieReviews = new ArrayList<>(dbParser.getMovieReviews());
+        ModelSnapshot model;
+        if (classifierName.equals(KNN)) {
+            KNearestClassifier kNearest = new KNearestClassifier(options.getK(), movieReviews,
+                    options.getKNNUseTfIdf(), options.getKNNDistanceMetric());
+            kNearest.useApproximateSearch(options.getApproximateTermCount(), options.getApproximateCandidateCount());
+            model = new ModelSnapshot(dbParser.getDictionary(), dbParser.getIdfs(), dbParser.shouldIgnorePunctuation(),
+                    kNearest);
+        } else {
+            RocchioClassifier rocchio = new RocchioClassifier(movieReviews, options.getRocchioUseTfIdf(),
+                    options.getRocchioDistanceMetric());
+            rocchio.train();
+            model = new ModelSnapshot(dbParser.getDictionary(), dbParser.getIdfs(), dbParser.shouldIgnorePunctuation(),
+                    rocchio);
+        }
+        File modelFile = ModelSnapshot.getModelFile(options.getModelDir(), classifierName);
+        String report = ("-------------------------") + "\n";
+        try {
+            if (!options.getModelDir().isDirectory() && !options.getModelDir().mkdirs()) {
+                throw new IOException("Could not create " + options.getModelDir());
+            }
+            model.write(modelFile);
+            report += (classifierName + " model (trained on all " + movieReviews.size() + " reviews) saved to "
+                    + modelFile) + "\n";
+        } catch (IOException e) {
+            e.printStackTrace();
+            report += (classifierName + " model could not be saved: " + e.getMessage()) + "\n";
+        }
+        return report;
+    }
+
+    /**
+     * Measures recall@K of approximate K-NN search against exact search on the first fold. Exact search is what
+     * approximate search saves, so only one fold is measured.
+     */
+    private double measureApproximateRecall() {
+        Map.Entry<List<MovieReview>, List<MovieReview>> fold = dbParser.getTrainingToTestingMap().entrySet().iterator().next();
+        KNearestClassifier kNearest = new KNearestClassifier(options.getK(), fold.getKey(), options.getKNNUseTfIdf(),
+                options.getKNNDistanceMetric());
+        kNearest.useApproximateSearch(options.getApproximateTermCount(), options.getApproximateCandidateCount());
+        return kNearest.getRecallAtK(fold.getValue());
+    }
+
+    /**
+     * @return The recall of approximate search, as a line to append to the K-NN results.
+     */
+    public static String formatRecall(double recall, int K) {
+        return ("-------------------------") + "\n"
+                + ("Approximate " + KNN + " recall@" + K + " against exact search (fold 1): " + round(recall, 2)) + "\n";
+    }
+
+    private CrossValidator.FoldListener getFoldListener(final String classifierName, final int foldCount,
+                                                        final ProgressListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new CrossValidator.FoldListener() {
+            private int foldsFinished;
+
+            @Override
+            public synchronized void foldFinished(FoldStats foldStats) {
+                foldsFinished++;
+                listener.foldFinished(classifierName, foldsFinished, foldCount, foldStats);
+            }
+        };
+    }
+
+    /**
+     * @return The parser of the last run, or null if nothing has been run yet.
+     */
+    public ReviewDBParser getParser() {
+        return dbParser;
+    }
+
+    public ClassifierOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return A one line summary of a finished fold, e.g. "K-NN fold 2 / 5: 0.83 accuracy".
+     */
+    public static String formatFoldProgress(String classifierName, int foldsFinished, int foldCount, FoldStats foldStats) {
+        return classifierName + " fold " + foldsFinished + " / " + foldCount + ": "
+                + round(foldStats.getAccuracy(), 2) + " accuracy";
+    }
+
+    /**
+     * Formats the total, average, minimum and maximum stats of a classifier over every fold.
+     *
+     * @param classifierName The name of the classifier.
+     * @param foldStatsList  The stats of each fold.
+     * @param reviewCount    How many reviews there are in total.
+     * @return The results, one stat per line.
+     */
+    public static String formatResults(String classifierName, List<FoldStats> foldStatsList, int reviewCount) {
+        int reviewsCorrect = CrossValidator.getTotalTrue(foldStatsList);
+
+        double[] maxStats = getMaxStats(foldStatsList);
+        double maxPrecision = round(maxStats[0], 2);
+        double maxRecall = round(maxStats[1], 2);
+        double maxAccuracy = round(maxStats[2], 2);
+
+        double[] minStats = getMinStats(foldStatsList);
+        double minPrecision = round(minStats[0], 2);
+        double minRecall = round(minStats[1], 2);
+        double minAccuracy = round(minStats[2], 2);
+
+        double[] meanStats = getMeanStats(foldStatsList);
+        double meanPrecision = round(meanStats[0], 2);
+        double meanRecall = round(meanStats[1], 2);
+        double meanAccuracy = round(meanStats[2], 2);
+
+        String results = "";
+        results += (classifierName + ": " + reviewsCorrect + " / " + reviewCount + " correct.") + "\n";
+        results += ("-------------------------") + "\n";
+        results += ("Average " + classifierName + " stats: ") + "\n";
+        results += "\n";
+        results += ("Average " + classifierName + " precision: " + meanPrecision) + "\n";
+        results += ("Average " + classifierName + " recall: " + meanRecall) + "\n";
+        results += ("Average " + classifierName + " accuracy: " + meanAccuracy) + "\n";
+        results += ("-------------------------") + "\n";
+        results += ("Minimum " + classifierName + " stats: ") + "\n";
+        results += "\n";
+        results += ("Minimum " + classifierName + " precision: " + minPrecision) + "\n";
+        results += ("Minimum " + classifierName + " recall: " + minRecall) + "\n";
+        results += ("Minimum " + classifierName + " accuracy: " + minAccuracy) + "\n";
+        results += ("-------------------------") + "\n";
+        results += ("Maximum " + classifierName + " stats: ") + "\n";
+        results += "\n";
+        results += ("Maximum " + classifierName + " precision: " + maxPrecision) + "\n";
+        results += ("Maximum " + classifierName + " recall: " + maxRecall) + "\n";
+        results += ("Maximum " + classifierName + " accuracy: " + maxAccuracy) + "\n";
+        return results;
+    }
+
+    /**
+     * Given list of FoldStats, return the an array of doubles containing the average precision, recall, and accuracy,
+     * in that order.
+     *
+     * @param foldStatsList List of fold statistics.
+     * @return An array of doubles containing the average precision, recall, and accuracy,
+     * in that order.
+     */
+    private static double[] getMeanStats(List<FoldStats> foldStatsList) {
+        double meanAccuracy = 0;
+        double meanRecall = 0;
+        double meanPrecision = 0;
+        for (FoldStats foldStat : foldStatsList) {
+            double foldAccuracy = foldStat.getAccuracy();
+            double foldRecall = foldStat.getRecall();
+            double foldPrecision = foldStat.getPrecision();
+            meanAccuracy += foldAccuracy;
+            meanRecall += foldRecall;
+            meanPrecision += foldPrecision;
+        }
+        meanAccuracy /= foldStatsList.size();
+        meanRecall /= foldStatsList.size();
+        meanPrecision /= foldStatsList.size();
+        return new double[]{meanPrecision, meanRecall, meanAccuracy};
+    }
+
+    private static double[] getMaxStats(List<FoldStats> foldStatsList) {
+        double maxAccuracy = -1;
+        double maxRecall = -1;
+        double maxPrecision = -1;
+        for (FoldStats foldStat : foldStatsList) {
+            double foldAccuracy = foldStat.getAccuracy();
+            double foldRecall = foldStat.getRecall();
+            double foldPrecision = foldStat.getPrecision();
+            if (foldAccuracy > maxAccuracy) {
+                maxAccuracy = foldAccuracy;
+            }
+            if (foldRecall > maxRecall) {
+                maxRecall = foldRecall;
+            }
+            if (foldPrecision > maxPrecision) {
+                maxPrecision = foldPrecision;
+            }
+        }
+        return new double[]{maxPrecision, maxRecall, maxAccuracy};
+    }
+
+    private static double[] getMinStats(List<FoldStats> foldStatsList) {
+        double minAccuracy = Double.MAX_VALUE;
+        double minRecall = Double.MAX_VALUE;
+        double minPrecision = Double.MAX_VALUE;
+        for (FoldStats foldStat : foldStatsList) {
+            double foldAccuracy = foldStat.getAccuracy();
+            double foldRecall = foldStat.getRecall();
+            double foldPrecision = foldStat.getPrecision();
+            if (foldAccuracy < minAccuracy) {
+                minAccuracy = foldAccuracy;
+            }
+            if (foldRecall < minRecall) {
+                minRecall = foldRecall;
+            }
+            if (foldPrecision < minPrecision) {
+                minPrecision = foldPrecision;
+            }
+        }
+        return new double[]{minPrecision, minRecall, minAccuracy};
+    }
+
+    private static double round(double value, int places) {
+        double placesNum = Math.pow(10, places);
+        return (double)Math.round(value * placesNum) / placesNum;
+    }
+}
@@ -0,0 +1,420 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The options of a classification run, set from the GUI panels or from command line arguments and a config file.
+ * <p>
+ * Arguments are written as --option=value, or just --option for a boolean that should be true. A config file,
+ * given with --config=path, is a properties file that uses the same option names without the dashes. Arguments
+ * override the values in the config file.
+ */
+public class ClassifierOptions {
+
+    public static final String CONFIG = "config";
+    public static final String DATA_DIR = "data-dir";
+    public static final String IGNORE_PUNCTUATION = "ignore-punctuation";
+    public static final String THREADS = "threads";
+    public static final String PARALLEL_TESTING = "parallel-testing";
+    public static final String K_OPTION = "k";
+    public static final String METRIC = "metric";
+    public static final String KNN_METRIC = "knn-metric";
+    public static final String ROCCHIO_METRIC = "rocchio-metric";
+    public static final String TF_IDF = "tfidf";
+    public static final String KNN_TF_IDF = "knn-tfidf";
+    public static final String ROCCHIO_TF_IDF = "rocchio-tfidf";
+    public static final String APPROXIMATE_TERMS = "approximate-terms";
+    public static final String APPROXIMATE_CANDIDATES = "approximate-candidates";
+    public static final String DISTANCE_CACHE = "distance-cache";
+    public static final String SAVE_MODELS = "save-models";
+    public static final String METRICS_REPORT = "metrics-report";
+    public static final String KNN_SWEEP = "knn-sweep";
+    public static final String KNN_SWEEP_BOTH_METRICS = "knn-sweep-both-metrics";
+
+    /**
+     * Folder containing the pos and neg review directories.
+     */
+    private File dataDir;
+    private boolean ignorePunctuation;
+    /**
+     * How many threads the folds are cross validated on.
+     */
+    private int threads;
+    private boolean parallelTesting;
+    /**
+     * How many nearest neighbors the K-NN looks at.
+     */
+    private int K;
+    private String KNNDistanceMetric;
+    private boolean KNNUseTfIdf;
+    /**
+     * How many words of a review approximate K-NN search scores, 0 for exact search, and how many candidates it
+     * computes the exact distance of.
+     */
+    private int approximateTermCount;
+    private int approximateCandidateCount;
+    /**
+     * True to read the K-NN distances of every fold from a PairwiseDistanceCache kept next to the review folders.
+     */
+    private boolean useDistanceCache;
+    private String rocchioDistanceMetric;
+    private boolean rocchioUseTfIdf;
+    /**
+     * Folder to save a ModelSnapshot of each classifier, trained on the whole corpus, in, or null to save none.
+     */
+    private File modelDir;
+    /**
+     * Whether a headless run ends with the PipelineMetrics report.
+     */
+    private boolean reportMetrics;
+    /**
+     * The largest K to cross validate the K-NN with instead of the single K, every smaller K included, or 0 for a
+     * normal run. The sweep covers the K-NN metric, or both metrics.
+     */
+    private int sweepMaxK;
+    private boolean sweepBothMetrics;
+
+    /**
+     * Creates the default options: the txt_sentoken folder next to the working directory, K = 34, exact K-NN search,
+     * Euclidean distance, unary weighting and one thread per available processor.
+     */
+    public ClassifierOptions() {
+        dataDir = getDefaultDataDir();
+        threads = Runtime.getRuntime().availableProcessors();
+        K = 34;
+        KNNDistanceMetric = KNearestClassifier.EUCLIDEAN;
+        approximateCandidateCount = 200;
+        rocchioDistanceMetric = RocchioClassifier.EUCLIDEAN;
+    }
+
+    /**
+     * @return The txt_sentoken folder, found the same way whether the program is run from the project or src folder.
+     */
+    public static File getDefaultDataDir() {
+        String currentDir = System.getProperty("user.dir");
+        if (currentDir.contains("src")) {
+            return new File("../txt_sentoken");
+        } else {
+            return new File("./txt_sentoken");
+        }
+    }
+
+    /**
+     * Reads the options from command line arguments, and from the config file if one is specified.
+     *
+     * @param args The command line arguments.
+     * @return The options.
+     * @throws IOException If the config file could not be read.
+     */
+    public static ClassifierOptions fromArgs(String[] args) throws IOException {
+        Map<String, String> argOptions = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equalsIndex = arg.indexOf('=');
+            if (equalsIndex < 0) {
+                argOptions.put(arg.substring(2), "true");
+            } else {
+                argOptions.put(arg.substring(2, equalsIndex), arg.substring(equalsIndex + 1));
+            }
+        }
+        ClassifierOptions options = new ClassifierOptions();
+        String configPath = argOptions.remove(CONFIG);
+        if (configPath != null) {
+            Properties config = new Properties();
+            try (InputStream in = new FileInputStream(configPath)) {
+                config.load(in);
+            }
+            for (String key : config.stringPropertyNames()) {
+                options.setOption(key, config.getProperty(key));
+            }
+        }
+        for (Map.Entry<String, String> argOption : argOptions.entrySet()) {
+            options.setOption(argOption.getKey(), argOption.getValue());
+        }
+        return options;
+    }
+
+    /**
+     * Sets a single option by name.
+     *
+     * @param name  The name of the option, e.g. knn-metric.
+     * @param value The value of the option, as it was written.
+     */
+    public void setOption(String name, String value) {
+        value = value.trim();
+        switch (name) {
+            case DATA_DIR:
+                dataDir = new File(value);
+                break;
+            case IGNORE_PUNCTUATION:
+                ignorePunctuation = parseBoolean(name, value);
+                break;
+            case THREADS:
+                threads = parseInt(name, value);
+                break;
+            case PARALLEL_TESTING:
+                parallelTesting = parseBoolean(name, value);
+                break;
+            case K_OPTION:
+                K = parseInt(name, value);
+                break;
+            case METRIC:
+                KNNDistanceMetric = parseMetric(name, value);
+                rocchioDistanceMetric = KNNDistanceMetric;
+                break;
+            case KNN_METRIC:
+                KNNDistanceMetric = parseMetric(name, value);
+                break;
+            case ROCCHIO_METRIC:
+                rocchioDistanceMetric = parseMetric(name, value);
+                break;
+            case TF_IDF:
+                KNNUseTfIdf = parseBoolean(name, value);
+                rocchioUseTfIdf = KNNUseTfIdf;
+                break;
+            case KNN_TF_IDF:
+                KNNUseTfIdf = parseBoolean(name, value);
+                break;
+            case ROCCHIO_TF_IDF:
+                rocchioUseTfIdf = parseBoolean(name, value);
+                break;
+            case APPROXIMATE_TERMS:
+                approximateTermCount = parseInt(name, value);
+                break;
+            case APPROXIMATE_CANDIDATES:
+                approximateCandidateCount = parseInt(name, value);
+                break;
+            case DISTANCE_CACHE:
+                useDistanceCache = parseBoolean(name, value);
+                break;
+            case SAVE_MODELS:
+                modelDir = new File(value);
+                break;
+            case METRICS_REPORT:
+                reportMetrics = parseBoolean(name, value);
+                break;
+            case KNN_SWEEP:
+                sweepMaxK = parseInt(name, value);
+                break;
+            case KNN_SWEEP_BOTH_METRICS:
+                sweepBothMetrics = parseBoolean(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException(name + " must be true or false, not " + value);
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer, not " + value);
+        }
+    }
+
+    /**
+     * @return KNearestClassifier.EUCLIDEAN or MANHATTAN. RocchioClassifier uses the same names.
+     */
+    private static String parseMetric(String name, String value) {
+        if (value.equalsIgnoreCase(KNearestClassifier.EUCLIDEAN)) {
+            return KNearestClassifier.EUCLIDEAN;
+        } else if (value.equalsIgnoreCase(KNearestClassifier.MANHATTAN)) {
+            return KNearestClassifier.MANHATTAN;
+        }
+        throw new IllegalArgumentException(name + " must be euclidean or manhattan, not " + value);
+    }
+
+    /**
+     * @throws IllegalArgumentException If an option is out of range. The message is meant to be shown to the user.
+     */
+    public void validate() {
+        if (K < 0) {
+            throw new IllegalArgumentException("K-NN K value invalid. Make sure it is an integer " +
+                    "and is greater than or equal to 0");
+        }
+        if (approximateTermCount < 0 || approximateCandidateCount < 0) {
+            throw new IllegalArgumentException("K-NN approximate search values invalid. Make sure they are integers " +
+                    "and are greater than or equal to 0");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        if (sweepMaxK < 0) {
+            throw new IllegalArgumentException("K-NN sweep K value invalid. Make sure it is an integer " +
+                    "and is greater than or equal to 0");
+        }
+    }
+
+    /**
+     * @return A description of every option, for the command line.
+     */
+    public static String getUsage() {
+        String[][] options = {
+                {DATA_DIR + "=path", "Folder with the pos and neg review folders"},
+                {IGNORE_PUNCTUATION, "Ignore single punctuation characters"},
+                {THREADS + "=n", "Threads to cross validate on"},
+                {PARALLEL_TESTING, "Also classify each testing fold in parallel"},
+                {K_OPTION + "=n", "How many nearest neighbors the K-NN looks at"},
+                {METRIC + "=name", "euclidean or manhattan distance for both classifiers"},
+                {KNN_METRIC + "=name", "euclidean or manhattan distance for the K-NN"},
+                {ROCCHIO_METRIC + "=name", "euclidean or manhattan distance for Rocchio"},
+                {TF_IDF, "Use tf-idf for both classifiers"},
+                {KNN_TF_IDF, "Use tf-idf for the K-NN"},
+                {ROCCHIO_TF_IDF, "Use tf-idf for Rocchio"},
+                {APPROXIMATE_TERMS + "=n", "Approximate K-NN: score only the n heaviest words of a review (0 = exact)"},
+                {APPROXIMATE_CANDIDATES + "=n", "Approximate K-NN: exact distances computed per review"},
+                {DISTANCE_CACHE, "Compute K-NN distances once and keep them on disk for later runs"},
+                {SAVE_MODELS + "=path", "Folder to save both classifiers, trained on every review, in"},
+                {METRICS_REPORT, "End with the time spent in each stage and the pipeline counters"},
+                {KNN_SWEEP + "=n", "Test the K-NN with every K up to n in one pass instead of K (0 = off)"},
+                {KNN_SWEEP_BOTH_METRICS, "Sweep both euclidean and manhattan distance"}};
+        StringBuilder usage = new StringBuilder("Options (--option=value, or in a properties file passed with --config=path):");
+        for (String[] option : options) {
+            usage.append(String.format("%n  --%-26s %s", option[0], option[1]));
+        }
+        return usage.toString();
+    }
+
+    public File getDataDir() {
+        return dataDir;
+    }
+
+    public void setDataDir(File dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public boolean shouldIgnorePunctuation() {
+        return ignorePunctuation;
+    }
+
+    public void setIgnorePunctuation(boolean ignorePunctuation) {
+        this.ignorePunctuation = ignorePunctuation;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public boolean isParallelTesting() {
+        return parallelTesting;
+    }
+
+    public void setParallelTesting(boolean parallelTesting) {
+        this.parallelTesting = parallelTesting;
+    }
+
+    public int getK() {
+        return K;
+    }
+
+    public void setK(int K) {
+        this.K = K;
+    }
+
+    public String getKNNDistanceMetric() {
+        return KNNDistanceMetric;
+    }
+
+    public void setKNNDistanceMetric(String KNNDistanceMetric) {
+        this.KNNDistanceMetric = KNNDistanceMetric;
+    }
+
+    public boolean getKNNUseTfIdf() {
+        return KNNUseTfIdf;
+    }
+
+    public void setKNNUseTfIdf(boolean KNNUseTfIdf) {
+        this.KNNUseTfIdf = KNNUseTfIdf;
+    }
+
+    public int getApproximateTermCount() {
+        return approximateTermCount;
+    }
+
+    public void setApproximateTermCount(int approximateTermCount) {
+        this.approximateTermCount = approximateTermCount;
+    }
+
+    public int getApproximateCandidateCount() {
+        return approximateCandidateCount;
+    }
+
+    public void setApproximateCandidateCount(int approximateCandidateCount) {
+        this.approximateCandidateCount = approximateCandidateCount;
+    }
+
+    public boolean shouldUseDistanceCache() {
+        return useDistanceCache;
+    }
+
+    public void setUseDistanceCache(boolean useDistanceCache) {
+        this.useDistanceCache = useDistanceCache;
+    }
+
+    public String getRocchioDistanceMetric() {
+        return rocchioDistanceMetric;
+    }
+
+    public void setRocchioDistanceMetric(String rocchioDistanceMetric) {
+        this.rocchioDistanceMetric = rocchioDistanceMetric;
+    }
+
+    public boolean getRocchioUseTfIdf() {
+        return rocchioUseTfIdf;
+    }
+
+    public void setRocchioUseTfIdf(boolean rocchioUseTfIdf) {
+        this.rocchioUseTfIdf = rocchioUseTfIdf;
+    }
+
+    public File getModelDir() {
+        return modelDir;
+    }
+
+    public void setModelDir(File modelDir) {
+        this.modelDir = modelDir;
+    }
+
+    public boolean shouldReportMetrics() {
+        return reportMetrics;
+    }
+
+    public void setReportMetrics(boolean reportMetrics) {
+        this.reportMetrics = reportMetrics;
+    }
+
+    public int getSweepMaxK() {
+        return sweepMaxK;
+    }
+
+    public void setSweepMaxK(int sweepMaxK) {
+        this.sweepMaxK = sweepMaxK;
+    }
+
+    public boolean shouldSweepBothMetrics() {
+        return sweepBothMetrics;
+    }
+
+    public void setSweepBothMetrics(boolean sweepBothMetrics) {
+        this.sweepBothMetrics = sweepBothMetrics;
+    }
+}
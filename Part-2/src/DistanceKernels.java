@@ -0,0 +1,87 @@
+/**
+ * Distance kernels over sparse vectors stored as a sorted array of term ids and a parallel array of values, as in
+ * MovieReview. KNearestClassifier measures its distances with the query kernels, and MovieReview caches the norms of
+ * its reviews with the norm kernels. RocchioClassifier computes the same query distances inline, against dense
+ * centroids.
+ * <p>
+ * The classifiers measure the distance from a query (the review being classified) only over the words of the query,
+ * treating words that are missing from the other vector as 0 and ignoring words that only the other vector has.
+ * The query kernels compute that distance from the cached norm of the query plus a single walk over the words both
+ * vectors share.
+ */
+public class DistanceKernels {
+
+    private DistanceKernels() {
+    }
+
+    /**
+     * @return The sum of the squares of the values.
+     */
+    public static double squaredNorm(double[] values) {
+        double squaredNorm = 0;
+        for (double value : values) {
+            squaredNorm += value * value;
+        }
+        return squaredNorm;
+    }
+
+    /**
+     * @return The sum of the absolute values.
+     */
+    public static double l1Norm(double[] values) {
+        double l1Norm = 0;
+        for (double value : values) {
+            l1Norm += Math.abs(value);
+        }
+        return l1Norm;
+    }
+
+    /**
+     * Sums (q - v)^2 over the words of the query, as |q|^2 plus v^2 - 2qv for every word both vectors share.
+     *
+     * @param querySquaredNorm The squared norm of the query values.
+     * @return The squared Euclidean distance from the query, over the words of the query.
+     */
+    public static double querySquaredEuclidean(int[] queryIds, double[] queryValues, double querySquaredNorm,
+                                               int[] ids, double[] values) {
+        double squaredDistance = querySquaredNorm;
+        int i = 0;
+        int j = 0;
+        while (i < queryIds.length && j < ids.length) {
+            if (queryIds[i] < ids[j]) {
+                i++;
+            } else if (queryIds[i] > ids[j]) {
+                j++;
+            } else {
+                double value = values[j++];
+                squaredDistance += value * (value - 2 * queryValues[i++]);
+            }
+        }
+        return squaredDistance < 0 ? 0 : squaredDistance;
+    }
+
+    /**
+     * Sums |q - v| over the words of the query, as the L1 norm of the query plus |q - v| - |q| for every word both
+     * vectors share.
+     *
+     * @param queryL1Norm The L1 norm of the query values.
+     * @return The Manhattan distance from the query, over the words of the query.
+     */
+    public static double queryManhattan(int[] queryIds, double[] queryValues, double queryL1Norm,
+                                        int[] ids, double[] values) {
+        double distance = queryL1Norm;
+        int i = 0;
+        int j = 0;
+        while (i < queryIds.length && j < ids.length) {
+            if (queryIds[i] < ids[j]) {
+                i++;
+            } else if (queryIds[i] > ids[j]) {
+                j++;
+            } else {
+                double queryValue = queryValues[i++];
+                distance += Math.abs(queryValue - values[j++]) - Math.abs(queryValue);
+            }
+        }
+        return distance < 0 ? 0 : distance;
+    }
+}
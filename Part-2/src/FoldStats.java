@@ -43,6 +43,28 @@ public class FoldStats {
         return (getPosRecall() + getNegRecall()) / 2;
     }
 
+    /**
+     * Counts a single classification as a true or false positive or negative.
+     *
+     * @param classification The predicted sentiment. True is positive.
+     * @param sentiment      The actual sentiment of the review.
+     */
+    public void addClassification(boolean classification, boolean sentiment) {
+        if (classification == sentiment) {
+            if (classification) {
+                truePos++;
+            } else {
+                trueNeg++;
+            }
+        } else {
+            if (classification) {
+                falsePos++;
+            } else {
+                falseNeg++;
+            }
+        }
+    }
+
     public void incrementTruePos() {
         truePos++;
     }
@@ -62,5 +84,34 @@ public class FoldStats {
     public int getTotalTrue() {
         return truePos + trueNeg;
     }
+
+    public int getTruePos() {
+        return truePos;
+    }
+
+    public int getTrueNeg() {
+        return trueNeg;
+    }
+
+    public int getFalsePos() {
+        return falsePos;
+    }
+
+    public int getFalseNeg() {
+        return falseNeg;
+    }
+
+    /**
+     * Adds the counts of other to these stats, e.g. to combine the stats of the chunks of a testing fold that
+     * were classified on different threads.
+     *
+     * @param other Stats to add to these stats.
+     */
+    public void add(FoldStats other) {
+        truePos += other.truePos;
+        trueNeg += other.trueNeg;
+        falsePos += other.falsePos;
+        falseNeg += other.falseNeg;
+    }
 }
 
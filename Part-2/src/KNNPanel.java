@@ -8,6 +8,11 @@ public class KNNPanel extends JPanel {
     private JCheckBox useManhattanDistance;
     private JTextField K;
     private JCheckBox useTfIdf;
+    private JLabel approximateTermsLabel;
+    private JTextField approximateTerms;
+    private JLabel approximateCandidatesLabel;
+    private JTextField approximateCandidates;
+    private JCheckBox useDistanceCache;
     private final String PANEL_TITLE = "K-NN Options";
     private JLabel titleArea;
 
@@ -19,11 +24,24 @@ public class KNNPanel extends JPanel {
         K.setText("Specify K");
         useTfIdf = new JCheckBox();
         useTfIdf.setText("Use tf-idf instead of unary weighting (tf)");
+        approximateTermsLabel = new JLabel("Approximate search: words scored per review (0 for exact search)");
+        approximateTermsLabel.setFont(useTfIdf.getFont());
+        approximateTerms = new JTextField("0");
+        approximateCandidatesLabel = new JLabel("Approximate search: exact distances per review");
+        approximateCandidatesLabel.setFont(useTfIdf.getFont());
+        approximateCandidates = new JTextField("200");
+        useDistanceCache = new JCheckBox();
+        useDistanceCache.setText("Keep distances on disk, so runs with another K are fast");
         titleArea = new JLabel(PANEL_TITLE);
         this.add(titleArea);
         this.add(useTfIdf);
         this.add(useManhattanDistance);
         this.add(K);
+        this.add(approximateTermsLabel);
+        this.add(approximateTerms);
+        this.add(approximateCandidatesLabel);
+        this.add(approximateCandidates);
+        this.add(useDistanceCache);
         this.setVisible(true);
     }
 
@@ -35,6 +53,10 @@ public class KNNPanel extends JPanel {
         return useManhattanDistance.isSelected();
     }
 
+    public boolean shouldUseDistanceCache() {
+        return useDistanceCache.isSelected();
+    }
+
     public int getK() {
         try {
             int KValue =  Integer.parseInt(K.getText());
@@ -44,10 +66,35 @@ public class KNNPanel extends JPanel {
         }
     }
 
+    /**
+     * @return How many words of a review approximate search scores, 0 for exact search, or -1 if not an integer.
+     */
+    public int getApproximateTermCount() {
+        return parseCount(approximateTerms);
+    }
+
+    /**
+     * @return How many exact distances approximate search computes per review, or -1 if not an integer.
+     */
+    public int getApproximateCandidateCount() {
+        return parseCount(approximateCandidates);
+    }
+
+    private static int parseCount(JTextField field) {
+        try {
+            return Integer.parseInt(field.getText().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public void disableComponents() {
         useTfIdf.setEnabled(false);
         useTfIdf.setEnabled(false);
         K.setEnabled(false);
+        approximateTerms.setEnabled(false);
+        approximateCandidates.setEnabled(false);
+        useDistanceCache.setEnabled(false);
     }
 
 
@@ -55,5 +102,8 @@ public class KNNPanel extends JPanel {
         useTfIdf.setEnabled(true);
         useTfIdf.setEnabled(true);
         K.setEnabled(true);
+        approximateTerms.setEnabled(true);
+        approximateCandidates.setEnabled(true);
+        useDistanceCache.setEnabled(true);
     }
 }
@@ -1,10 +1,16 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A K-Means Classifier (K-NN). Various parameters can be modified, such as K, how features
  * are normalized, and what distance metric the K-NN uses.
  */
-public class KNearestClassifier {
+public class KNearestClassifier implements Classifier {
 
     private int K;
     public static final String EUCLIDEAN = "EUCLIDEAN";
@@ -16,6 +22,50 @@ public class KNearestClassifier {
     private HashMap<String, Double> termToNormTfIdfMap;
     private boolean useTfIdf;
     // Include a field to indicate how features are normalized
+    /**
+     * Inverted index over the training reviews. The postings of term id t are the entries from
+     * postingStarts[t * tileCount] up to postingStarts[(t + 1) * tileCount]. Each entry holds the index of a training
+     * review that contains t, in ascending order, and the feature value of t in that review. The postings of t in the
+     * reviews of training tile b, for batches, start at postingStarts[t * tileCount + b].
+     */
+    private int[] postingStarts;
+    private int termCount;
+    private int tileCount;
+    private int[] postingReviews;
+    private double[] postingValues;
+    /**
+     * Relative slack added to the K-th smallest indexed distance when picking the reviews whose exact distance is
+     * computed. Much larger than the rounding error of either sum, so no neighbor of the brute force search is missed.
+     */
+    private static final double CANDIDATE_SLACK = 1e-8;
+    /**
+     * The same slack for distances read from a PairwiseDistanceCache, which are rounded to floats (a relative error
+     * of about 6e-8).
+     */
+    private static final double CACHED_CANDIDATE_SLACK = 1e-6;
+    /**
+     * Batches are scored in tiles of this many test reviews by this many training reviews. A tile of distances is
+     * 128 KB, so it stays in cache while the postings of its test reviews are added to it and its candidates are
+     * selected.
+     */
+    private static final int TEST_TILE_SIZE = 8;
+    private static final int TRAINING_TILE_SIZE = 2048;
+    /**
+     * Approximate search scores only this many words of a test review, the ones that can lower a distance the most,
+     * and computes the exact distance of this many candidates. 0 words to search exactly.
+     */
+    private int approximateTermCount;
+    private int approximateCandidateCount;
+    /**
+     * Indexed distances shared by the K-NNs of every fold, or null to score through the index. The training review
+     * at i is at cacheIndexes[i] in the cache.
+     */
+    private PairwiseDistanceCache distanceCache;
+    private int[] cacheIndexes;
+    /**
+     * Per thread buffers, so classifying does not allocate and the test reviews of a fold can be classified in parallel.
+     */
+    private ThreadLocal<Scratch> scratch = createScratch();
 
     /**
      * Initializes a K-NN with the specified K. Uses Euclidean distance as a similarity metric
@@ -27,6 +77,7 @@ public class KNearestClassifier {
         this.K = K;
         distanceMetric = EUCLIDEAN;
         this.movieReviews = movieReviews;
+        buildIndex();
     }
 
     public KNearestClassifier(int K, List<MovieReview> movieReviews, boolean useTfIdf, String distanceMetric) {
@@ -43,6 +94,7 @@ public class KNearestClassifier {
             }
         }
         termToNormTfIdfMap = new HashMap<>();
+        buildIndex();
         // Calculate tfidf norm values
         /*
         for (MovieReview review : movieReviews) {
@@ -99,18 +151,779 @@ public class KNearestClassifier {
         */
     }
 
+    /**
+     * Replaces the training reviews with the specified ones and indexes them again. A distance cache stays in use, so
+     * it must contain the new training reviews as well.
+     */
+    @Override
+    public void train(List<MovieReview> trainingReviews) {
+        movieReviews = trainingReviews;
+        buildIndex();
+        scratch = createScratch(); // The buffers are sized by the training review count
+        useDistanceCache(distanceCache);
+    }
+
+    private ThreadLocal<Scratch> createScratch() {
+        return new ThreadLocal<Scratch>() {
+            @Override
+            protected Scratch initialValue() {
+                return new Scratch(movieReviews.size());
+            }
+        };
+    }
+
+    /**
+     * Builds the inverted index of the training reviews, using counting sort so each posting list is filled in
+     * training review order.
+     */
+    private void buildIndex() {
+        termCount = 0;
+        for (MovieReview review : movieReviews) {
+            int[] termIds = review.getTermIds();
+            if (termIds.length > 0) {
+                termCount = Math.max(termCount, termIds[termIds.length - 1] + 1);
+            }
+        }
+        tileCount = Math.max(1, (movieReviews.size() + TRAINING_TILE_SIZE - 1) / TRAINING_TILE_SIZE);
+        int listCount = termCount * tileCount;
+        postingStarts = new int[listCount + 1];
+        for (int reviewIndex = 0; reviewIndex < movieReviews.size(); reviewIndex++) {
+            int tile = reviewIndex / TRAINING_TILE_SIZE;
+            for (int termId : movieReviews.get(reviewIndex).getTermIds()) {
+                postingStarts[termId * tileCount + tile + 1]++;
+            }
+        }
+        for (int list = 0; list < listCount; list++) {
+            postingStarts[list + 1] += postingStarts[list];
+        }
+        postingReviews = new int[postingStarts[listCount]];
+        postingValues = new double[postingStarts[listCount]];
+        int[] next = Arrays.copyOf(postingStarts, listCount);
+        for (int reviewIndex = 0; reviewIndex < movieReviews.size(); reviewIndex++) {
+            MovieReview review = movieReviews.get(reviewIndex);
+            int tile = reviewIndex / TRAINING_TILE_SIZE;
+            int[] termIds = review.getTermIds();
+            double[] values = review.getFeatureValues(useTfIdf);
+            for (int i = 0; i < termIds.length; i++) {
+                int posting = next[termIds[i] * tileCount + tile]++;
+                postingReviews[posting] = reviewIndex;
+                postingValues[posting] = values[i];
+            }
+        }
+    }
+
+    /**
+     * Switches to approximate search. Only the postings of the words of a test review that can lower a distance the
+     * most are added up, which skips the long posting lists of common words since tf-idf gives them little weight.
+     * The training reviews with the smallest partial distances are the candidates, and the K nearest candidates by
+     * exact distance are the neighbors. Much faster than exact search, but can miss some of the nearest neighbors;
+     * use getRecallAtK to measure how many.
+     *
+     * @param termCount      How many words of each test review to score, 0 to go back to exact search. Reviews with
+     *                       no more words than this are searched exactly.
+     * @param candidateCount How many candidates to compute the exact distance of. At least K are used.
+     */
+    public void useApproximateSearch(int termCount, int candidateCount) {
+        if (termCount < 0 || candidateCount < 0) {
+            throw new IllegalArgumentException("Approximate search counts must be at least 0");
+        }
+        approximateTermCount = termCount;
+        approximateCandidateCount = candidateCount;
+    }
+
+    /**
+     * Reads the indexed distances from a cache instead of computing them. Test reviews that are in the cache are then
+     * searched exactly without touching the index, even if approximate search is on; other test reviews are searched
+     * as before.
+     *
+     * @param distanceCache A cache with the metric and weighting of this K-NN, that contains every training review, or
+     *                      null to stop using a cache.
+     */
+    public void useDistanceCache(PairwiseDistanceCache distanceCache) {
+        if (distanceCache == null) {
+            this.distanceCache = null;
+            cacheIndexes = null;
+            return;
+        }
+        if (distanceCache.getUseTfIdf() != useTfIdf || !distanceCache.getDistanceMetric().equals(distanceMetric)) {
+            throw new IllegalArgumentException("Distance cache was computed with another metric or weighting");
+        }
+        int[] cacheIndexes = new int[movieReviews.size()];
+        for (int i = 0; i < cacheIndexes.length; i++) {
+            cacheIndexes[i] = distanceCache.indexOf(movieReviews.get(i));
+            if (cacheIndexes[i] < 0) {
+                throw new IllegalArgumentException("Distance cache does not contain every training review");
+            }
+        }
+        this.cacheIndexes = cacheIndexes;
+        this.distanceCache = distanceCache;
+    }
+
+    public boolean isApproximate() {
+        return approximateTermCount > 0;
+    }
+
+    /**
+     * Writes the settings and the reference reviews of this K-NN, for a ModelSnapshot. The reviews keep the tf-idfs
+     * they have now. A distance cache is not saved.
+     */
+    void writeModel(DataOutputStream out) throws IOException {
+        out.writeInt(K);
+        out.writeByte(useTfIdf ? 1 : 0);
+        out.writeByte(distanceMetric.equals(EUCLIDEAN) ? 1 : 0);
+        out.writeInt(approximateTermCount);
+        out.writeInt(approximateCandidateCount);
+        out.writeInt(movieReviews.size());
+        for (MovieReview review : movieReviews) {
+            out.writeByte(review.getSentiment() ? 1 : 0);
+            out.writeInt(review.getUniqueTermCount());
+            ModelSnapshot.writeInts(out, review.getTermIds());
+            ModelSnapshot.writeInts(out, review.getTermCounts());
+            ModelSnapshot.writeDoubles(out, review.getTfIdfs());
+        }
+    }
+
+    /**
+     * Reads a K-NN written by writeModel and indexes its reference reviews again.
+     *
+     * @param dictionary The dictionary the reference reviews use.
+     */
+    static KNearestClassifier readModel(ByteBuffer in, TermDictionary dictionary) {
+        int K = in.getInt();
+        boolean useTfIdf = in.get() == 1;
+        String distanceMetric = (in.get() == 1) ? EUCLIDEAN : MANHATTAN;
+        int approximateTermCount = in.getInt();
+        int approximateCandidateCount = in.getInt();
+        int reviewCount = in.getInt();
+        List<MovieReview> movieReviews = new ArrayList<>(reviewCount);
+        for (int i = 0; i < reviewCount; i++) {
+            boolean label = in.get() == 1;
+            int uniqueTerms = in.getInt();
+            int[] termIds = ModelSnapshot.readInts(in, uniqueTerms);
+            int[] termCounts = ModelSnapshot.readInts(in, uniqueTerms);
+            double[] tfIdfs = ModelSnapshot.readDoubles(in, uniqueTerms);
+            MovieReview review = new MovieReview(termIds, termCounts, label, dictionary);
+            for (int j = 0; j < uniqueTerms; j++) {
+                review.setTfIdfAt(j, tfIdfs[j]);
+            }
+            review.updateTfIdfNorms();
+            movieReviews.add(review);
+        }
+        KNearestClassifier kNearest = new KNearestClassifier(K, movieReviews, useTfIdf, distanceMetric);
+        kNearest.useApproximateSearch(approximateTermCount, approximateCandidateCount);
+        return kNearest;
+    }
+
+    /**
+     * Measures recall@K of approximate search against exact search: the share of the exact K nearest neighbors of
+     * each review that approximate search finds, averaged over the reviews.
+     *
+     * @param testReviews The reviews to search the neighbors of.
+     * @return The recall, from 0 to 1. 1 if search is exact.
+     */
+    public double getRecallAtK(List<MovieReview> testReviews) {
+        int neighborCount = Math.min(K, movieReviews.size());
+        if (!isApproximate() || neighborCount == 0 || testReviews.isEmpty()) {
+            return 1;
+        }
+        int[] exactIndexes = new int[neighborCount];
+        long neighborsFound = 0;
+        for (MovieReview testReview : testReviews) {
+            TopKSelector exactNeighbors = selectExactNeighbors(testReview);
+            for (int i = 0; i < neighborCount; i++) {
+                exactIndexes[i] = exactNeighbors.getIndex(i);
+            }
+            Arrays.sort(exactIndexes);
+            TopKSelector approximateNeighbors = selectApproximateNeighbors(testReview);
+            if (approximateNeighbors == null) {
+                neighborsFound += neighborCount; // Searched exactly
+                continue;
+            }
+            for (int i = 0; i < neighborCount; i++) {
+                if (Arrays.binarySearch(exactIndexes, approximateNeighbors.getIndex(i)) >= 0) {
+                    neighborsFound++;
+                }
+            }
+        }
+        return (double) neighborsFound / ((long) neighborCount * testReviews.size());
+    }
+
+    /**
+     * Classifies a review by the vote of its K nearest training reviews. Unless search is approximate, returns the
+     * same result as classifyReviewBruteForce.
+     *
+     * @param testReview The review to classify.
+     * @return True if the review is classified as positive.
+     */
     public boolean classifyReview(MovieReview testReview) {
-        // long startCDTime = System.currentTimeMillis();
+        return vote(selectNearestNeighbors(testReview)).isPositive();
+    }
+
+    /**
+     * Classifies a review the same way as classifyReview.
+     *
+     * @return The prediction, scored as the share of positive votes minus the share of negative votes, from -1 to 1.
+     */
+    @Override
+    public Prediction predict(MovieReview review) {
+        return vote(selectNearestNeighbors(review));
+    }
+
+    /**
+     * Classifies the reviews as a single batch on the calling thread, the way classifyReviews does.
+     */
+    @Override
+    public Prediction[] predictBatch(List<MovieReview> reviews) {
+        Prediction[] predictions = new Prediction[reviews.size()];
+        runBatch(new BatchTask(reviews, 0, reviews.size(), predictions, null, null), 1);
+        return predictions;
+    }
+
+    /**
+     * Lets the sorted neighbors vote.
+     */
+    private Prediction vote(TopKSelector neighbors) {
+        int posReviews = 0;
+        int negReviews = 0;
+        for (int i = 0; i < neighbors.size(); i++) {
+            if (movieReviews.get(neighbors.getIndex(i)).getSentiment()) {
+                posReviews++;
+            } else {
+                negReviews++;
+            }
+            i++; // Every other neighbor votes, the same as classifyReviewBruteForce
+        }
+        int votes = posReviews + negReviews;
+        return new Prediction((votes == 0) ? 0 : (double) (posReviews - negReviews) / votes, posReviews >= negReviews);
+    }
+
+    /**
+     * Finds the K nearest training reviews of a review, nearest first. Equal distances are ordered by training
+     * review index.
+     *
+     * @param testReview        The review to find the neighbors of.
+     * @param neighborIndexes   Filled with the index of each neighbor in the training reviews. At least K long.
+     * @param neighborDistances Filled with the distance to each neighbor. At least K long.
+     * @return How many neighbors were found, the smaller of K and the training review count.
+     */
+    public int findNearestNeighbors(MovieReview testReview, int[] neighborIndexes, double[] neighborDistances) {
+        TopKSelector neighbors = selectNearestNeighbors(testReview);
+        for (int i = 0; i < neighbors.size(); i++) {
+            neighborIndexes[i] = neighbors.getIndex(i);
+            neighborDistances[i] = neighbors.getDistance(i);
+        }
+        return neighbors.size();
+    }
+
+    /**
+     * Finds the K nearest training reviews of a review, nearest first.
+     *
+     * @param testReview The review to find the neighbors of.
+     * @return A tuple for each neighbor, with the test review as origin and the neighbor as destination.
+     */
+    public List<ReviewDistanceTuple> getNearestNeighbors(MovieReview testReview) {
+        TopKSelector neighbors = selectNearestNeighbors(testReview);
+        List<ReviewDistanceTuple> tupleList = new ArrayList<>(neighbors.size());
+        for (int i = 0; i < neighbors.size(); i++) {
+            tupleList.add(new ReviewDistanceTuple(testReview, movieReviews.get(neighbors.getIndex(i)), neighbors.getDistance(i)));
+        }
+        return tupleList;
+    }
+
+    /**
+     * Classifies a batch of reviews, e.g. a whole testing fold. Returns the same results as calling classifyReview
+     * on each review, but scores the batch in tiles, so each tile of training postings is reused by many test
+     * reviews while it is still in cache.
+     *
+     * @param testReviews The reviews to classify.
+     * @param threads     How many threads to classify on. 1 classifies on the calling thread. When called from a
+     *                    fork/join pool, the tiles run on that pool instead.
+     * @return True for each review that is classified as positive, in the order of testReviews.
+     */
+    public boolean[] classifyReviews(List<MovieReview> testReviews, int threads) {
+        Prediction[] predictions = new Prediction[testReviews.size()];
+        runBatch(new BatchTask(testReviews, 0, testReviews.size(), predictions, null, null), threads);
+        boolean[] classifications = new boolean[predictions.length];
+        for (int i = 0; i < predictions.length; i++) {
+            classifications[i] = predictions[i].isPositive();
+        }
+        return classifications;
+    }
+
+    /**
+     * Finds the K nearest training reviews of each review of a batch, nearest first, the same as
+     * findNearestNeighbors does for a single review.
+     *
+     * @param testReviews       The reviews to find the neighbors of.
+     * @param threads           How many threads to search on, as in classifyReviews.
+     * @param neighborIndexes   A row for each test review, filled with the index of each neighbor in the training
+     *                          reviews. Each row at least K long.
+     * @param neighborDistances A row for each test review, filled with the distance to each neighbor. Each row at
+     *                          least K long. May be null.
+     * @return How many neighbors were found for each review, the smaller of K and the training review count.
+     */
+    public int findNearestNeighbors(List<MovieReview> testReviews, int threads, int[][] neighborIndexes,
+                                    double[][] neighborDistances) {
+        runBatch(new BatchTask(testReviews, 0, testReviews.size(), null, neighborIndexes, neighborDistances), threads);
+        return Math.min(K, movieReviews.size());
+    }
+
+    private void runBatch(BatchTask task, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        if (threads == 1) {
+            for (int lower = task.lower; lower < task.upper; lower += TEST_TILE_SIZE) {
+                scoreTestTile(task, lower, Math.min(lower + TEST_TILE_SIZE, task.upper));
+            }
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Finds the neighbors of a tile of at most TEST_TILE_SIZE test reviews, the same way selectNearestNeighbors
+     * does for one. The training reviews are visited a tile at a time: the indexed distances of the tile are
+     * accumulated from the postings in the tile, which the test reviews of the tile share, and are offered to the
+     * candidate selector of each test review right away. Since the K-th smallest indexed distance only shrinks, every review that ends up within the candidate threshold is
+     * within the threshold of the moment it was offered, so only those reviews are remembered, and the exact
+     * distance is computed for the ones that are still within the final threshold.
+     */
+    private void scoreTestTile(BatchTask task, int lower, int upper) {
+        if (isApproximate() || distanceCache != null) {
+            for (int testIndex = lower; testIndex < upper; testIndex++) {
+                writeBatchResult(task, testIndex, selectNearestNeighbors(task.testReviews.get(testIndex)));
+            }
+            return;
+        }
+        Scratch scratch = this.scratch.get();
+        scratch.ensureBatchBuffers();
+        int trainingCount = movieReviews.size();
+        int neighborCount = Math.min(K, trainingCount);
+        boolean euclidean = distanceMetric.equals(EUCLIDEAN);
+        int rows = upper - lower;
+        double[] distances = scratch.tileDistances;
+        PipelineMetrics.get().addDistanceComputations((long) rows * trainingCount);
+        for (int row = 0; row < rows; row++) {
+            MovieReview testReview = task.testReviews.get(lower + row);
+            scratch.emptyDistances[row] = euclidean ? testReview.getSquaredNorm(useTfIdf) : testReview.getL1Norm(useTfIdf);
+            scratch.rowCandidates[row].reset(neighborCount);
+            scratch.rowNeighbors[row].reset(neighborCount);
+            scratch.nearCounts[row] = 0;
+        }
+        for (int tile = 0; neighborCount > 0 && tile < tileCount; tile++) {
+            int tileStart = tile * TRAINING_TILE_SIZE;
+            int tileEnd = Math.min(tileStart + TRAINING_TILE_SIZE, trainingCount);
+            for (int row = 0; row < rows; row++) {
+                MovieReview testReview = task.testReviews.get(lower + row);
+                int[] testTermIds = testReview.getTermIds();
+                double[] testValues = testReview.getFeatureValues(useTfIdf);
+                double emptyDistance = scratch.emptyDistances[row];
+                int offset = row * TRAINING_TILE_SIZE - tileStart;
+                Arrays.fill(distances, offset + tileStart, offset + tileEnd, emptyDistance);
+                for (int i = 0; i < testTermIds.length && testTermIds[i] < termCount; i++) {
+                    int list = testTermIds[i] * tileCount + tile;
+                    addPostings(distances, offset, postingStarts[list], postingStarts[list + 1], testValues[i], euclidean);
+                }
+                TopKSelector candidates = scratch.rowCandidates[row];
+                double threshold = candidates.size() < neighborCount ? Double.POSITIVE_INFINITY
+                        : getCandidateThreshold(candidates.getMaxDistance(), emptyDistance);
+                for (int reviewIndex = tileStart; reviewIndex < tileEnd; reviewIndex++) {
+                    double distance = distances[offset + reviewIndex];
+                    if (distance > threshold) {
+                        continue;
+                    }
+                    candidates.offer(distance, reviewIndex);
+                    if (candidates.size() == neighborCount) {
+                        threshold = getCandidateThreshold(candidates.getMaxDistance(), emptyDistance);
+                    }
+                    scratch.addNear(row, reviewIndex, distance, threshold);
+                }
+            }
+        }
+        for (int row = 0; row < rows; row++) {
+            MovieReview testReview = task.testReviews.get(lower + row);
+            TopKSelector neighbors = scratch.rowNeighbors[row];
+            if (neighborCount > 0) {
+                double threshold = getCandidateThreshold(scratch.rowCandidates[row].getMaxDistance(),
+                        scratch.emptyDistances[row]);
+                int[] nearIndexes = scratch.nearIndexes[row];
+                double[] nearDistances = scratch.nearDistances[row];
+                for (int i = 0; i < scratch.nearCounts[row]; i++) {
+                    if (nearDistances[i] <= threshold) {
+                        neighbors.offer(computeDistance(testReview, movieReviews.get(nearIndexes[i])), nearIndexes[i]);
+                    }
+                }
+            }
+            neighbors.sort();
+            writeBatchResult(task, lower + row, neighbors);
+        }
+    }
+
+    /**
+     * Stores the sorted neighbors of a test review in the results the batch asked for.
+     */
+    private void writeBatchResult(BatchTask task, int testIndex, TopKSelector neighbors) {
+        if (task.predictions != null) {
+            task.predictions[testIndex] = vote(neighbors);
+        }
+        for (int i = 0; i < neighbors.size(); i++) {
+            if (task.neighborIndexes != null) {
+                task.neighborIndexes[testIndex][i] = neighbors.getIndex(i);
+            }
+            if (task.neighborDistances != null) {
+                task.neighborDistances[testIndex][i] = neighbors.getDistance(i);
+            }
+        }
+    }
+
+    /**
+     * Adds a range of the postings of one word of a test review to the indexed distances of the training reviews
+     * they belong to.
+     *
+     * @param offset Added to the index of a training review to find its distance in distances.
+     */
+    private void addPostings(double[] distances, int offset, int start, int end, double testFeatValue,
+                             boolean euclidean) {
+        double emptyTerm = euclidean ? testFeatValue * testFeatValue : Math.abs(testFeatValue);
+        for (int posting = start; posting < end; posting++) {
+            double diff = testFeatValue - postingValues[posting];
+            distances[offset + postingReviews[posting]] += (euclidean ? diff * diff : Math.abs(diff)) - emptyTerm;
+        }
+    }
+
+    /**
+     * @return The largest indexed distance a review can have and still be one of the K nearest by exact distance.
+     */
+    private static double getCandidateThreshold(double kthDistance, double emptyDistance) {
+        return kthDistance + CANDIDATE_SLACK * (Math.abs(kthDistance) + emptyDistance);
+    }
+
+    /**
+     * @return The sorted neighbors, in this thread's scratch selector. Only valid until the next call on this thread.
+     */
+    private TopKSelector selectNearestNeighbors(MovieReview testReview) {
+        if (distanceCache != null) {
+            int queryIndex = distanceCache.indexOf(testReview);
+            if (queryIndex >= 0) {
+                // Looked up in the cache rather than computed
+                return selectCachedNeighbors(testReview, queryIndex);
+            }
+        }
+        if (isApproximate()) {
+            TopKSelector neighbors = selectApproximateNeighbors(testReview);
+            if (neighbors != null) {
+                PipelineMetrics.get().addDistanceComputations(Math.min(approximateCandidateCount, movieReviews.size()));
+                return neighbors;
+            }
+        }
+        // Counted once per test review rather than per distance, to keep the counter out of the inner loops
+        PipelineMetrics.get().addDistanceComputations(movieReviews.size());
+        return selectExactNeighbors(testReview);
+    }
+
+    /**
+     * Picks candidates by the cached indexed distances instead of the index, then computes the exact distance of the
+     * candidates that can be among the K nearest, like selectExactNeighbors.
+     *
+     * @param queryIndex The cache index of the test review.
+     * @return The sorted neighbors, in this thread's scratch selector. Only valid until the next call on this thread.
+     */
+    private TopKSelector selectCachedNeighbors(MovieReview testReview, int queryIndex) {
+        Scratch scratch = this.scratch.get();
+        int trainingCount = movieReviews.size();
+        int neighborCount = Math.min(K, trainingCount);
+        TopKSelector neighbors = scratch.neighbors;
+        neighbors.reset(neighborCount);
+        if (neighborCount == 0) {
+            neighbors.sort();
+            return neighbors;
+        }
+        double[] distances = scratch.distances;
+        TopKSelector candidates = scratch.candidates;
+        candidates.reset(neighborCount);
+        for (int reviewIndex = 0; reviewIndex < trainingCount; reviewIndex++) {
+            distances[reviewIndex] = distanceCache.getIndexedDistance(queryIndex, cacheIndexes[reviewIndex]);
+            candidates.offer(distances[reviewIndex], reviewIndex);
+        }
+        double emptyDistance = distanceMetric.equals(EUCLIDEAN) ? testReview.getSquaredNorm(useTfIdf)
+                : testReview.getL1Norm(useTfIdf);
+        double kthDistance = candidates.getMaxDistance();
+        double threshold = kthDistance + CACHED_CANDIDATE_SLACK * (Math.abs(kthDistance) + emptyDistance);
+        for (int reviewIndex = 0; reviewIndex < trainingCount; reviewIndex++) {
+            if (distances[reviewIndex] <= threshold) {
+                neighbors.offer(computeDistance(testReview, movieReviews.get(reviewIndex)), reviewIndex);
+            }
+        }
+        neighbors.sort();
+        return neighbors;
+    }
+
+    /**
+     * Adds up the postings of the approximateTermCount words of the test review that can lower a distance the most,
+     * then computes the exact distance of the approximateCandidateCount reviews with the smallest partial distance.
+     *
+     * @return The sorted neighbors, in this thread's scratch selector, or null if the review is small enough to
+     * search exactly.
+     */
+    private TopKSelector selectApproximateNeighbors(MovieReview testReview) {
+        int[] testTermIds = testReview.getTermIds();
+        if (testTermIds.length <= approximateTermCount) {
+            return null;
+        }
+        Scratch scratch = this.scratch.get();
+        int trainingCount = movieReviews.size();
+        int neighborCount = Math.min(K, trainingCount);
+        boolean euclidean = distanceMetric.equals(EUCLIDEAN);
+        double[] testValues = testReview.getFeatureValues(useTfIdf);
+        // A training review can lower the distance by at most the test value squared (Euclidean) or the absolute
+        // test value (Manhattan) of a word, when it has the same value for the word
+        TopKSelector terms = scratch.terms;
+        terms.reset(approximateTermCount);
+        for (int i = 0; i < testTermIds.length && testTermIds[i] < termCount; i++) {
+            double testFeatValue = testValues[i];
+            terms.offer(-(euclidean ? testFeatValue * testFeatValue : Math.abs(testFeatValue)), i);
+        }
+        terms.sort();
+        double emptyDistance = euclidean ? testReview.getSquaredNorm(useTfIdf) : testReview.getL1Norm(useTfIdf);
+        double[] distances = scratch.distances;
+        Arrays.fill(distances, emptyDistance);
+        for (int rank = 0; rank < terms.size(); rank++) {
+            int i = terms.getIndex(rank);
+            int list = testTermIds[i] * tileCount;
+            addPostings(distances, 0, postingStarts[list], postingStarts[list + tileCount], testValues[i], euclidean);
+        }
+        TopKSelector candidates = scratch.candidates;
+        candidates.reset(Math.min(Math.max(approximateCandidateCount, neighborCount), trainingCount));
+        for (int reviewIndex = 0; reviewIndex < trainingCount; reviewIndex++) {
+            candidates.offer(distances[reviewIndex], reviewIndex);
+        }
+        candidates.sort();
+        TopKSelector neighbors = scratch.neighbors;
+        neighbors.reset(neighborCount);
+        for (int rank = 0; rank < candidates.size(); rank++) {
+            int reviewIndex = candidates.getIndex(rank);
+            neighbors.offer(computeDistance(testReview, movieReviews.get(reviewIndex)), reviewIndex);
+        }
+        neighbors.sort();
+        return neighbors;
+    }
+
+    /**
+     * Candidates are scored through the inverted index, so only training reviews that share words with the test
+     * review are visited, and then the exact distance is computed for the few candidates that can be among the K
+     * nearest.
+     *
+     * @return The sorted neighbors, in this thread's scratch selector. Only valid until the next call on this thread.
+     */
+    private TopKSelector selectExactNeighbors(MovieReview testReview) {
+        Scratch scratch = this.scratch.get();
+        int trainingCount = movieReviews.size();
+        int neighborCount = Math.min(K, trainingCount);
+        TopKSelector neighbors = scratch.neighbors;
+        neighbors.reset(neighborCount);
+        if (neighborCount == 0) {
+            neighbors.sort();
+            return neighbors;
+        }
+        double[] distances = scratch.distances;
+        double emptyDistance = computeIndexedDistances(testReview, distances);
+        selectIndexedNeighbors(testReview, distances, emptyDistance, distanceMetric.equals(EUCLIDEAN), scratch);
+        return neighbors;
+    }
+
+    /**
+     * Picks the candidates with the K smallest indexed distances, plus the ones within rounding of the K-th, and
+     * offers their exact distances to this thread's scratch neighbor selector, which must be reset to the neighbor
+     * count first.
+     *
+     * @param euclidean True if the indexed distances are squared Euclidean, false if they are Manhattan.
+     */
+    private void selectIndexedNeighbors(MovieReview testReview, double[] distances, double emptyDistance,
+                                        boolean euclidean, Scratch scratch) {
+        int trainingCount = movieReviews.size();
+        TopKSelector neighbors = scratch.neighbors;
+        TopKSelector candidates = scratch.candidates;
+        candidates.reset(neighbors.getK());
+        for (int reviewIndex = 0; reviewIndex < trainingCount; reviewIndex++) {
+            candidates.offer(distances[reviewIndex], reviewIndex);
+        }
+        double threshold = getCandidateThreshold(candidates.getMaxDistance(), emptyDistance);
+        for (int reviewIndex = 0; reviewIndex < trainingCount; reviewIndex++) {
+            if (distances[reviewIndex] <= threshold) {
+                neighbors.offer(computeDistance(testReview, movieReviews.get(reviewIndex), euclidean), reviewIndex);
+            }
+        }
+        neighbors.sort();
+    }
+
+    /**
+     * Computes the indexed distance from the test review to every training review: the squared Euclidean or the
+     * Manhattan distance, over the words of the test review. Used by PairwiseDistanceCache, so the cached distances
+     * are the ones the index computes.
+     *
+     * @param distances Receives the distance to training review i at i. At least as long as the training reviews.
+     * @return The distance of an empty review, which a training review that shares no words with the test review has.
+     */
+    double computeIndexedDistances(MovieReview testReview, double[] distances) {
+        return computeIndexedDistances(testReview, distances, distanceMetric.equals(EUCLIDEAN));
+    }
+
+    private double computeIndexedDistances(MovieReview testReview, double[] distances, boolean euclidean) {
+        // The distance only sums over the words of the test review, so every training review starts out with the
+        // distance of an empty review, and the postings correct it for the words it shares with the test review.
+        int[] testTermIds = testReview.getTermIds();
+        double[] testValues = testReview.getFeatureValues(useTfIdf);
+        double emptyDistance = euclidean ? testReview.getSquaredNorm(useTfIdf) : testReview.getL1Norm(useTfIdf);
+        Arrays.fill(distances, 0, movieReviews.size(), emptyDistance);
+        for (int i = 0; i < testTermIds.length && testTermIds[i] < termCount; i++) {
+            int list = testTermIds[i] * tileCount;
+            addPostings(distances, 0, postingStarts[list], postingStarts[list + tileCount], testValues[i], euclidean);
+        }
+        return emptyDistance;
+    }
+
+    /**
+     * Computes the indexed squared Euclidean and Manhattan distances from the test review to every training review in
+     * a single pass over the postings, the same distances computeIndexedDistances computes for each metric.
+     */
+    private void computeIndexedDistances(MovieReview testReview, double[] squaredDistances, double[] l1Distances) {
+        int[] testTermIds = testReview.getTermIds();
+        double[] testValues = testReview.getFeatureValues(useTfIdf);
+        Arrays.fill(squaredDistances, 0, movieReviews.size(), testReview.getSquaredNorm(useTfIdf));
+        Arrays.fill(l1Distances, 0, movieReviews.size(), testReview.getL1Norm(useTfIdf));
+        for (int i = 0; i < testTermIds.length && testTermIds[i] < termCount; i++) {
+            int list = testTermIds[i] * tileCount;
+            double testFeatValue = testValues[i];
+            double emptySquared = testFeatValue * testFeatValue;
+            double emptyL1 = Math.abs(testFeatValue);
+            for (int posting = postingStarts[list]; posting < postingStarts[list + tileCount]; posting++) {
+                double diff = testFeatValue - postingValues[posting];
+                int reviewIndex = postingReviews[posting];
+                squaredDistances[reviewIndex] += diff * diff - emptySquared;
+                l1Distances[reviewIndex] += Math.abs(diff) - emptyL1;
+            }
+        }
+    }
+
+    /**
+     * Cross validates every K from 1 up to the K of this K-NN, and every specified metric, on a testing fold at the
+     * cost of about one classification of the fold. The neighbors of each test review are ranked once, up to K, and
+     * each smaller K votes with the nearest of them, the same way classifyReview would with that K; the ranking is
+     * nearest first with ties in training review order, so the first k of the K nearest are the k nearest. With both
+     * metrics the indexed distances of both are added up from one pass over the postings.
+     * <p>
+     * Search is always exact, so the stats of each K are those of an exact K-NN with that K and metric, whether or
+     * not approximate search or a distance cache is in use.
+     *
+     * @param testReviews     Labelled reviews the K-NN was not trained on.
+     * @param distanceMetrics The metrics to sweep, EUCLIDEAN and/or MANHATTAN. The weighting is the one of this K-NN.
+     * @return The stats of each metric and K, stats[m][k - 1] for the m-th metric and K = k.
+     */
+    public FoldStats[][] sweep(List<MovieReview> testReviews, String... distanceMetrics) {
+        boolean[] euclidean = new boolean[distanceMetrics.length];
+        boolean anyEuclidean = false;
+        boolean anyManhattan = false;
+        for (int m = 0; m < distanceMetrics.length; m++) {
+            if (!distanceMetrics[m].equals(EUCLIDEAN) && !distanceMetrics[m].equals(MANHATTAN)) {
+                throw new IllegalArgumentException("Invalid distance metric");
+            }
+            euclidean[m] = distanceMetrics[m].equals(EUCLIDEAN);
+            anyEuclidean |= euclidean[m];
+            anyManhattan |= !euclidean[m];
+        }
+        FoldStats[][] stats = new FoldStats[distanceMetrics.length][K];
+        for (FoldStats[] metricStats : stats) {
+            for (int k = 0; k < K; k++) {
+                metricStats[k] = new FoldStats();
+            }
+        }
+        Scratch scratch = this.scratch.get();
+        int trainingCount = movieReviews.size();
+        int neighborCount = Math.min(K, trainingCount);
+        double[] squaredDistances = anyEuclidean ? scratch.distances : null;
+        double[] l1Distances = anyManhattan ? (anyEuclidean ? new double[trainingCount] : scratch.distances) : null;
+        for (MovieReview testReview : testReviews) {
+            if (anyEuclidean && anyManhattan) {
+                computeIndexedDistances(testReview, squaredDistances, l1Distances);
+            } else if (anyEuclidean) {
+                computeIndexedDistances(testReview, squaredDistances, true);
+            } else if (anyManhattan) {
+                computeIndexedDistances(testReview, l1Distances, false);
+            }
+            PipelineMetrics.get().addDistanceComputations((long) trainingCount * distanceMetrics.length);
+            for (int m = 0; m < distanceMetrics.length; m++) {
+                TopKSelector neighbors = scratch.neighbors;
+                neighbors.reset(neighborCount);
+                if (neighborCount == 0) {
+                    neighbors.sort();
+                } else if (euclidean[m]) {
+                    selectIndexedNeighbors(testReview, squaredDistances, testReview.getSquaredNorm(useTfIdf), true,
+                            scratch);
+                } else {
+                    selectIndexedNeighbors(testReview, l1Distances, testReview.getL1Norm(useTfIdf), false, scratch);
+                }
+                addSweepVotes(neighbors, testReview.getSentiment(), stats[m]);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Counts the classification of a test review by each K, from the votes of its sorted neighbors. Every other
+     * neighbor votes, as in vote, so K = 2k classifies the same as K = 2k - 1.
+     *
+     * @param stats The stats of each K, K = k at k - 1.
+     */
+    private void addSweepVotes(TopKSelector neighbors, boolean sentiment, FoldStats[] stats) {
+        int posReviews = 0;
+        int negReviews = 0;
+        for (int k = 1; k <= stats.length; k++) {
+            int rank = k - 1;
+            if (rank % 2 == 0 && rank < neighbors.size()) {
+                if (movieReviews.get(neighbors.getIndex(rank)).getSentiment()) {
+                    posReviews++;
+                } else {
+                    negReviews++;
+                }
+            }
+            stats[rank].addClassification(posReviews >= negReviews, sentiment);
+        }
+    }
+
+    /**
+     * Classifies a review by computing its distance to every training review. Slower than classifyReview, but
+     * kept as the reference the indexed search has to agree with.
+     *
+     * @param testReview The review to classify.
+     * @return True if the review is classified as positive.
+     */
+    public boolean classifyReviewBruteForce(MovieReview testReview) {
+        PipelineMetrics.get().addDistanceComputations(movieReviews.size());
         ArrayList<ReviewDistanceTuple> tupleList = new ArrayList<>();
         for (MovieReview trainingReview : movieReviews) {
             double distance = computeDistance(testReview, trainingReview);
             ReviewDistanceTuple reviewDistanceTuple = new ReviewDistanceTuple(testReview, trainingReview, distance); // testReview = originReview
             tupleList.add(reviewDistanceTuple);
         }
+        return vote(tupleList);
+    }
+
+    /**
+     * Sorts the tuples by distance, ties staying in training review order, and lets the nearest K vote.
+     */
+    private boolean vote(List<ReviewDistanceTuple> tupleList) {
         int posReviews = 0;
         int negReviews = 0;
         Collections.sort(tupleList);
-        for (int i = 0; i < K; i++) {
+        for (int i = 0; i < Math.min(K, tupleList.size()); i++) {
             if (tupleList.get(i).getDestinationReview().getSentiment()) {
                 posReviews++;
             } else {
@@ -118,38 +931,25 @@ public class KNearestClassifier {
             }
             i++;
         }
-        // System.out.print("Current time ");
-        //  System.out.println(System.currentTimeMillis() - startCDTime);
         return posReviews >= negReviews;
     }
 
     private double computeDistance(MovieReview testReview, MovieReview trainingReview) {
-        double distance = 0;
-        Iterator<String> testIt = testReview.getBagOfWordsIterator();
-        double distanceSum = 0;
-        while (testIt.hasNext()) {
-            String word = testIt.next();
-            double testFeatValue;
-            double trainingFeatValue;
-            if (useTfIdf) {
-                testFeatValue = testReview.getTfIdf(word);
-                trainingFeatValue = trainingReview.getTfIdf(word);
-            } else {
-                testFeatValue = (int) testReview.getTermFreq(word);
-                trainingFeatValue = (int) trainingReview.getTermFreq(word);
-            }
-            if (distanceMetric.equals(EUCLIDEAN)) {
-                distanceSum += Math.pow((testFeatValue - trainingFeatValue), 2);
-            } else {
-                distanceSum += Math.abs(testFeatValue - trainingFeatValue);
-            }
-        }
-        if (distanceMetric.equals(EUCLIDEAN)) {
-            distance = Math.sqrt(distanceSum);
+        return computeDistance(testReview, trainingReview, distanceMetric.equals(EUCLIDEAN));
+    }
+
+    private double computeDistance(MovieReview testReview, MovieReview trainingReview, boolean euclidean) {
+        int[] testTermIds = testReview.getTermIds();
+        double[] testValues = testReview.getFeatureValues(useTfIdf);
+        int[] trainingTermIds = trainingReview.getTermIds();
+        double[] trainingValues = trainingReview.getFeatureValues(useTfIdf);
+        if (euclidean) {
+            return Math.sqrt(DistanceKernels.querySquaredEuclidean(testTermIds, testValues,
+                    testReview.getSquaredNorm(useTfIdf), trainingTermIds, trainingValues));
         } else {
-            distance = distanceSum;
+            return DistanceKernels.queryManhattan(testTermIds, testValues, testReview.getL1Norm(useTfIdf),
+                    trainingTermIds, trainingValues);
         }
-        return distance;
     }
 
     private double normalizeTfIdf(String word, double tfIdf) {
@@ -175,4 +975,114 @@ public class KNearestClassifier {
     }
 
 
+    /**
+     * Scores a range of a batch, splitting it into halves along test tile boundaries until a single tile is left.
+     */
+    private class BatchTask extends RecursiveAction {
+        private List<MovieReview> testReviews;
+        private int lower;
+        private int upper;
+        private Prediction[] predictions;
+        private int[][] neighborIndexes;
+        private double[][] neighborDistances;
+
+        BatchTask(List<MovieReview> testReviews, int lower, int upper, Prediction[] predictions,
+                  int[][] neighborIndexes, double[][] neighborDistances) {
+            this.testReviews = testReviews;
+            this.lower = lower;
+            this.upper = upper;
+            this.predictions = predictions;
+            this.neighborIndexes = neighborIndexes;
+            this.neighborDistances = neighborDistances;
+        }
+
+        @Override
+        protected void compute() {
+            if (upper - lower <= TEST_TILE_SIZE) {
+                scoreTestTile(this, lower, upper);
+                return;
+            }
+            int tiles = (upper - lower + TEST_TILE_SIZE - 1) / TEST_TILE_SIZE;
+            int middle = lower + (tiles / 2) * TEST_TILE_SIZE;
+            invokeAll(new BatchTask(testReviews, lower, middle, predictions, neighborIndexes, neighborDistances),
+                    new BatchTask(testReviews, middle, upper, predictions, neighborIndexes, neighborDistances));
+        }
+    }
+
+    /**
+     * The indexed distance of every training review and the selectors of a single thread, plus the tile buffers
+     * of batches, which are only allocated once the thread scores a batch.
+     */
+    private static class Scratch {
+        private double[] distances;
+        private TopKSelector candidates;
+        private TopKSelector neighbors;
+        /**
+         * The words of a test review approximate search scores.
+         */
+        private TopKSelector terms;
+        /**
+         * The indexed distances of a tile of test reviews to a tile of training reviews, a row per test review.
+         */
+        private double[] tileDistances;
+        private double[] emptyDistances;
+        private TopKSelector[] rowCandidates;
+        private TopKSelector[] rowNeighbors;
+        /**
+         * Per test review of a tile, the training reviews that were within the candidate threshold when they were
+         * offered, and their indexed distances.
+         */
+        private int[][] nearIndexes;
+        private double[][] nearDistances;
+        private int[] nearCounts;
+
+        Scratch(int trainingCount) {
+            distances = new double[trainingCount];
+            candidates = new TopKSelector(0);
+            neighbors = new TopKSelector(0);
+            terms = new TopKSelector(0);
+        }
+
+        void ensureBatchBuffers() {
+            if (tileDistances != null) {
+                return;
+            }
+            tileDistances = new double[TEST_TILE_SIZE * TRAINING_TILE_SIZE];
+            emptyDistances = new double[TEST_TILE_SIZE];
+            rowCandidates = new TopKSelector[TEST_TILE_SIZE];
+            rowNeighbors = new TopKSelector[TEST_TILE_SIZE];
+            nearIndexes = new int[TEST_TILE_SIZE][16];
+            nearDistances = new double[TEST_TILE_SIZE][16];
+            nearCounts = new int[TEST_TILE_SIZE];
+            for (int row = 0; row < TEST_TILE_SIZE; row++) {
+                rowCandidates[row] = new TopKSelector(0);
+                rowNeighbors[row] = new TopKSelector(0);
+            }
+        }
+
+        /**
+         * Remembers a near review of a test review. When the row is full, the reviews that are no longer within
+         * the threshold are dropped first, and the row only grows if that freed less than half of it.
+         */
+        void addNear(int row, int reviewIndex, double distance, double threshold) {
+            int count = nearCounts[row];
+            if (count == nearIndexes[row].length) {
+                int kept = 0;
+                for (int i = 0; i < count; i++) {
+                    if (nearDistances[row][i] <= threshold) {
+                        nearIndexes[row][kept] = nearIndexes[row][i];
+                        nearDistances[row][kept++] = nearDistances[row][i];
+                    }
+                }
+                count = kept;
+                if (count * 2 > nearIndexes[row].length) {
+                    nearIndexes[row] = Arrays.copyOf(nearIndexes[row], nearIndexes[row].length * 2);
+                    nearDistances[row] = Arrays.copyOf(nearDistances[row], nearDistances[row].length * 2);
+                }
+            }
+            nearIndexes[row][count] = reviewIndex;
+            nearDistances[row][count] = distance;
+            nearCounts[row] = count + 1;
+        }
+    }
 }
@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The distance from every review of a corpus to every other review, for one distance metric and weighting, computed
+ * once and shared by the K-NN of every cross validation fold. Since a fold's training and testing reviews all come
+ * from the corpus, re-running cross validation, e.g. with another K, reads distances instead of computing them.
+ * <p>
+ * The distances are the indexed distances KNearestClassifier ranks candidates by: squared for Euclidean, and only
+ * summed over the words of the first review, so the distance from a to b differs from the one from b to a and the
+ * whole matrix is stored, row by row. Values are stored as floats, which is precise enough to pick candidates; the
+ * K-NN still computes the exact distance of the few candidates that can be neighbors.
+ * <p>
+ * A cache can be written to a file and memory mapped by later runs. Like a CorpusSnapshot, the file records the
+ * fingerprint of the review files and the punctuation setting, and read() returns null when either no longer
+ * matches. Layout, all values big-endian:
+ * <pre>
+ * int magic, int version, long fingerprint, byte ignorePunctuation, byte useTfIdf, byte euclidean
+ * int reviewCount, then reviewCount x reviewCount floats, row by row
+ * </pre>
+ */
+public class PairwiseDistanceCache {
+
+    private static final int MAGIC = 0x4D525044; // "MRPD"
+    /**
+     * Bump whenever the layout or the way distances are computed changes, so older caches are rebuilt.
+     */
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 23;
+
+    private boolean useTfIdf;
+    private String distanceMetric;
+    private int reviewCount;
+    /**
+     * The distance from review i to review j is at i * reviewCount + j. On the heap, or mapped from a file.
+     */
+    private FloatBuffer distances;
+    private IdentityHashMap<MovieReview, Integer> reviewIndexes;
+
+    /**
+     * Computes the distance between every pair of reviews.
+     *
+     * @param reviews        The reviews, e.g. every review of the corpus in file order.
+     * @param useTfIdf       True to compare tf-idfs, false to compare term counts.
+     * @param distanceMetric KNearestClassifier.EUCLIDEAN or MANHATTAN.
+     */
+    public PairwiseDistanceCache(List<MovieReview> reviews, boolean useTfIdf, String distanceMetric) {
+        this(reviews, useTfIdf, distanceMetric, null);
+        KNearestClassifier kNearest = new KNearestClassifier(0, reviews, useTfIdf, distanceMetric);
+        float[] values = new float[reviewCount * reviewCount];
+        double[] row = new double[reviewCount];
+        for (int i = 0; i < reviewCount; i++) {
+            kNearest.computeIndexedDistances(reviews.get(i), row);
+            for (int j = 0; j < reviewCount; j++) {
+                values[i * reviewCount + j] = (float) row[j];
+            }
+        }
+        distances = FloatBuffer.wrap(values);
+    }
+
+    private PairwiseDistanceCache(List<MovieReview> reviews, boolean useTfIdf, String distanceMetric,
+                                  FloatBuffer distances) {
+        if ((long) reviews.size() * reviews.size() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many reviews to cache every pair: " + reviews.size());
+        }
+        this.useTfIdf = useTfIdf;
+        this.distanceMetric = (distanceMetric == null) ? KNearestClassifier.EUCLIDEAN : distanceMetric;
+        this.distances = distances;
+        reviewCount = reviews.size();
+        reviewIndexes = new IdentityHashMap<>(reviewCount * 2);
+        for (int i = 0; i < reviewCount; i++) {
+            reviewIndexes.put(reviews.get(i), i);
+        }
+    }
+
+    /**
+     * @param parentFolder      Folder containing the pos and neg review directories.
+     * @param ignorePunctuation Whether the corpus ignores punctuation.
+     * @return Where the cache of the specified corpus, metric and weighting is stored.
+     */
+    public static File getCacheFile(File parentFolder, boolean ignorePunctuation, boolean useTfIdf,
+                                    String distanceMetric) {
+        return new File(parentFolder, "distances-" + distanceMetric.toLowerCase() + (useTfIdf ? "-tfidf" : "-tf")
+                + (ignorePunctuation ? "-nopunct" : "") + ".snapshot");
+    }
+
+    /**
+     * Writes the cache to a temporary file and then moves it into place, so a reader never sees a partially written
+     * cache.
+     *
+     * @param cacheFile         Where to write the cache.
+     * @param fingerprint       Fingerprint of the review files the reviews were read from.
+     * @param ignorePunctuation Whether punctuation was ignored when the reviews were tokenized.
+     */
+    public void write(File cacheFile, long fingerprint, boolean ignorePunctuation) throws IOException {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeByte(ignorePunctuation ? 1 : 0);
+            out.writeByte(useTfIdf ? 1 : 0);
+            out.writeByte(isEuclidean(distanceMetric) ? 1 : 0);
+            out.writeInt(reviewCount);
+            for (int i = 0; i < reviewCount * reviewCount; i++) {
+                out.writeFloat(distances.get(i));
+            }
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Memory maps a cache. The distances are read from the mapping as they are needed.
+     *
+     * @param cacheFile         The cache to read.
+     * @param fingerprint       Fingerprint of the review files as they are now.
+     * @param ignorePunctuation Whether punctuation should be ignored.
+     * @param reviews           The reviews, in the order the cache was computed in.
+     * @param useTfIdf          The weighting the cache should have.
+     * @param distanceMetric    The metric the cache should have.
+     * @return The cache, or null if there is no cache, it has another version, or it was computed from different
+     * files, with a different punctuation setting, metric or weighting, or for another number of reviews.
+     */
+    public static PairwiseDistanceCache read(File cacheFile, long fingerprint, boolean ignorePunctuation,
+                                             List<MovieReview> reviews, boolean useTfIdf, String distanceMetric)
+            throws IOException {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            long expectedSize = HEADER_SIZE + 4L * reviews.size() * reviews.size();
+            if (channel.size() != expectedSize) {
+                return null;
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != fingerprint
+                    || (in.get() == 1) != ignorePunctuation || (in.get() == 1) != useTfIdf
+                    || (in.get() == 1) != isEuclidean(distanceMetric) || in.getInt() != reviews.size()) {
+                return null;
+            }
+            // The mapping stays valid after the channel is closed
+            return new PairwiseDistanceCache(reviews, useTfIdf, distanceMetric, in.slice().asFloatBuffer());
+        }
+    }
+
+    private static boolean isEuclidean(String distanceMetric) {
+        return distanceMetric == null || distanceMetric.equals(KNearestClassifier.EUCLIDEAN);
+    }
+
+    /**
+     * @return The row and column of the review in the cache, or -1 if the review is not cached.
+     */
+    public int indexOf(MovieReview review) {
+        Integer index = reviewIndexes.get(review);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * @param queryIndex  The cache index of the review the distance is measured from.
+     * @param reviewIndex The cache index of the review the distance is measured to.
+     * @return The indexed distance, as KNearestClassifier computes it, rounded to a float.
+     */
+    public float getIndexedDistance(int queryIndex, int reviewIndex) {
+        return distances.get(queryIndex * reviewCount + reviewIndex);
+    }
+
+    public int getReviewCount() {
+        return reviewCount;
+    }
+
+    public boolean getUseTfIdf() {
+        return useTfIdf;
+    }
+
+    public String getDistanceMetric() {
+        return distanceMetric;
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * The JMX view of the PipelineMetrics counters. The stage timings are published as StageTimer MBeans of their own.
+ */
+public interface PipelineMetricsMBean {
+
+    long getFilesRead();
+
+    long getTokensProduced();
+
+    int getVocabularySize();
+
+    long getDistanceComputations();
+
+    String getReport();
+
+    void reset();
+}
@@ -34,6 +34,21 @@ public class ResultsPanel extends  JPanel {
         repaint();
     }
 
+    /**
+     * Adds text to the end of the K-NN results, e.g. the stats of a fold that just finished.
+     */
+    public void appendKNNAreaText(String text) {
+        KNNArea.append(text);
+        setVisible(true);
+        repaint();
+    }
+
+    public void appendRocchioAreaText(String text) {
+        rocchioArea.append(text);
+        setVisible(true);
+        repaint();
+    }
+
 
 }
 
@@ -1,4 +1,5 @@
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -8,21 +9,50 @@ public class ReviewDBParser {
 
     private List<MovieReview> movieReviews;
     /**
-     * Maps a word to how many times it has appeared in the entire corpus.
+     * Assigns every word in the corpus an id. Every review shares this dictionary.
      */
-    private HashMap<String, Integer> termInCorpusFreqMap; // *** Not sure if actually useful ***
+    private TermDictionary dictionary;
     /**
-     * Maps a word to how many reviews it has appeared in.
+     * How many times each word has appeared in the entire corpus, indexed by term id.
      */
-    private HashMap<String, Integer> termInReviewFreqMap;
+    private int[] termInCorpusFreqs; // *** Not sure if actually useful ***
     /**
-     * Maps a word to its inverse document frequency (idf)
+     * How many reviews each word has appeared in, indexed by term id.
      */
-    private HashMap<String, Double> termToIdfMap;
+    private int[] termInReviewFreqs;
     /**
-     * Maps a word to its WEIGHTED inverse document frequency (idf)
+     * The inverse document frequency (idf) of each word, indexed by term id.
      */
-    private HashMap<String, Double> smoothIdfMap;
+    private double[] idfs;
+    /**
+     * The WEIGHTED inverse document frequency (idf) of each word, indexed by term id.
+     */
+    private double[] smoothIdfs;
+    /**
+     * For each word, the idf generation in which its idf last changed, indexed by term id.
+     */
+    private int[] idfGenerations;
+    /**
+     * Incremented every time the idfs are refreshed. A review whose tf-idfs were calculated in an older generation
+     * than the idf of one of its words is stale.
+     */
+    private int idfGeneration;
+    /**
+     * Words whose review frequency changed since the idfs were last refreshed.
+     */
+    private BitSet staleTerms;
+    /**
+     * The review count the idfs were last calculated with. Every idf depends on it.
+     */
+    private int idfReviewCount;
+    /**
+     * True if reviews were added or removed since the tf-idfs were last refreshed.
+     */
+    private boolean tfIdfStale;
+    /**
+     * True if reviews were added or removed since the reviews were last partitioned.
+     */
+    private boolean partitionsStale;
     /**
      * How many movie reviews there are in total.
      */
@@ -36,53 +66,209 @@ public class ReviewDBParser {
     private RocchioClassifier rocchioClassifier;
     private static final String POSITIVE_DIR = "/pos";
     private static final String NEGATIVE_DIR = "/neg";
+    private static final int PARTITIONS = 5;
     private boolean ignorePunctuation;
+    /**
+     * Loads the review files in parallel. Null if the files are read one at a time.
+     */
+    private ParallelReviewLoader loader;
+    /**
+     * Describes how the corpus was loaded and how long it took.
+     */
+    private String loadReport;
+    private File parentFolder;
+    /**
+     * Fingerprint of the review files the corpus was loaded from.
+     */
+    private long fingerprint;
+    /**
+     * The loaded reviews in file order, which on-disk distance caches use, since the corpus itself is shuffled. Null
+     * once reviews were added or removed, when caches are only kept in memory.
+     */
+    private List<MovieReview> fileOrderReviews;
+    /**
+     * Distance caches computed or read so far, by metric and weighting. Cleared when reviews are added or removed.
+     */
+    private HashMap<String, PairwiseDistanceCache> distanceCaches;
 
     public ReviewDBParser(File parentFolder, boolean ignorePunctuation) {
+        this(parentFolder, ignorePunctuation, true, true);
+    }
+
+    public ReviewDBParser(File parentFolder, boolean ignorePunctuation, boolean parallelLoad) {
+        this(parentFolder, ignorePunctuation, parallelLoad, true);
+    }
+
+    /**
+     * @param parentFolder      Folder containing the pos and neg review directories.
+     * @param ignorePunctuation True if tokens made of a single punctuation character should be ignored.
+     * @param parallelLoad      True to memory map and tokenize the review files on all cores, false to read them one
+     *                          at a time. Both build the same list of reviews.
+     * @param useSnapshot       True to load the corpus from its CorpusSnapshot when the snapshot is still valid, and
+     *                          to write a new snapshot after parsing the review files otherwise.
+     */
+    public ReviewDBParser(File parentFolder, boolean ignorePunctuation, boolean parallelLoad, boolean useSnapshot) {
+        long start = System.nanoTime();
         movieReviews = new ArrayList<>();
+        dictionary = new TermDictionary();
+        staleTerms = new BitSet();
+        distanceCaches = new HashMap<>();
+        this.parentFolder = parentFolder;
         this.ignorePunctuation = ignorePunctuation;
-        // Parse review directories
-        parseReviewDirectory(parentFolder, POSITIVE_DIR, ignorePunctuation);
-        parseReviewDirectory(parentFolder, NEGATIVE_DIR, ignorePunctuation);
-        reviewCount = movieReviews.size();
-
-        /*
-        Create corpus frequency and review frequency maps
-         */
-        termInCorpusFreqMap = new HashMap<>();
-        termInReviewFreqMap = new HashMap<>();
-        for (MovieReview review : movieReviews) {
-            Iterator<String> it = review.getBagOfWordsIterator();
-            while (it.hasNext()) {
-                String word = it.next();
-                int termFrequencyInReview = review.getTermFreq(word);
-                if (termInCorpusFreqMap.get(word) == null) {
-                    // Set frequency to frequency encountered
-                    termInCorpusFreqMap.put(word, termFrequencyInReview);
-                } else {
-                    // Set frequency to previous frequency + frequency encountered
-                    termInCorpusFreqMap.put(word, termInCorpusFreqMap.get(word) + termFrequencyInReview);
-                }
-                if (termInReviewFreqMap.get(word) == null) {
-                    termInReviewFreqMap.put(word, 1);
-                } else {
-                    termInReviewFreqMap.put(word, termInReviewFreqMap.get(word) + 1);
+        if (parallelLoad) {
+            loader = new ParallelReviewLoader();
+        }
+        File[] posFiles = listReviewFiles(parentFolder, POSITIVE_DIR);
+        File[] negFiles = listReviewFiles(parentFolder, NEGATIVE_DIR);
+        fingerprint = CorpusSnapshot.fingerprint(posFiles, negFiles);
+        File snapshotFile = CorpusSnapshot.getSnapshotFile(parentFolder, ignorePunctuation);
+        CorpusSnapshot snapshot = null;
+        if (useSnapshot) {
+            try {
+                snapshot = CorpusSnapshot.read(snapshotFile, fingerprint, ignorePunctuation);
+            } catch (IOException e) {
+                e.printStackTrace(); // Fall back to parsing the review files
+            }
+        }
+        if (snapshot != null) {
+            dictionary = snapshot.getDictionary();
+            movieReviews.addAll(snapshot.getMovieReviews());
+            reviewCount = movieReviews.size();
+            termInCorpusFreqs = snapshot.getTermInCorpusFreqs();
+            termInReviewFreqs = snapshot.getTermInReviewFreqs();
+            idfs = snapshot.getIdfs();
+            smoothIdfs = snapshot.getSmoothIdfs();
+            idfGeneration = 1;
+            idfGenerations = new int[idfs.length];
+            Arrays.fill(idfGenerations, idfGeneration);
+            idfReviewCount = reviewCount;
+            loadReport = "Loaded " + reviewCount + " reviews from " + snapshotFile.getName();
+            PipelineMetrics.get().getStage(PipelineMetrics.PARSE).recordSince(start);
+        } else {
+            // Parse review directories
+            parseReviewFiles(posFiles, true, ignorePunctuation);
+            parseReviewFiles(negFiles, false, ignorePunctuation);
+            reviewCount = movieReviews.size();
+            calculateTermFreqs();
+            PipelineMetrics.get().getStage(PipelineMetrics.PARSE).recordSince(start);
+            /*
+            Calculate inverse document frequency (idf)
+             */
+            long idfStart = System.nanoTime();
+            idfs = new double[dictionary.size()];
+            smoothIdfs = new double[dictionary.size()];
+            idfGenerations = new int[dictionary.size()];
+            refreshIdf();
+            PipelineMetrics.get().getStage(PipelineMetrics.IDF).recordSince(idfStart);
+            loadReport = (loader != null) ? loader.getThroughputReport() : "Parsed " + reviewCount + " reviews";
+            if (useSnapshot) {
+                try {
+                    new CorpusSnapshot(dictionary, new ArrayList<>(movieReviews), termInCorpusFreqs, termInReviewFreqs,
+                            idfs, smoothIdfs).write(snapshotFile, fingerprint, ignorePunctuation);
+                } catch (IOException e) {
+                    e.printStackTrace(); // The snapshot is only an optimization
                 }
             }
         }
-        /*
-        Calculate inverse document frequency (idf)
-         */
-        termToIdfMap = new HashMap<>();
-        smoothIdfMap = new HashMap<>();
-        calculateIdf();
-        calculateTfIdf();
+        tfIdfStale = true;
+        refreshTfIdf();
+        loadReport += " (" + (System.nanoTime() - start) / 1000000 + " ms until tf-idf was ready)";
+        fileOrderReviews = new ArrayList<>(movieReviews);
         shuffleReviews();
         trainingToTestingMap = new HashMap<>();
-        partitionReviews(5);
+        partitionReviews(PARTITIONS);
+    }
+
+    /**
+     * Reads a review file and adds it to the corpus.
+     *
+     * @param file      The review file.
+     * @param sentiment True if the review is positive. False otherwise.
+     * @return The new review.
+     */
+    public MovieReview addReview(File file, boolean sentiment) {
+        MovieReview review = new MovieReview(file, sentiment, ignorePunctuation, dictionary);
+        addReview(review);
+        return review;
+    }
+
+    /**
+     * Adds a review to the corpus and updates the document frequencies of its words. Idfs and tf-idfs are not
+     * recalculated until reviews or folds are next read from this parser, and then only for the reviews whose
+     * idf inputs actually changed, so adding several reviews in a row costs a single refresh.
+     *
+     * @param review A review built with this parser's TermDictionary.
+     */
+    public void addReview(MovieReview review) {
+        if (review.getDictionary() != dictionary) {
+            throw new IllegalArgumentException("Review was not built with this parser's term dictionary");
+        }
+        ensureTermCapacity(dictionary.size());
+        movieReviews.add(review);
+        reviewCount++;
+        updateTermFreqs(review, 1);
+    }
+
+    /**
+     * Removes a review from the corpus and updates the document frequencies of its words. Like addReview, the
+     * idfs and tf-idfs are refreshed lazily.
+     *
+     * @param review The review to remove.
+     * @return True if the review was in the corpus.
+     */
+    public boolean removeReview(MovieReview review) {
+        if (!movieReviews.remove(review)) {
+            return false;
+        }
+        reviewCount--;
+        updateTermFreqs(review, -1);
+        return true;
+    }
+
+    /**
+     * @param delta 1 if the review was added, -1 if it was removed.
+     */
+    private void updateTermFreqs(MovieReview review, int delta) {
+        int[] termIds = review.getTermIds();
+        int[] termCounts = review.getTermCounts();
+        for (int i = 0; i < termIds.length; i++) {
+            termInCorpusFreqs[termIds[i]] += delta * termCounts[i];
+            termInReviewFreqs[termIds[i]] += delta;
+            staleTerms.set(termIds[i]);
+        }
+        tfIdfStale = true;
+        partitionsStale = true;
+        fileOrderReviews = null;
+        distanceCaches.clear();
+    }
+
+    /**
+     * Grows the per term arrays so every id in the dictionary has a slot.
+     */
+    private void ensureTermCapacity(int termCount) {
+        if (termCount <= termInReviewFreqs.length) {
+            return;
+        }
+        int capacity = Math.max(termCount, termInReviewFreqs.length * 3 / 2);
+        termInCorpusFreqs = Arrays.copyOf(termInCorpusFreqs, capacity);
+        termInReviewFreqs = Arrays.copyOf(termInReviewFreqs, capacity);
+        idfs = Arrays.copyOf(idfs, capacity);
+        smoothIdfs = Arrays.copyOf(smoothIdfs, capacity);
+        idfGenerations = Arrays.copyOf(idfGenerations, capacity);
+    }
+
+    /**
+     * Create corpus frequency and review frequency maps
+     */
+    private void calculateTermFreqs() {
+        termInCorpusFreqs = new int[dictionary.size()];
+        termInReviewFreqs = new int[dictionary.size()];
         for (MovieReview review : movieReviews) {
-            if (review.getTfIdfMap().size() != review.getBagOfWords().size()) {
-                int i = 3;
+            int[] termIds = review.getTermIds();
+            int[] termCounts = review.getTermCounts();
+            for (int i = 0; i < termIds.length; i++) {
+                termInCorpusFreqs[termIds[i]] += termCounts[i];
+                termInReviewFreqs[termIds[i]]++;
             }
         }
     }
@@ -94,17 +280,24 @@ public class ReviewDBParser {
      * @return Array containg all unique words from the specified list of movie reviews (the vocabulary).
      */
     private String[] getVocabulary(List<MovieReview> movieReviews) {
-        Set<String> vocabulary = new HashSet<>();
+        boolean[] inVocabulary = new boolean[dictionary.size()];
+        int vocabularySize = 0;
         for (MovieReview review : movieReviews) {
-            Iterator<String> it = review.getBagOfWordsIterator();
-            while (it.hasNext()) {
-                String word = it.next();
-                if (!vocabulary.contains(word)) {
-                    vocabulary.add(word);
+            for (int termId : review.getTermIds()) {
+                if (!inVocabulary[termId]) {
+                    inVocabulary[termId] = true;
+                    vocabularySize++;
                 }
             }
         }
-        return vocabulary.toArray(new String[vocabulary.size()]);
+        String[] vocabulary = new String[vocabularySize];
+        int next = 0;
+        for (int termId = 0; termId < inVocabulary.length; termId++) {
+            if (inVocabulary[termId]) {
+                vocabulary[next++] = dictionary.getTerm(termId);
+            }
+        }
+        return vocabulary;
     }
 
     public void initKNearest(int K, List<MovieReview> movieReviews, boolean useTfIdf, String distanceMetric) {
@@ -115,24 +308,173 @@ public class ReviewDBParser {
         rocchioClassifier = new RocchioClassifier(movieReviews, useTfIdf, distanceMetric);
     }
 
-    private void parseReviewDirectory(File parentFolder, String posOrNeg, boolean ignorePunctuation) {
-        boolean sentiment = posOrNeg.equals(POSITIVE_DIR); // Sentiment = true if positive reviews. False otherwise.
+    /**
+     * Returns the distances between every pair of reviews in the corpus, computing them the first time they are asked
+     * for with a metric and weighting. Passed to getKNearestTrainer, the K-NN of every fold reads its distances from
+     * it.
+     *
+     * @param useTfIdf       True to compare tf-idfs, false to compare term counts.
+     * @param distanceMetric KNearestClassifier.EUCLIDEAN or MANHATTAN.
+     * @param onDisk         True to memory map the cache from next to the review directories when it is still valid,
+     *                       and to write it there after computing it otherwise. Only while no review was added or
+     *                       removed since loading.
+     * @return The cache.
+     */
+    public PairwiseDistanceCache getDistanceCache(boolean useTfIdf, String distanceMetric, boolean onDisk) {
+        String key = distanceMetric + (useTfIdf ? "-tfidf" : "-tf");
+        PairwiseDistanceCache distanceCache = distanceCaches.get(key);
+        if (distanceCache != null) {
+            return distanceCache;
+        }
+        refreshTfIdf();
+        if (onDisk && fileOrderReviews != null) {
+            File cacheFile = PairwiseDistanceCache.getCacheFile(parentFolder, ignorePunctuation, useTfIdf,
+                    distanceMetric);
+            try {
+                distanceCache = PairwiseDistanceCache.read(cacheFile, fingerprint, ignorePunctuation, fileOrderReviews,
+                        useTfIdf, distanceMetric);
+            } catch (IOException e) {
+                e.printStackTrace(); // Fall back to computing the distances
+            }
+            if (distanceCache == null) {
+                distanceCache = new PairwiseDistanceCache(fileOrderReviews, useTfIdf, distanceMetric);
+                try {
+                    distanceCache.write(cacheFile, fingerprint, ignorePunctuation);
+                } catch (IOException e) {
+                    e.printStackTrace(); // The cache file is only an optimization
+                }
+            }
+        } else {
+            distanceCache = new PairwiseDistanceCache(movieReviews, useTfIdf, distanceMetric);
+        }
+        distanceCaches.put(key, distanceCache);
+        return distanceCache;
+    }
+
+    /**
+     * @return Builds a new K-NN for each fold passed to a CrossValidator.
+     */
+    public CrossValidator.FoldTrainer getKNearestTrainer(final int K, final boolean useTfIdf, final String distanceMetric) {
+        return getKNearestTrainer(K, useTfIdf, distanceMetric, 0, 0);
+    }
+
+    /**
+     * @return Trains a new K-NN on each fold passed to a CrossValidator, searching approximately unless
+     * approximateTermCount is 0. See KNearestClassifier.useApproximateSearch.
+     */
+    public CrossValidator.FoldTrainer getKNearestTrainer(final int K, final boolean useTfIdf, final String distanceMetric,
+                                                         final int approximateTermCount,
+                                                         final int approximateCandidateCount) {
+        return getKNearestTrainer(K, useTfIdf, distanceMetric, approximateTermCount, approximateCandidateCount, null);
+    }
+
+    /**
+     * @param distanceCache Distances for the K-NNs to read instead of computing, from getDistanceCache, or null.
+     * @return Trains a new K-NN on each fold passed to a CrossValidator, searching approximately unless
+     * approximateTermCount is 0.
+     */
+    public CrossValidator.FoldTrainer getKNearestTrainer(final int K, final boolean useTfIdf, final String distanceMetric,
+                                                         final int approximateTermCount,
+                                                         final int approximateCandidateCount,
+                                                         final PairwiseDistanceCache distanceCache) {
+        return new CrossValidator.FoldTrainer() {
+            @Override
+            public Classifier train(List<MovieReview> trainingList) {
+                KNearestClassifier kNearest = new KNearestClassifier(K, trainingList, useTfIdf, distanceMetric);
+                kNearest.useApproximateSearch(approximateTermCount, approximateCandidateCount);
+                kNearest.useDistanceCache(distanceCache);
+                return kNearest;
+            }
+        };
+    }
+
+    /**
+     * @param maxK            The largest K to sweep. Every K from 1 up to it is tested.
+     * @param distanceMetrics The metrics to sweep, KNearestClassifier.EUCLIDEAN and/or MANHATTAN.
+     * @return Trains a K-NN on each fold passed to CrossValidator.runSweep and tests every K and metric on it, with
+     * the stats of K = k under the m-th metric at m * maxK + k - 1. See KNearestClassifier.sweep.
+     */
+    public CrossValidator.FoldSweeper getKNearestSweeper(final int maxK, final boolean useTfIdf,
+                                                         final String... distanceMetrics) {
+        return new CrossValidator.FoldSweeper() {
+            @Override
+            public FoldStats[] sweep(List<MovieReview> trainingList, List<MovieReview> testingList) {
+                KNearestClassifier kNearest = new KNearestClassifier(maxK, trainingList, useTfIdf, distanceMetrics[0]);
+                FoldStats[][] metricStats = kNearest.sweep(testingList, distanceMetrics);
+                FoldStats[] foldStats = new FoldStats[distanceMetrics.length * maxK];
+                for (int m = 0; m < metricStats.length; m++) {
+                    System.arraycopy(metricStats[m], 0, foldStats, m * maxK, maxK);
+                }
+                return foldStats;
+            }
+        };
+    }
+
+    /**
+     * @return Trains a new Rocchio classifier on each fold passed to a CrossValidator.
+     */
+    public CrossValidator.FoldTrainer getRocchioTrainer(final boolean useTfIdf, final String distanceMetric) {
+        return new CrossValidator.FoldTrainer() {
+            @Override
+            public Classifier train(List<MovieReview> trainingList) {
+                RocchioClassifier rocchio = new RocchioClassifier(trainingList, useTfIdf, distanceMetric);
+                rocchio.train();
+                return rocchio;
+            }
+        };
+    }
+
+    /**
+     * @return The files of the specified review directory, sorted by name. Empty if the directory does not exist.
+     */
+    private File[] listReviewFiles(File parentFolder, String posOrNeg) {
         File reviewDir = new File(parentFolder + posOrNeg);
         File[] reviewArr = reviewDir.listFiles();
-        // Create positive movie reviews
-        if (reviewArr != null) {
+        if (reviewArr == null) {
+            return new File[0];
+        }
+        Arrays.sort(reviewArr); // listFiles() order is platform dependent
+        return reviewArr;
+    }
+
+    /**
+     * @param sentiment True if the files are positive reviews. False otherwise.
+     */
+    private void parseReviewFiles(File[] reviewArr, boolean sentiment, boolean ignorePunctuation) {
+        if (loader != null) {
+            try {
+                movieReviews.addAll(loader.load(reviewArr, sentiment, ignorePunctuation, dictionary));
+            } catch (IOException e) {
+                e.printStackTrace(); // For now
+            }
+        } else {
             for (File file : reviewArr) {
-                movieReviews.add(new MovieReview(file, sentiment, ignorePunctuation)); // True because sentiment is positive
+                movieReviews.add(new MovieReview(file, sentiment, ignorePunctuation, dictionary));
             }
         }
     }
 
+    /**
+     * @return The parallel loader used to read the review files, or null if they were read one at a time.
+     */
+    public ParallelReviewLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * @return Whether the corpus came from a snapshot or the review files, and how long loading took.
+     */
+    public String getLoadReport() {
+        return loadReport;
+    }
+
     /**
      * Partitions the list of movie revies into the specified amount of partitions for cross validation testing.
      *
      * @param partitions The amount of partitions to partition to.
      */
     private void partitionReviews(int partitions) {
+        long start = System.nanoTime();
         shuffleReviews();
         int partitionSize = movieReviews.size() / partitions; // 2000 / 5 = 400
         List<List<MovieReview>> initPartition = new ArrayList<>(partitions);
@@ -153,33 +495,92 @@ public class ReviewDBParser {
             }
             trainingToTestingMap.put(trainingList, testingList);
         }
+        PipelineMetrics.get().getStage(PipelineMetrics.PARTITION).recordSince(start);
     }
 
 
-    private void calculateIdf() {
-        for (String word : termInCorpusFreqMap.keySet()) {
-            int termInReviewFreq = termInReviewFreqMap.get(word);
-            double quotient = (double) reviewCount / (1 + termInReviewFreq);
-            double idf = Math.log(quotient);
-            idf = idf < 0 ? 0 : idf; // Set idf to 0 if idf < 0
-            termToIdfMap.put(word, idf);
-            // Calculate weighted idf
-            // Using "inverse document frequency smooth" weighting scheme
-            double smoothDocWeight = Math.log(((double) reviewCount) / (1 + termInReviewFreqMap.get(word)));
-            double weightedIdf = idf * smoothDocWeight;
-            smoothIdfMap.put(word, weightedIdf);
+    /**
+     * Recalculates the idf of every word whose review frequency changed, or of every word if the review count
+     * changed, and stamps the words whose idf actually changed with a new generation.
+     */
+    private void refreshIdf() {
+        boolean allTerms = reviewCount != idfReviewCount;
+        if (!allTerms && staleTerms.isEmpty()) {
+            return;
         }
+        idfGeneration++;
+        int termCount = dictionary.size();
+        // Reviews tokenized with the dictionary but not added to the corpus can have grown it past the per term arrays
+        ensureTermCapacity(termCount);
+        if (allTerms) {
+            for (int termId = 0; termId < termCount; termId++) {
+                calculateIdf(termId);
+            }
+        } else {
+            for (int termId = staleTerms.nextSetBit(0); termId >= 0; termId = staleTerms.nextSetBit(termId + 1)) {
+                calculateIdf(termId);
+            }
+        }
+        staleTerms.clear();
+        idfReviewCount = reviewCount;
     }
 
+    private void calculateIdf(int termId) {
+        int termInReviewFreq = termInReviewFreqs[termId];
+        double quotient = (double) reviewCount / (1 + termInReviewFreq);
+        double idf = Math.log(quotient);
+        idf = idf < 0 ? 0 : idf; // Set idf to 0 if idf < 0
+        // Calculate weighted idf
+        // Using "inverse document frequency smooth" weighting scheme
+        double smoothDocWeight = Math.log(((double) reviewCount) / (1 + termInReviewFreq));
+        double weightedIdf = idf * smoothDocWeight;
+        if (idf != idfs[termId] || weightedIdf != smoothIdfs[termId]) {
+            idfs[termId] = idf;
+            smoothIdfs[termId] = weightedIdf;
+            idfGenerations[termId] = idfGeneration;
+        }
+    }
 
-    private void calculateTfIdf() {
+    /**
+     * Brings the idfs up to date, then recalculates the tf-idfs of the reviews that contain a word whose idf
+     * changed since their tf-idfs were last calculated. Does nothing if no review was added or removed.
+     */
+    public void refreshTfIdf() {
+        if (!tfIdfStale) {
+            return;
+        }
+        long start = System.nanoTime();
+        refreshIdf();
         for (MovieReview review : movieReviews) {
-            for (String word : review.getTfLogNormMap().keySet()) {
-                double tf = review.getTfLogNormMap().get(word);
-                double tfIdf = tf * termToIdfMap.get(word);
-                review.addTfIdf(word, tfIdf);
+            if (isTfIdfStale(review)) {
+                calculateTfIdf(review);
+            }
+        }
+        tfIdfStale = false;
+        PipelineMetrics.get().getStage(PipelineMetrics.IDF).recordSince(start);
+        PipelineMetrics.get().setVocabularySize(dictionary.size());
+    }
+
+    private boolean isTfIdfStale(MovieReview review) {
+        int reviewGeneration = review.getTfIdfGeneration();
+        for (int termId : review.getTermIds()) {
+            if (idfGenerations[termId] > reviewGeneration) {
+                return true;
             }
         }
+        return false;
+    }
+
+
+    private void calculateTfIdf(MovieReview review) {
+        int[] termIds = review.getTermIds();
+        double[] tfLogNorms = review.getTfLogNorms();
+        for (int i = 0; i < termIds.length; i++) {
+            double tfIdf = tfLogNorms[i] * idfs[termIds[i]];
+            review.setTfIdfAt(i, tfIdf);
+        }
+        review.updateTfIdfNorms();
+        review.setTfIdfGeneration(idfGeneration);
     }
 
 
@@ -187,7 +588,17 @@ public class ReviewDBParser {
         Collections.shuffle(movieReviews);
     }
 
+    /**
+     * @return Maps each training fold to its testing fold. The folds are rebuilt if reviews were added or removed
+     * since they were last partitioned.
+     */
     public HashMap<List<MovieReview>, List<MovieReview>> getTrainingToTestingMap() {
+        refreshTfIdf();
+        if (partitionsStale) {
+            trainingToTestingMap = new HashMap<>();
+            partitionReviews(PARTITIONS);
+            partitionsStale = false;
+        }
         return trainingToTestingMap;
     }
 
@@ -200,10 +611,30 @@ public class ReviewDBParser {
     }
 
 
+    /**
+     * @return Every review in the corpus, with up to date tf-idfs. Use addReview and removeReview to change it.
+     */
     public List<MovieReview> getMovieReviews() {
+        refreshTfIdf();
         return movieReviews;
     }
 
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return The idf of every word, indexed by term id, brought up to date first. May be longer than the dictionary.
+     */
+    public double[] getIdfs() {
+        refreshTfIdf();
+        return idfs;
+    }
+
+    public boolean shouldIgnorePunctuation() {
+        return ignorePunctuation;
+    }
+
     public static void main(String[] args) {
         long start = System.currentTimeMillis();
         String currentDir = System.getProperty("user.dir");
@@ -213,6 +644,7 @@ public class ReviewDBParser {
         } else {
             dbParser = new ReviewDBParser(new File("./txt_sentoken"), false);
         }
+        System.out.println(dbParser.getLoadReport());
         double reviewsCorrect = 0;
         double perceptronAccuracy = 0;
         int trainingCycles = 0;
@@ -262,33 +694,18 @@ public class ReviewDBParser {
         truePos = 0;
         trueNeg = 0;
         */
-        for (List<MovieReview> trainingList : dbParser.trainingToTestingMap.keySet()) {
-            dbParser.initRocchio(trainingList, useTfIdf, "EUCLIDEAN");
-            dbParser.rocchioClassifier.train();
-            List<MovieReview> testingList = dbParser.trainingToTestingMap.get(trainingList);
-            for (MovieReview review : testingList) {
-                boolean classification = dbParser.rocchioClassifier.classifyReview(review);
-                if (classification == review.getSentiment()) {
-                    reviewsCorrect++;
-                    if (classification) {
-                        truePos++;
-                    } else {
-                        trueNeg++;
-                    }
-                } else {
-                    if (classification) {
-                        falsePos++;
-                    } else {
-                        falseNeg++;
-                    }
-                }
-            }
+        List<FoldStats> rocchioFoldStats = new CrossValidator().run(dbParser.getTrainingToTestingMap(),
+                dbParser.getRocchioTrainer(useTfIdf, "EUCLIDEAN"));
+        reviewsCorrect = CrossValidator.getTotalTrue(rocchioFoldStats);
+        FoldStats totalStats = new FoldStats();
+        for (FoldStats foldStats : rocchioFoldStats) {
+            totalStats.add(foldStats);
         }
         System.out.println("Use tfidf: " + useTfIdf);
         System.out.println("Rocchio: " + reviewsCorrect + " / " + dbParser.movieReviews.size() + " correct.");
-        double precision = (double) truePos / (truePos + falsePos);
-        double recall = (double) truePos / (truePos + falseNeg);
-        double accuracy = (double) (truePos + trueNeg) / (truePos + trueNeg + falsePos + falseNeg);
+        double precision = totalStats.getPosPrecision();
+        double recall = totalStats.getPosRecall();
+        double accuracy = totalStats.getAccuracy();
         System.out.println("Rocchio accuracy: " + accuracy);
         System.out.println("Rocchio precision: " + precision);
         System.out.println("Rocchio recall: " + recall);
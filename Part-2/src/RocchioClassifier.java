@@ -1,22 +1,47 @@
-import java.security.spec.ECField;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Random;
-import java.util.jar.Pack200;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created by mpokr on 4/23/2017.
  */
-public class RocchioClassifier {
+public class RocchioClassifier implements Classifier {
 
     private List<MovieReview> movieReviews;
     private boolean useTfIdf;
     public static final String EUCLIDEAN = "EUCLIDEAN";
     public static final String MANHATTAN = "MANHATTAN";
     private String distanceMetric;
-    private HashMap<String, Double> posCentroidVector;
-    private HashMap<String, Double> negCentroidVector;
+    /**
+     * Running sums of the feature values of the positive and negative reviews trained on so far, indexed by term id.
+     */
+    private double[] posSums;
+    private double[] negSums;
+    /**
+     * How many of the positive and negative reviews trained on so far contain each word, indexed by term id, and how
+     * many distinct words each class has. A centroid is its sums divided by its distinct word count.
+     */
+    private int[] posReviewFreqs;
+    private int[] negReviewFreqs;
+    private int posWordCount;
+    private int negWordCount;
+    private boolean trained;
+    /**
+     * The reviews the sums hold, by identity, so only a review that was trained on can be retracted, and only once.
+     */
+    private Set<MovieReview> trainedReviews = Collections.newSetFromMap(new IdentityHashMap<MovieReview, Boolean>());
+    /**
+     * The compiled centroids, or null if they have to be compiled from the sums again. Immutable, so classifying is
+     * thread-safe.
+     */
+    private volatile Centroids centroids;
 
     public RocchioClassifier(List<MovieReview> movieReviews, boolean useTfIdf, String distanceMetric) {
         this.movieReviews = movieReviews;
@@ -32,74 +57,258 @@ public class RocchioClassifier {
         }
     }
 
-    public void train() {
-        HashMap<String, Double> posCentroidVector = new HashMap<>();
-        HashMap<String, Double> negCentroidVector = new HashMap<>();
-        HashMap<String, Double> reviewCentroidVector;
+    /**
+     * Trains on the reviews passed to the constructor, discarding any reviews added or removed before.
+     */
+    public synchronized void train() {
+        int termCount = 0;
         for (MovieReview review : movieReviews) {
-            Iterator<String> wordIt = review.getBagOfWordsIterator();
-            // Determines which hashmap to put the feature values of the review in (the pos or neg map).
-            reviewCentroidVector = (review.getSentiment()) ? posCentroidVector : negCentroidVector;
-            // Add to the pos and neg vector sums (will divide later to get centroid)
-            while (wordIt.hasNext()) {
-                String word = wordIt.next();
-                Double currentWordSum = reviewCentroidVector.get(word);
-                currentWordSum = (currentWordSum == null) ? 0 : currentWordSum;
-                if (useTfIdf) {
-                    reviewCentroidVector.put(word, currentWordSum + review.getTfIdf(word));
-                } else {
-                    reviewCentroidVector.put(word, currentWordSum + review.getTermFreq(word));
+            termCount = Math.max(termCount, review.getDictionary().size());
+        }
+        posSums = new double[termCount];
+        negSums = new double[termCount];
+        posReviewFreqs = new int[termCount];
+        negReviewFreqs = new int[termCount];
+        posWordCount = 0;
+        negWordCount = 0;
+        trainedReviews.clear();
+        for (MovieReview review : movieReviews) {
+            updateSums(review, 1);
+            trainedReviews.add(review);
+        }
+        trained = true;
+        centroids = null;
+        compileCentroids();
+    }
+
+    /**
+     * Trains on the specified reviews instead of the ones passed to the constructor, as train() does.
+     */
+    @Override
+    public synchronized void train(List<MovieReview> trainingReviews) {
+        movieReviews = trainingReviews;
+        train();
+    }
+
+    /**
+     * Folds a labelled review into its class centroid, in time proportional to the words of the review. The
+     * centroids are compiled again the next time a review is classified, so several reviews can be added in a row for
+     * the price of a single compile. Does not add the review to the list passed to the constructor.
+     *
+     * @param review A review with the sentiment it should be trained as.
+     * @throws IllegalArgumentException If the review is already trained on.
+     */
+    public synchronized void addReview(MovieReview review) {
+        ensureTrained();
+        if (!trainedReviews.add(review)) {
+            throw new IllegalArgumentException("Review was already trained on");
+        }
+        updateSums(review, 1);
+        centroids = null;
+    }
+
+    /**
+     * Takes a review that was trained on out of its class centroid again, like addReview in reverse. The review must
+     * still have the feature values it was trained with, e.g. retract it before the tf-idfs are refreshed.
+     *
+     * @param review A review that was trained on, by train() or addReview, and not retracted since.
+     * @throws IllegalArgumentException If the review is not trained on. The model is left untouched.
+     */
+    public synchronized void removeReview(MovieReview review) {
+        ensureTrained();
+        if (!trainedReviews.remove(review)) {
+            throw new IllegalArgumentException("Review was not trained on");
+        }
+        updateSums(review, -1);
+        centroids = null;
+    }
+
+    private void ensureTrained() {
+        if (!trained) {
+            throw new IllegalStateException("Train the classifier first");
+        }
+    }
+
+    /**
+     * @param delta 1 if the review is added, -1 if it is retracted.
+     */
+    private void updateSums(MovieReview review, int delta) {
+        int[] termIds = review.getTermIds();
+        double[] values = review.getFeatureValues(useTfIdf);
+        if (termIds.length > 0) {
+            ensureTermCapacity(termIds[termIds.length - 1] + 1);
+        }
+        boolean positive = review.getSentiment();
+        // Determines which centroid to add the feature values of the review to (the pos or neg one).
+        double[] sums = positive ? posSums : negSums;
+        int[] reviewFreqs = positive ? posReviewFreqs : negReviewFreqs;
+        int wordCountDelta = 0;
+        for (int i = 0; i < termIds.length; i++) {
+            int termId = termIds[i];
+            int reviewFreq = reviewFreqs[termId] + delta;
+            reviewFreqs[termId] = reviewFreq;
+            if (reviewFreq == 0) {
+                sums[termId] = 0; // Exactly, rather than what rounding leaves of the sum
+                wordCountDelta--;
+            } else {
+                sums[termId] += delta * values[i];
+                if (reviewFreq == 1 && delta > 0) {
+                    wordCountDelta++;
                 }
             }
         }
-        for (String word : posCentroidVector.keySet()) {
-            posCentroidVector.put(word, posCentroidVector.get(word) / posCentroidVector.size());
+        if (positive) {
+            posWordCount += wordCountDelta;
+        } else {
+            negWordCount += wordCountDelta;
+        }
+    }
+
+    /**
+     * Grows the per term arrays so every term id below termCount has a slot.
+     */
+    private void ensureTermCapacity(int termCount) {
+        if (termCount <= posSums.length) {
+            return;
+        }
+        int capacity = Math.max(termCount, posSums.length * 3 / 2);
+        posSums = Arrays.copyOf(posSums, capacity);
+        negSums = Arrays.copyOf(negSums, capacity);
+        posReviewFreqs = Arrays.copyOf(posReviewFreqs, capacity);
+        negReviewFreqs = Arrays.copyOf(negReviewFreqs, capacity);
+    }
+
+    /**
+     * Writes the running sums of this classifier, for a ModelSnapshot. The centroids are compiled from them again
+     * when the model is read.
+     */
+    synchronized void writeModel(DataOutputStream out) throws IOException {
+        ensureTrained();
+        out.writeByte(useTfIdf ? 1 : 0);
+        out.writeByte(distanceMetric.equals(EUCLIDEAN) ? 1 : 0);
+        out.writeInt(posWordCount);
+        out.writeInt(negWordCount);
+        out.writeInt(posSums.length);
+        ModelSnapshot.writeDoubles(out, posSums);
+        ModelSnapshot.writeDoubles(out, negSums);
+        ModelSnapshot.writeInts(out, posReviewFreqs);
+        ModelSnapshot.writeInts(out, negReviewFreqs);
+    }
+
+    /**
+     * Reads a classifier written by writeModel. It is trained, so reviews can be added to it and removed again, but it
+     * has no training reviews of its own, so train() would leave it empty, and the reviews it was trained on before it
+     * was saved cannot be retracted.
+     */
+    static RocchioClassifier readModel(ByteBuffer in) {
+        boolean useTfIdf = in.get() == 1;
+        String distanceMetric = (in.get() == 1) ? EUCLIDEAN : MANHATTAN;
+        RocchioClassifier rocchio = new RocchioClassifier(new ArrayList<MovieReview>(), useTfIdf, distanceMetric);
+        rocchio.posWordCount = in.getInt();
+        rocchio.negWordCount = in.getInt();
+        int termCount = in.getInt();
+        rocchio.posSums = ModelSnapshot.readDoubles(in, termCount);
+        rocchio.negSums = ModelSnapshot.readDoubles(in, termCount);
+        rocchio.posReviewFreqs = ModelSnapshot.readInts(in, termCount);
+        rocchio.negReviewFreqs = ModelSnapshot.readInts(in, termCount);
+        rocchio.trained = true;
+        rocchio.compileCentroids();
+        return rocchio;
+    }
+
+    /**
+     * @return The centroids, divided from the sums if reviews were added or removed since they were last compiled.
+     */
+    private synchronized Centroids compileCentroids() {
+        Centroids centroids = this.centroids;
+        if (centroids != null) {
+            return centroids;
         }
-        for (String word : negCentroidVector.keySet()) {
-            negCentroidVector.put(word, negCentroidVector.get(word) / negCentroidVector.size());
+        ensureTrained();
+        double[] posCentroid = new double[posSums.length];
+        double[] negCentroid = new double[negSums.length];
+        for (int termId = 0; termId < posCentroid.length; termId++) {
+            posCentroid[termId] = (posWordCount > 0) ? posSums[termId] / posWordCount : posSums[termId];
+            negCentroid[termId] = (negWordCount > 0) ? negSums[termId] / negWordCount : negSums[termId];
         }
-        this.posCentroidVector = posCentroidVector;
-        this.negCentroidVector = negCentroidVector;
+        centroids = new Centroids(posCentroid, negCentroid);
+        this.centroids = centroids;
+        return centroids;
     }
 
+    /**
+     * Measures the distance from the review to both centroids in a single pass over the words of the review, over
+     * the words of the review only, and picks the nearer one. Ties are broken randomly. Allocates nothing but the
+     * prediction, unless reviews were added or removed since the last review was classified.
+     *
+     * @param review The review to classify.
+     * @return True if the review is classified as positive.
+     */
     public boolean classifyReview(MovieReview review) {
-        double posDistance = 0;
-        double negDistance = 0;
-        Iterator<String> wordIt = review.getBagOfWordsIterator();
-        while (wordIt.hasNext()) {
-            String word = wordIt.next();
-            double wordFeatVal;
-            if (useTfIdf) {
-                wordFeatVal = review.getTfIdf(word);
-            } else {
-                wordFeatVal = review.getTermFreq(word);
-            }
-            Double posCentroidVal = posCentroidVector.get(word);
-            posCentroidVal = (posCentroidVal == null) ? 0 : posCentroidVal;
-            Double negCentroidVal = negCentroidVector.get(word);
-            negCentroidVal = (negCentroidVal == null) ? 0 : negCentroidVal;
-            if (distanceMetric.equals(EUCLIDEAN)) {
-                double posDiff = wordFeatVal - posCentroidVal;
-                posDistance += (posDiff * posDiff);
-                double negDiff = wordFeatVal - negCentroidVal;
-                negDistance += (negDiff * negDiff);
-            } else { // using Manhattan distance
-                double posDiff = Math.abs(wordFeatVal - posCentroidVal);
-                posDistance += posDiff;
-                double negDiff = Math.abs(wordFeatVal - negCentroidVal);
-                negDistance += negDiff;
-            }
+        return predict(review).isPositive();
+    }
+
+    /**
+     * Classifies a review the same way as classifyReview.
+     *
+     * @return The prediction, scored as the distance to the negative centroid minus the distance to the positive one.
+     */
+    @Override
+    public Prediction predict(MovieReview review) {
+        Centroids centroids = this.centroids;
+        if (centroids == null) {
+            centroids = compileCentroids();
         }
+        double[] posCentroid = centroids.posCentroid;
+        double[] negCentroid = centroids.negCentroid;
+        int[] termIds = review.getTermIds();
+        double[] values = review.getFeatureValues(useTfIdf);
+        double posDistance;
+        double negDistance;
         if (distanceMetric.equals(EUCLIDEAN)) {
-            posDistance = Math.sqrt(posDistance);
-            negDistance = Math.sqrt(negDistance);
+            // (q - c)^2 summed over the words of the review, as |q|^2 plus c^2 - 2qc for every word
+            posDistance = review.getSquaredNorm(useTfIdf);
+            negDistance = posDistance;
+            for (int i = 0; i < termIds.length && termIds[i] < posCentroid.length; i++) {
+                double value = values[i];
+                double posValue = posCentroid[termIds[i]];
+                double negValue = negCentroid[termIds[i]];
+                posDistance += posValue * (posValue - 2 * value);
+                negDistance += negValue * (negValue - 2 * value);
+            }
+            posDistance = Math.sqrt(posDistance < 0 ? 0 : posDistance);
+            negDistance = Math.sqrt(negDistance < 0 ? 0 : negDistance);
+        } else { // using Manhattan distance
+            // |q - c| summed over the words of the review, as |q|_1 plus |q - c| - |q| for every word
+            posDistance = review.getL1Norm(useTfIdf);
+            negDistance = posDistance;
+            for (int i = 0; i < termIds.length && termIds[i] < posCentroid.length; i++) {
+                double value = values[i];
+                double absValue = Math.abs(value);
+                posDistance += Math.abs(value - posCentroid[termIds[i]]) - absValue;
+                negDistance += Math.abs(value - negCentroid[termIds[i]]) - absValue;
+            }
+            posDistance = posDistance < 0 ? 0 : posDistance;
+            negDistance = negDistance < 0 ? 0 : negDistance;
         }
         if (posDistance == negDistance) {
-            Random r = new Random();
-            double randDouble = r.nextDouble();
-            return (randDouble > 0.5);
+            return new Prediction(0, ThreadLocalRandom.current().nextDouble() > 0.5);
         } else {
-            return (posDistance < negDistance);
+            return new Prediction(negDistance - posDistance, posDistance < negDistance);
+        }
+    }
+
+    /**
+     * The trained centroids, dense and indexed by term id. Words that were added to the dictionary after training
+     * are 0 in both centroids. Never changed once built, so it can be shared by any number of threads.
+     */
+    private static final class Centroids {
+        private final double[] posCentroid;
+        private final double[] negCentroid;
+
+        private Centroids(double[] posCentroid, double[] negCentroid) {
+            this.posCentroid = posCentroid;
+            this.negCentroid = negCentroid;
         }
     }
 }
@@ -0,0 +1,59 @@
+/**
+ * Times every run of a single stage of the pipeline, e.g. the training of each fold, in a LatencyHistogram. Safe to
+ * record into from several threads at once, e.g. from folds running in parallel.
+ */
+public class StageTimer implements StageTimerMBean {
+
+    private final String name;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    public StageTimer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param startNanos When the run started, from System.nanoTime(). It ends now.
+     */
+    public void recordSince(long startNanos) {
+        histogram.record(System.nanoTime() - startNanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return histogram.getMeanMillis() * histogram.getCount();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return histogram.getMeanMillis();
+    }
+
+    @Override
+    public double getP50Millis() {
+        return histogram.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return histogram.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return histogram.getMaxMillis();
+    }
+
+    @Override
+    public void reset() {
+        histogram.reset();
+    }
+}
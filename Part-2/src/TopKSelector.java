@@ -0,0 +1,176 @@
+/**
+ * Selects the K smallest distances out of a stream of (distance, index) pairs, such as the distances from a test
+ * review to every training review. The pairs are kept in a bounded max-heap of primitive arrays, so selecting from n
+ * pairs takes O(n log K) time and allocates nothing.
+ * <p>
+ * Equal distances are ordered by index, so the selected pairs are the same as the first K of a stable sort of the
+ * pairs by distance. A selector can be reused with reset, but is not thread-safe.
+ */
+public class TopKSelector {
+
+    private int K;
+    /**
+     * Distances of the selected pairs. A max-heap while pairs are offered, ascending after sort().
+     */
+    private double[] distances;
+    /**
+     * Indexes of the selected pairs, parallel to distances.
+     */
+    private int[] indexes;
+    private int size;
+    private boolean sorted;
+
+    /**
+     * @param K How many pairs to select.
+     */
+    public TopKSelector(int K) {
+        distances = new double[0];
+        indexes = new int[0];
+        reset(K);
+    }
+
+    /**
+     * Removes every pair, and changes how many pairs are selected.
+     *
+     * @param K How many pairs to select.
+     */
+    public void reset(int K) {
+        if (K < 0) {
+            throw new IllegalArgumentException("K must be at least 0");
+        }
+        if (K > distances.length) {
+            distances = new double[K];
+            indexes = new int[K];
+        }
+        this.K = K;
+        size = 0;
+        sorted = false;
+    }
+
+    /**
+     * Keeps the pair if it is one of the K smallest seen so far.
+     *
+     * @param distance The distance.
+     * @param index    The index the distance belongs to, e.g. of a training review.
+     */
+    public void offer(double distance, int index) {
+        if (sorted) {
+            throw new IllegalStateException("Selector was sorted. Reset it before offering more pairs");
+        }
+        if (size < K) {
+            distances[size] = distance;
+            indexes[size] = index;
+            siftUp(size++);
+        } else if (K > 0 && isFarther(distances[0], indexes[0], distance, index)) {
+            distances[0] = distance;
+            indexes[0] = index;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * @return True if (distance1, index1) comes after (distance2, index2).
+     */
+    private static boolean isFarther(double distance1, int index1, double distance2, int index2) {
+        return distance1 > distance2 || (distance1 == distance2 && index1 > index2);
+    }
+
+    private void siftUp(int child) {
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (!isFarther(distances[child], indexes[child], distances[parent], indexes[parent])) {
+                return;
+            }
+            swap(child, parent);
+            child = parent;
+        }
+    }
+
+    private void siftDown(int parent, int heapSize) {
+        while (true) {
+            int child = parent * 2 + 1;
+            if (child >= heapSize) {
+                return;
+            }
+            if (child + 1 < heapSize && isFarther(distances[child + 1], indexes[child + 1], distances[child], indexes[child])) {
+                child++;
+            }
+            if (!isFarther(distances[child], indexes[child], distances[parent], indexes[parent])) {
+                return;
+            }
+            swap(child, parent);
+            parent = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+        int index = indexes[i];
+        indexes[i] = indexes[j];
+        indexes[j] = index;
+    }
+
+    /**
+     * @return The largest selected distance, i.e. the K-th smallest once K pairs have been offered.
+     */
+    public double getMaxDistance() {
+        if (size == 0) {
+            throw new IllegalStateException("No pairs were offered");
+        }
+        return sorted ? distances[size - 1] : distances[0];
+    }
+
+    /**
+     * @return How many pairs are selected. At most K.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getK() {
+        return K;
+    }
+
+    /**
+     * Sorts the selected pairs from nearest to farthest in place (heapsort). Call once every pair has been offered.
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        for (int heapSize = size - 1; heapSize > 0; heapSize--) {
+            swap(0, heapSize);
+            siftDown(0, heapSize);
+        }
+        sorted = true;
+    }
+
+    /**
+     * @param rank 0 for the nearest pair. Only valid after sort().
+     * @return The distance of the pair with the specified rank.
+     */
+    public double getDistance(int rank) {
+        checkRank(rank);
+        return distances[rank];
+    }
+
+    /**
+     * @param rank 0 for the nearest pair. Only valid after sort().
+     * @return The index of the pair with the specified rank.
+     */
+    public int getIndex(int rank) {
+        checkRank(rank);
+        return indexes[rank];
+    }
+
+    private void checkRank(int rank) {
+        if (!sorted) {
+            throw new IllegalStateException("Sort the selector before reading pairs by rank");
+        }
+        if (rank < 0 || rank >= size) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " of " + size);
+        }
+    }
+}